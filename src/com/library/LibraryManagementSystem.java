@@ -1,42 +1,169 @@
 package com.library;
 
+import com.library.api.LibraryHttpServer;
 import com.library.model.Book;
 import com.library.model.Member;
 import com.library.model.Transaction;
 import com.library.service.BookService;
 import com.library.service.MemberService;
 import com.library.service.TransactionService;
+import com.library.storage.BackupManager;
+import com.library.storage.MappedBookStore;
+import com.library.storage.SnapshotStorageEngine;
+import com.library.storage.StorageEngine;
+import com.library.storage.StorageEngines;
 import com.library.exception.BookNotFoundException;
+import com.library.exception.ConcurrentUpdateException;
 import com.library.exception.MemberNotFoundException;
+import com.library.exception.StorageException;
+import com.library.util.BookCodec;
 import com.library.util.FileHandler;
 import com.library.util.DateUtil;
+import com.library.util.MemberCodec;
+import com.library.util.TransactionCodec;
 
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.util.List;
 import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.time.LocalDate;
 
 /**
  * Main class for Library Management System
  */
 public class LibraryManagementSystem {
+    private static final String DATA_DIRECTORY = "./library_data";
+    private static final String MAPPED_ENGINE = "mapped";
+    private static final long GROUP_COMMIT_INTERVAL_MILLIS = 50;
+    private static final int GROUP_COMMIT_BATCH_SIZE = 256;
+    private static final int DEFAULT_ARCHIVE_AGE_DAYS = 365;
+    private static final int RANKED_SEARCH_RESULTS = 20;
+    private static final int DEFAULT_HTTP_PORT = 8080;
+    private static final int HTTP_STOP_DELAY_SECONDS = 2;
+    
     private BookService bookService;
     private MemberService memberService;
     private TransactionService transactionService;
+    private FileHandler fileHandler;
     private Scanner scanner;
     
     public LibraryManagementSystem() {
-        // Initialize file handler with data directory
-        FileHandler fileHandler = new FileHandler("./library_data");
+        // Initialize file handler with data directory, locked against other
+        // library processes; log appends are written in batches by a background flusher
+        this.fileHandler = new FileHandler(DATA_DIRECTORY);
+        fileHandler.lockDirectory();
+        fileHandler.enableGroupCommit(GROUP_COMMIT_INTERVAL_MILLIS, GROUP_COMMIT_BATCH_SIZE);
+        Runtime.getRuntime().addShutdownHook(new Thread(fileHandler::close));
         
-        // Initialize services
-        this.bookService = new BookService(fileHandler);
-        this.memberService = new MemberService(fileHandler);
-        this.transactionService = new TransactionService(bookService, memberService, fileHandler);
+        // Initialize services, each on the storage engine configured for its entity.
+        // The stores are loaded concurrently; transaction history is only loaded
+        // when it is first queried.
+        ExecutorService loader = Executors.newFixedThreadPool(3);
+        try {
+            CompletableFuture<StorageEngine<Book>> books =
+                    CompletableFuture.supplyAsync(this::openBookEngine, loader);
+            CompletableFuture<StorageEngine<Member>> members =
+                    CompletableFuture.supplyAsync(() -> StorageEngines.open(engineType("members"),
+                            fileHandler, MemberService.MEMBERS_FILE, new MemberCodec()), loader);
+            CompletableFuture<StorageEngine<Transaction>> transactions =
+                    CompletableFuture.supplyAsync(() -> StorageEngines.open(engineType("transactions"),
+                            fileHandler, TransactionService.TRANSACTIONS_FILE, new TransactionCodec()), loader);
+            StorageEngine<Transaction> history = StorageEngines.openLazy(engineType("transactions"), fileHandler,
+                    TransactionService.HISTORY_FILE, new TransactionCodec());
+            
+            this.bookService = new BookService(await(books));
+            enforceUniqueIsbns();
+            this.memberService = new MemberService(await(members));
+            reportDuplicateEmails();
+            this.transactionService = new TransactionService(bookService, memberService,
+                    await(transactions), history, TransactionService.openArchive(DATA_DIRECTORY));
+        } finally {
+            loader.shutdown();
+        }
         
         // Initialize scanner for user input
         this.scanner = new Scanner(System.in);
     }
     
+    /**
+     * Waits for a store to finish loading, rethrowing any failure unwrapped
+     * @param future Store being loaded
+     * @return Loaded store
+     */
+    private static <T> T await(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+    
+    /**
+     * Makes every book need its own ISBN when the library.isbn.unique system
+     * property is set. Enforcement stays off if the catalog already has duplicates.
+     */
+    private void enforceUniqueIsbns() {
+        if (!Boolean.getBoolean("library.isbn.unique")) {
+            return;
+        }
+        try {
+            bookService.setUniqueIsbns(true);
+        } catch (IllegalStateException e) {
+            System.out.println("Warning: " + e.getMessage() + "; ISBN uniqueness is not enforced.");
+        }
+    }
+    
+    /**
+     * Warns about members sharing an email, left from before emails had to be
+     * unique. They can still be updated, but not given another taken email.
+     */
+    private void reportDuplicateEmails() {
+        String duplicate = memberService.findDuplicateEmail();
+        if (duplicate != null) {
+            System.out.println("Warning: several members share the email " + duplicate
+                               + "; give each their own email to keep lookups by email exact.");
+        }
+    }
+    
+    /**
+     * Gets the storage engine configured for an entity through the
+     * library.engine.&lt;entity&gt; system property, defaulting to the log-structured engine
+     * @param entity Entity name (books, members or transactions)
+     * @return Storage engine type
+     */
+    private String engineType(String entity) {
+        return System.getProperty("library.engine." + entity, StorageEngines.LOG);
+    }
+    
+    /**
+     * Opens the storage engine for books. Besides the generic engines, books
+     * may use "mapped", which keeps the catalog in memory-mapped files and
+     * imports books.dat the first time.
+     * @return Storage engine for the book service
+     */
+    private StorageEngine<Book> openBookEngine() {
+        String type = engineType("books");
+        if (!MAPPED_ENGINE.equalsIgnoreCase(type)) {
+            return StorageEngines.open(type, fileHandler, BookService.BOOKS_FILE, new BookCodec());
+        }
+        MappedBookStore mappedStore = new MappedBookStore(DATA_DIRECTORY);
+        if (mappedStore.size() == 0 && fileHandler.fileExists(BookService.BOOKS_FILE)) {
+            for (Book book : new SnapshotStorageEngine<>(fileHandler, BookService.BOOKS_FILE, new BookCodec()).scan()) {
+                mappedStore.put(book.getId(), book);
+            }
+        }
+        return mappedStore;
+    }
+    
     /**
      * Display main menu
      */
@@ -102,7 +229,8 @@ public class LibraryManagementSystem {
         System.out.println("3. Members by Type");
         System.out.println("4. Overdue Books Report");
         System.out.println("5. Book Transaction History");
-        System.out.println("6. Back to Main Menu");
+        System.out.println("6. Archive Old Transactions");
+        System.out.println("7. Back to Main Menu");
         System.out.print("Enter your choice: ");
     }
     
@@ -160,7 +288,9 @@ public class LibraryManagementSystem {
             System.out.print("Enter Book ID: ");
             String id = scanner.nextLine();
             
-            Book book = bookService.getBookById(id);
+            // Edit a copy, so the stored book is untouched until the update is accepted
+            Book book = new Book(bookService.getBookById(id));
+            int version = book.getVersion();
             
             System.out.println("\nCurrent Book Details:");
             System.out.println(book);
@@ -223,10 +353,12 @@ public class LibraryManagementSystem {
                 book.setStatus(statuses[statusChoice - 1]);
             }
             
-            bookService.updateBook(book);
+            bookService.updateBook(book, version);
             System.out.println("\nBook updated successfully!");
         } catch (BookNotFoundException e) {
             System.out.println("Error: " + e.getMessage());
+        } catch (ConcurrentUpdateException e) {
+            System.out.println("Error: " + e.getMessage() + ". Please reload the book and try again.");
         } catch (NumberFormatException e) {
             System.out.println("Invalid number format. Please try again.");
         } catch (Exception e) {
@@ -278,6 +410,8 @@ public class LibraryManagementSystem {
             System.out.println("1. Search by Title");
             System.out.println("2. Search by Author");
             System.out.println("3. Search by ISBN");
+            System.out.println("4. Search Title/Author (typo tolerant)");
+            System.out.println("5. Search All Fields (best matches)");
             System.out.print("Enter your choice: ");
             
             int choice = Integer.parseInt(scanner.nextLine());
@@ -299,6 +433,16 @@ public class LibraryManagementSystem {
                     String isbn = scanner.nextLine();
                     results = bookService.searchByISBN(isbn);
                     break;
+                case 4:
+                    System.out.print("\nEnter title or author words to search: ");
+                    String words = scanner.nextLine();
+                    results = bookService.fuzzySearch(words);
+                    break;
+                case 5:
+                    System.out.print("\nEnter words to search for: ");
+                    String query = scanner.nextLine();
+                    results = bookService.searchRanked(query, RANKED_SEARCH_RESULTS);
+                    break;
                 default:
                     System.out.println("Invalid choice.");
                     return;
@@ -403,7 +547,8 @@ public class LibraryManagementSystem {
             System.out.print("Enter Member ID: ");
             String id = scanner.nextLine();
             
-            Member member = memberService.getMemberById(id);
+            Member member = new Member(memberService.getMemberById(id));
+            int version = member.getVersion();
             
             System.out.println("\nCurrent Member Details:");
             System.out.println(member);
@@ -453,10 +598,12 @@ public class LibraryManagementSystem {
                 member.setActive(statusStr.equalsIgnoreCase("active"));
             }
             
-            memberService.updateMember(member);
+            memberService.updateMember(member, version);
             System.out.println("\nMember updated successfully!");
         } catch (MemberNotFoundException e) {
             System.out.println("Error: " + e.getMessage());
+        } catch (ConcurrentUpdateException e) {
+            System.out.println("Error: " + e.getMessage() + ". Please reload the member and try again.");
         } catch (NumberFormatException e) {
             System.out.println("Invalid number format. Please try again.");
         } catch (Exception e) {
@@ -515,6 +662,7 @@ public class LibraryManagementSystem {
             System.out.println("\n==== SEARCH MEMBERS ====");
             System.out.println("1. Search by Name");
             System.out.println("2. Search by Email");
+            System.out.println("3. Find by Exact Email");
             System.out.print("Enter your choice: ");
             
             int choice = Integer.parseInt(scanner.nextLine());
@@ -531,6 +679,11 @@ public class LibraryManagementSystem {
                     String email = scanner.nextLine();
                     results = memberService.searchByEmail(email);
                     break;
+                case 3:
+                    System.out.print("\nEnter email: ");
+                    String exactEmail = scanner.nextLine();
+                    results = List.of(memberService.getMemberByEmail(exactEmail));
+                    break;
                 default:
                     System.out.println("Invalid choice.");
                     return;
@@ -900,6 +1053,22 @@ public class LibraryManagementSystem {
         }
     }
     
+    /**
+     * Archive returned transactions older than the configured age
+     * (library.archive.days system property)
+     */
+    public void archiveOldTransactions() {
+        try {
+            System.out.println("\n==== ARCHIVE OLD TRANSACTIONS ====");
+            
+            int days = Integer.getInteger("library.archive.days", DEFAULT_ARCHIVE_AGE_DAYS);
+            int archived = transactionService.archiveReturnedTransactions(days);
+            System.out.println("Archived " + archived + " transaction(s) returned more than " + days + " days ago.");
+        } catch (Exception e) {
+            System.out.println("Error: " + e.getMessage());
+        }
+    }
+    
     /**
      * Display a list of transactions
      * @param transactions List of transactions to display
@@ -1078,7 +1247,8 @@ public class LibraryManagementSystem {
                                     case 3: membersByType(); break;
                                     case 4: listOverdueBooks(); break;
                                     case 5: bookTransactionHistory(); break;
-                                    case 6: backToMain = true; break;
+                                    case 6: archiveOldTransactions(); break;
+                                    case 7: backToMain = true; break;
                                     default: System.out.println("Invalid choice. Please try again.");
                                 }
                             } catch (NumberFormatException e) {
@@ -1101,6 +1271,7 @@ public class LibraryManagementSystem {
         }
         
         scanner.close();
+        fileHandler.close();
     }
     
     /**
@@ -1108,7 +1279,108 @@ public class LibraryManagementSystem {
      * @param args Command line arguments
      */
     public static void main(String[] args) {
-        LibraryManagementSystem lms = new LibraryManagementSystem();
+        if (args.length >= 2 && args[0].equals("backup")) {
+            LibraryManagementSystem lms = openOrExit();
+            lms.backup(args[1]);
+            return;
+        }
+        if (args.length >= 3 && args[0].equals("restore")) {
+            restore(args[1], args[2], args.length > 3 ? Integer.parseInt(args[3]) : 0);
+            return;
+        }
+        if (args.length >= 1 && args[0].equals("serve")) {
+            LibraryManagementSystem lms = openOrExit();
+            lms.serve(args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_HTTP_PORT,
+                      args.length > 2 ? args[2] : null);
+            return;
+        }
+        if (args.length > 0) {
+            System.out.println("Usage: LibraryManagementSystem [backup <backup dir> | "
+                               + "restore <backup dir> <data dir> [generation] | serve [port [address]]]");
+            return;
+        }
+        
+        LibraryManagementSystem lms = openOrExit();
         lms.run();
     }
+    
+    /**
+     * Opens the library, exiting if its data can't be opened, e.g. because
+     * another library process (the server, say) is using it
+     * @return Opened library
+     */
+    private static LibraryManagementSystem openOrExit() {
+        try {
+            return new LibraryManagementSystem();
+        } catch (StorageException e) {
+            System.out.println("Error: " + e.getMessage());
+            System.exit(1);
+            return null;
+        }
+    }
+    
+    /**
+     * Serves the HTTP API for kiosks and the web catalog until the process is stopped
+     * @param port Port to listen on
+     * @param address Address to listen on, or null for the loopback interface only
+     */
+    public void serve(int port, String address) {
+        LibraryHttpServer server;
+        try {
+            InetAddress host = address == null ? InetAddress.getLoopbackAddress() : InetAddress.getByName(address);
+            server = new LibraryHttpServer(bookService, memberService, transactionService,
+                                           new InetSocketAddress(host, port));
+        } catch (IOException e) {
+            System.out.println("Error: cannot listen on port " + port + ": " + e.getMessage());
+            fileHandler.close();
+            return;
+        }
+        // Stop taking requests, then flush whatever the last ones wrote
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.stop(HTTP_STOP_DELAY_SECONDS);
+            fileHandler.close();
+        }));
+        server.start();
+        System.out.println("Serving the library API on " + server.getAddress());
+    }
+    
+    /**
+     * Writes an incremental backup of the library data. The data directory is
+     * locked while the library is open, so a backup can't run while the
+     * server or another library process is using the data.
+     * @param backupDirectory Directory holding the backup generations
+     */
+    public void backup(String backupDirectory) {
+        int generation;
+        try {
+            BackupManager backupManager = new BackupManager(backupDirectory);
+            bookService.addToBackup(backupManager);
+            memberService.addToBackup(backupManager);
+            transactionService.addToBackup(backupManager);
+            generation = backupManager.backup();
+        } finally {
+            fileHandler.close();
+        }
+        System.out.println("Backup generation " + generation + " written to " + backupDirectory);
+    }
+    
+    /**
+     * Rebuilds library data from a backup
+     * @param backupDirectory Directory holding the backup generations
+     * @param dataDirectory Empty directory to restore into
+     * @param generation Generation to restore, or 0 for the latest
+     */
+    private static void restore(String backupDirectory, String dataDirectory, int generation) {
+        BackupManager backupManager = new BackupManager(backupDirectory);
+        backupManager.addStore(BookService.BOOKS_FILE, new BookCodec());
+        backupManager.addStore(MemberService.MEMBERS_FILE, new MemberCodec());
+        backupManager.addStore(TransactionService.TRANSACTIONS_FILE, new TransactionCodec());
+        backupManager.addStore(TransactionService.HISTORY_FILE, new TransactionCodec());
+        backupManager.addFileDirectory(TransactionService.ARCHIVE_DIRECTORY,
+                                       dataDirectory + File.separator + TransactionService.ARCHIVE_DIRECTORY);
+        backupManager.restore(dataDirectory, generation);
+        System.out.println("Restored backup generation "
+                           + (generation == 0 ? backupManager.getLatestGeneration() : generation)
+                           + " into " + dataDirectory);
+    }
 }
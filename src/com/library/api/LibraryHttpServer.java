@@ -0,0 +1,447 @@
+package com.library.api;
+
+import com.library.exception.BookNotFoundException;
+import com.library.exception.BookUnavailableException;
+import com.library.exception.ConcurrentUpdateException;
+import com.library.exception.MemberNotEligibleException;
+import com.library.exception.MemberNotFoundException;
+import com.library.model.Book;
+import com.library.model.Member;
+import com.library.model.Transaction;
+import com.library.service.BookService;
+import com.library.service.MemberService;
+import com.library.service.TransactionService;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * JSON-over-HTTP API for self-checkout kiosks and the web catalog:
+ * <pre>
+ * GET  /books?q=words[&amp;limit=n]     ranked catalog search
+ * GET  /books?isbn=isbn             books with an ISBN
+ * GET  /books/{id}                  one book
+ * GET  /members/{id}                one member
+ * GET  /members/{id}/loans          books a member has out
+ * POST /loans                       borrow, body {"bookId": ..., "memberId": ...}
+ * GET  /loans/{id}                  one loan
+ * POST /loans/{id}/return           return a book
+ * POST /loans/{id}/renew            renew, body {"days": n[, "version": v]}
+ * </pre>
+ * The API has no authentication, so by default it only listens on the
+ * loopback interface; kiosks reach it through a proxy, or the server is
+ * bound to a trusted network's address.
+ * Errors are answered as {"error": message}: 400 for a malformed request,
+ * 404 for an unknown book, member or loan, 409 when the library's rules
+ * refuse the request or a renewal names an outdated loan version, and 500
+ * for anything unexpected.
+ * Each request runs on its own thread: a virtual thread where the runtime
+ * has them (Java 21 and later), otherwise one from a cached pool.
+ */
+public class LibraryHttpServer {
+    private static final int DEFAULT_RESULTS = 20;
+    private static final int MAX_RESULTS = 100;
+    private static final int MAX_BODY_BYTES = 64 * 1024;
+    private static final int MAX_RENEWAL_DAYS = 90;
+    
+    private final BookService bookService;
+    private final MemberService memberService;
+    private final TransactionService transactionService;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    
+    /**
+     * Creates the server on the loopback interface, bound but not yet started
+     * @param bookService Book service
+     * @param memberService Member service
+     * @param transactionService Transaction service
+     * @param port Port to listen on, or 0 for any free port
+     * @throws IOException if the port can't be bound
+     */
+    public LibraryHttpServer(BookService bookService, MemberService memberService,
+                             TransactionService transactionService, int port) throws IOException {
+        this(bookService, memberService, transactionService,
+             new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+    }
+    
+    /**
+     * Creates the server, bound but not yet started
+     * @param bookService Book service
+     * @param memberService Member service
+     * @param transactionService Transaction service
+     * @param address Address and port to listen on; port 0 picks any free port
+     * @throws IOException if the address can't be bound
+     */
+    public LibraryHttpServer(BookService bookService, MemberService memberService,
+                             TransactionService transactionService, InetSocketAddress address)
+            throws IOException {
+        this.bookService = bookService;
+        this.memberService = memberService;
+        this.transactionService = transactionService;
+        this.server = HttpServer.create(address, 0);
+        this.executor = newRequestExecutor();
+        server.setExecutor(executor);
+        server.createContext("/books", exchange -> serve(exchange, "/books", this::books));
+        server.createContext("/members", exchange -> serve(exchange, "/members", this::members));
+        server.createContext("/loans", exchange -> serve(exchange, "/loans", this::loans));
+    }
+    
+    /**
+     * Starts answering requests
+     */
+    public void start() {
+        server.start();
+    }
+    
+    /**
+     * Stops the server, letting requests in progress finish
+     * @param delaySeconds Longest time to wait for them
+     */
+    public void stop(int delaySeconds) {
+        server.stop(delaySeconds);
+        executor.shutdown();
+    }
+    
+    /**
+     * Gets the port the server listens on
+     * @return Port
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+    
+    /**
+     * Gets the address and port the server listens on
+     * @return Address
+     */
+    public InetSocketAddress getAddress() {
+        return server.getAddress();
+    }
+    
+    /**
+     * Creates the executor running requests: a thread per request, virtual if
+     * the runtime supports them. Looked up reflectively, as the project still
+     * builds for Java 17.
+     */
+    private static ExecutorService newRequestExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+    
+    private Reply books(HttpExchange exchange, String[] path) throws Exception {
+        requireMethod(exchange, "GET");
+        if (path.length == 1) {
+            return Reply.ok(toJson(findBook(path[0])));
+        }
+        if (path.length > 1) {
+            throw new ApiException(404, "Unknown resource");
+        }
+        
+        Map<String, String> params = queryParameters(exchange);
+        List<Book> books;
+        if (params.containsKey("q")) {
+            books = bookService.searchRanked(params.get("q"), limit(params));
+        } else if (params.containsKey("isbn")) {
+            books = bookService.searchByISBN(params.get("isbn"));
+        } else {
+            throw new ApiException(400, "Search needs a q or isbn parameter");
+        }
+        List<Object> results = new ArrayList<>();
+        for (Book book : books) {
+            results.add(toJson(book));
+        }
+        return Reply.ok(results);
+    }
+    
+    private Reply members(HttpExchange exchange, String[] path) throws Exception {
+        requireMethod(exchange, "GET");
+        if (path.length == 1) {
+            return Reply.ok(toJson(findMember(path[0])));
+        }
+        if (path.length == 2 && path[1].equals("loans")) {
+            Member member = findMember(path[0]);
+            return Reply.ok(toJson(transactionService.getMemberActiveTransactions(member.getId())));
+        }
+        throw new ApiException(404, "Unknown resource");
+    }
+    
+    private Reply loans(HttpExchange exchange, String[] path) throws Exception {
+        if (path.length == 0) {
+            requireMethod(exchange, "POST");
+            Map<String, Object> body = readBody(exchange);
+            Book book = findBook(stringField(body, "bookId"));
+            Member member = findMember(stringField(body, "memberId"));
+            return new Reply(201, toJson(transactionService.borrowBook(book.getId(), member.getId())));
+        }
+        
+        Transaction transaction = transactionService.getTransactionById(path[0]);
+        if (transaction == null) {
+            throw new ApiException(404, "Transaction not found");
+        }
+        if (path.length == 1) {
+            requireMethod(exchange, "GET");
+            return Reply.ok(toJson(transaction));
+        }
+        if (path.length == 2 && path[1].equals("return")) {
+            requireMethod(exchange, "POST");
+            return Reply.ok(toJson(transactionService.returnBook(transaction.getId())));
+        }
+        if (path.length == 2 && path[1].equals("renew")) {
+            requireMethod(exchange, "POST");
+            Map<String, Object> body = readBody(exchange);
+            int days = intField(body, "days");
+            if (days < 1 || days > MAX_RENEWAL_DAYS) {
+                throw new ApiException(400, "days must be between 1 and " + MAX_RENEWAL_DAYS);
+            }
+            Transaction renewed = body.get("version") != null
+                    ? transactionService.renewBook(transaction.getId(), days, intField(body, "version"))
+                    : transactionService.renewBook(transaction.getId(), days);
+            return Reply.ok(toJson(renewed));
+        }
+        throw new ApiException(404, "Unknown resource");
+    }
+    
+    /**
+     * Runs a route and sends its reply, or the error it failed with
+     */
+    private void serve(HttpExchange exchange, String context, Route route) throws IOException {
+        Reply reply;
+        try {
+            reply = route.handle(exchange, pathSegments(exchange, context));
+        } catch (ApiException e) {
+            reply = Reply.error(e.status, e.getMessage());
+        } catch (ConcurrentUpdateException | BookUnavailableException | MemberNotEligibleException e) {
+            reply = Reply.error(409, e.getMessage());
+        } catch (BookNotFoundException | MemberNotFoundException e) {
+            // Also reached if an entity is removed after it was looked up
+            reply = Reply.error(404, e.getMessage());
+        } catch (Exception e) {
+            System.err.println("Error handling " + exchange.getRequestMethod() + " "
+                               + exchange.getRequestURI() + ": " + e);
+            reply = Reply.error(500, "Internal error");
+        }
+        send(exchange, reply);
+    }
+    
+    private static void send(HttpExchange exchange, Reply reply) throws IOException {
+        byte[] body = Json.write(reply.body).getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(reply.status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+    
+    private Book findBook(String bookId) throws ApiException {
+        try {
+            return bookService.getBookById(bookId);
+        } catch (BookNotFoundException e) {
+            throw new ApiException(404, e.getMessage());
+        }
+    }
+    
+    private Member findMember(String memberId) throws ApiException {
+        try {
+            return memberService.getMemberById(memberId);
+        } catch (MemberNotFoundException e) {
+            throw new ApiException(404, e.getMessage());
+        }
+    }
+    
+    private static void requireMethod(HttpExchange exchange, String method) throws ApiException {
+        if (!exchange.getRequestMethod().equalsIgnoreCase(method)) {
+            exchange.getResponseHeaders().set("Allow", method);
+            throw new ApiException(405, "Method not allowed");
+        }
+    }
+    
+    /**
+     * Splits the part of the request path after the context into its segments
+     */
+    private static String[] pathSegments(HttpExchange exchange, String context) throws ApiException {
+        String rest = exchange.getRequestURI().getPath().substring(context.length());
+        if (!rest.isEmpty() && !rest.startsWith("/")) {
+            throw new ApiException(404, "Unknown resource");
+        }
+        List<String> segments = new ArrayList<>();
+        for (String segment : rest.split("/")) {
+            if (!segment.isEmpty()) {
+                segments.add(segment);
+            }
+        }
+        return segments.toArray(new String[0]);
+    }
+    
+    private static Map<String, String> queryParameters(HttpExchange exchange) throws ApiException {
+        Map<String, String> params = new LinkedHashMap<>();
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query == null) {
+            return params;
+        }
+        for (String pair : query.split("&")) {
+            int equals = pair.indexOf('=');
+            String name = equals >= 0 ? pair.substring(0, equals) : pair;
+            String value = equals >= 0 ? pair.substring(equals + 1) : "";
+            try {
+                params.putIfAbsent(URLDecoder.decode(name, StandardCharsets.UTF_8),
+                                   URLDecoder.decode(value, StandardCharsets.UTF_8));
+            } catch (IllegalArgumentException e) {
+                throw new ApiException(400, "Malformed query string");
+            }
+        }
+        return params;
+    }
+    
+    private static int limit(Map<String, String> params) throws ApiException {
+        String limit = params.get("limit");
+        if (limit == null) {
+            return DEFAULT_RESULTS;
+        }
+        try {
+            return Math.max(1, Math.min(MAX_RESULTS, Integer.parseInt(limit)));
+        } catch (NumberFormatException e) {
+            throw new ApiException(400, "limit must be a number");
+        }
+    }
+    
+    private static Map<String, Object> readBody(HttpExchange exchange) throws IOException, ApiException {
+        byte[] body;
+        try (InputStream in = exchange.getRequestBody()) {
+            body = in.readNBytes(MAX_BODY_BYTES + 1);
+        }
+        if (body.length > MAX_BODY_BYTES) {
+            throw new ApiException(413, "Request body too large");
+        }
+        try {
+            return Json.parseObject(new String(body, StandardCharsets.UTF_8));
+        } catch (IllegalArgumentException e) {
+            throw new ApiException(400, e.getMessage());
+        }
+    }
+    
+    private static String stringField(Map<String, Object> body, String name) throws ApiException {
+        Object value = body.get(name);
+        if (!(value instanceof String) || ((String) value).isEmpty()) {
+            throw new ApiException(400, name + " is required");
+        }
+        return (String) value;
+    }
+    
+    private static int intField(Map<String, Object> body, String name) throws ApiException {
+        Object value = body.get(name);
+        if (!(value instanceof Double) || (Double) value != Math.rint((Double) value)
+                || Math.abs((Double) value) > Integer.MAX_VALUE) {
+            throw new ApiException(400, name + " must be a whole number");
+        }
+        return ((Double) value).intValue();
+    }
+    
+    private static Map<String, Object> toJson(Book book) {
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("id", book.getId());
+        json.put("title", book.getTitle());
+        json.put("author", book.getAuthor());
+        json.put("isbn", book.getIsbn());
+        json.put("publisher", book.getPublisher());
+        json.put("publicationYear", book.getPublicationYear());
+        json.put("category", book.getCategory());
+        json.put("status", book.getStatus());
+        json.put("version", book.getVersion());
+        return json;
+    }
+    
+    /**
+     * Converts a member without their contact details, which kiosks have no use for
+     */
+    private Map<String, Object> toJson(Member member) {
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("id", member.getId());
+        json.put("name", member.getName());
+        json.put("membershipType", member.getMembershipType());
+        json.put("maxBorrowItems", member.getMembershipType().getMaxBorrowItems());
+        json.put("activeLoans", transactionService.countMemberActiveTransactions(member.getId()));
+        json.put("memberSince", member.getMemberSince());
+        json.put("active", member.isActive());
+        json.put("version", member.getVersion());
+        return json;
+    }
+    
+    private static Map<String, Object> toJson(Transaction transaction) {
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("id", transaction.getId());
+        json.put("bookId", transaction.getBookId());
+        json.put("memberId", transaction.getMemberId());
+        json.put("borrowDate", transaction.getBorrowDate());
+        json.put("dueDate", transaction.getDueDate());
+        json.put("returnDate", transaction.getReturnDate());
+        json.put("fine", transaction.getFine());
+        json.put("status", transaction.getStatus());
+        json.put("version", transaction.getVersion());
+        return json;
+    }
+    
+    private static List<Object> toJson(List<Transaction> transactions) {
+        List<Object> json = new ArrayList<>();
+        for (Transaction transaction : transactions) {
+            json.add(toJson(transaction));
+        }
+        return json;
+    }
+    
+    /**
+     * Handler for the requests under one context
+     */
+    private interface Route {
+        Reply handle(HttpExchange exchange, String[] path) throws Exception;
+    }
+    
+    private static class Reply {
+        private final int status;
+        private final Object body;
+        
+        private Reply(int status, Object body) {
+            this.status = status;
+            this.body = body;
+        }
+        
+        private static Reply ok(Object body) {
+            return new Reply(200, body);
+        }
+        
+        private static Reply error(int status, String message) {
+            Map<String, Object> body = new LinkedHashMap<>();
+            body.put("error", message);
+            return new Reply(status, body);
+        }
+    }
+    
+    /**
+     * Request refused with a particular HTTP status
+     */
+    private static class ApiException extends Exception {
+        private static final long serialVersionUID = 1L;
+        
+        private final int status;
+        
+        private ApiException(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package com.library.exception;
+
+/**
+ * Exception thrown when a book exists but its loan can't proceed, such as
+ * borrowing a book that is already out or returning one twice
+ */
+public class BookUnavailableException extends BookNotFoundException {
+    private static final long serialVersionUID = 1L;
+    
+    public BookUnavailableException(String message) {
+        super(message);
+    }
+}
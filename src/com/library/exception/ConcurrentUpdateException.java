@@ -0,0 +1,13 @@
+package com.library.exception;
+
+/**
+ * Exception thrown when an update is based on an outdated version of an
+ * entity, because someone else changed it since it was read
+ */
+public class ConcurrentUpdateException extends Exception {
+    private static final long serialVersionUID = 1L;
+    
+    public ConcurrentUpdateException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,13 @@
+package com.library.exception;
+
+/**
+ * Exception thrown when a member exists but may not borrow, being inactive
+ * or at their borrowing limit
+ */
+public class MemberNotEligibleException extends MemberNotFoundException {
+    private static final long serialVersionUID = 1L;
+    
+    public MemberNotEligibleException(String message) {
+        super(message);
+    }
+}
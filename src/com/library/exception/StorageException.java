@@ -0,0 +1,16 @@
+package com.library.exception;
+
+/**
+ * Exception thrown when persisted library data cannot be read or written safely
+ */
+public class StorageException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+    
+    public StorageException(String message) {
+        super(message);
+    }
+    
+    public StorageException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,285 @@
+package com.library.index;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Autocomplete index of author names. Each author is split into folded words
+ * (see {@link TextFolding}) held in a radix trie, whose edges carry whole runs
+ * of characters rather than one character each. Every word of a query must
+ * be the start of a word of the author, so "tolk" and "j r r tol" both
+ * complete to "J.R.R. Tolkien". Authors that differ only in case, accents
+ * or punctuation are treated as one author. All methods are synchronized.
+ */
+public class AuthorTrie {
+    private static final Comparator<Author> BY_POPULARITY =
+        Comparator.comparingInt((Author author) -> author.bookIds.size())
+                  .reversed()
+                  .thenComparing(author -> author.key);
+    
+    private final Node root = new Node("");
+    private final Map<String, Author> authors = new HashMap<>();
+    private final Map<String, String> authorOfBook = new HashMap<>();
+    
+    /**
+     * Indexes the author of a book, replacing whatever was indexed for it before
+     * @param bookId ID of the book
+     * @param author Author of the book, may be null
+     */
+    public synchronized void add(String bookId, String author) {
+        remove(bookId);
+        String key = String.join(" ", TextFolding.tokenize(author));
+        if (key.isEmpty()) {
+            return;
+        }
+        Author entry = authors.get(key);
+        if (entry == null) {
+            entry = new Author(key, author.trim());
+            authors.put(key, entry);
+            for (String token : new HashSet<>(TextFolding.tokenize(author))) {
+                insert(token, key);
+            }
+        }
+        entry.bookIds.add(bookId);
+        authorOfBook.put(bookId, key);
+    }
+    
+    /**
+     * Removes a book from the index; its author goes once no book refers to it
+     * @param bookId ID of the book
+     */
+    public synchronized void remove(String bookId) {
+        String key = authorOfBook.remove(bookId);
+        if (key == null) {
+            return;
+        }
+        Author entry = authors.get(key);
+        entry.bookIds.remove(bookId);
+        if (entry.bookIds.isEmpty()) {
+            authors.remove(key);
+            for (String token : new HashSet<>(List.of(key.split(" ")))) {
+                delete(token, key);
+            }
+        }
+    }
+    
+    /**
+     * Completes a partial author name
+     * @param prefix Start of one or more words of the author's name
+     * @param limit Maximum number of authors to return
+     * @return Matching authors, those with the most books first
+     */
+    public synchronized List<String> complete(String prefix, int limit) {
+        if (limit <= 0) {
+            return Collections.emptyList();
+        }
+        Set<String> candidates = null;
+        for (String token : TextFolding.tokenize(prefix)) {
+            Set<String> matches = new HashSet<>();
+            collect(find(token), matches);
+            if (candidates == null) {
+                candidates = matches;
+            } else {
+                candidates.retainAll(matches);
+            }
+            if (candidates.isEmpty()) {
+                return Collections.emptyList();
+            }
+        }
+        
+        // Keep the best authors seen so far, weakest on top to be evicted first
+        PriorityQueue<Author> best = new PriorityQueue<>(limit + 1, BY_POPULARITY.reversed());
+        for (String key : candidates != null ? candidates : authors.keySet()) {
+            best.add(authors.get(key));
+            if (best.size() > limit) {
+                best.poll();
+            }
+        }
+        List<Author> ranked = new ArrayList<>(best);
+        ranked.sort(BY_POPULARITY);
+        
+        List<String> result = new ArrayList<>(ranked.size());
+        for (Author author : ranked) {
+            result.add(author.name);
+        }
+        return result;
+    }
+    
+    /**
+     * Gets the books written by an author
+     * @param author Author name, as returned by {@link #complete(String, int)}
+     * @return IDs of the author's books, empty if the author is unknown
+     */
+    public synchronized Set<String> getBookIds(String author) {
+        Author entry = authors.get(String.join(" ", TextFolding.tokenize(author)));
+        return entry != null ? new LinkedHashSet<>(entry.bookIds) : Collections.emptySet();
+    }
+    
+    /**
+     * Tells whether an author name can be indexed at all. Names without a
+     * letter or digit, such as "" or "-", are skipped by {@link #add(String, String)},
+     * so {@link #getBookIds(String)} can't find books by them.
+     * @param author Author name
+     * @return true if books by the author are indexed
+     */
+    public static boolean isIndexable(String author) {
+        return !TextFolding.tokenize(author).isEmpty();
+    }
+    
+    /**
+     * Gets the number of distinct authors indexed
+     * @return Number of authors
+     */
+    public synchronized int size() {
+        return authors.size();
+    }
+    
+    /**
+     * Records that a word belongs to an author, splitting an edge if the word
+     * ends or branches off part way along it
+     */
+    private void insert(String token, String key) {
+        Node node = root;
+        int i = 0;
+        while (i < token.length()) {
+            Node child = node.children.get(token.charAt(i));
+            if (child == null) {
+                child = new Node(token.substring(i));
+                node.children.put(child.label.charAt(0), child);
+                node = child;
+                break;
+            }
+            int common = commonPrefix(child.label, token, i);
+            if (common < child.label.length()) {
+                Node middle = new Node(child.label.substring(0, common));
+                child.label = child.label.substring(common);
+                middle.children.put(child.label.charAt(0), child);
+                node.children.put(middle.label.charAt(0), middle);
+                child = middle;
+            }
+            node = child;
+            i += common;
+        }
+        node.authorKeys.add(key);
+    }
+    
+    /**
+     * Removes a word of an author, pruning nodes that no longer lead anywhere
+     * and merging those left with a single child into it
+     */
+    private void delete(String token, String key) {
+        List<Node> path = new ArrayList<>();
+        path.add(root);
+        Node node = root;
+        int i = 0;
+        while (i < token.length()) {
+            node = node.children.get(token.charAt(i));
+            if (node == null || !token.startsWith(node.label, i)) {
+                return;
+            }
+            path.add(node);
+            i += node.label.length();
+        }
+        node.authorKeys.remove(key);
+        
+        for (int depth = path.size() - 1; depth > 0; depth--) {
+            Node current = path.get(depth);
+            Node parent = path.get(depth - 1);
+            if (!current.authorKeys.isEmpty()) {
+                break;
+            }
+            if (current.children.isEmpty()) {
+                parent.children.remove(current.label.charAt(0));
+            } else if (current.children.size() == 1) {
+                Node only = current.children.values().iterator().next();
+                only.label = current.label + only.label;
+                parent.children.put(only.label.charAt(0), only);
+                break;
+            } else {
+                break;
+            }
+        }
+    }
+    
+    /**
+     * Finds the node under which every word starting with a prefix lies
+     * @return Node, or null if no word starts with the prefix
+     */
+    private Node find(String prefix) {
+        Node node = root;
+        int i = 0;
+        while (i < prefix.length()) {
+            Node child = node.children.get(prefix.charAt(i));
+            if (child == null) {
+                return null;
+            }
+            int remaining = prefix.length() - i;
+            if (remaining <= child.label.length()) {
+                return child.label.startsWith(prefix.substring(i)) ? child : null;
+            }
+            if (!prefix.startsWith(child.label, i)) {
+                return null;
+            }
+            node = child;
+            i += child.label.length();
+        }
+        return node;
+    }
+    
+    /**
+     * Adds the authors of every word at or below a node
+     */
+    private static void collect(Node node, Set<String> keys) {
+        if (node == null) {
+            return;
+        }
+        keys.addAll(node.authorKeys);
+        for (Node child : node.children.values()) {
+            collect(child, keys);
+        }
+    }
+    
+    private static int commonPrefix(String label, String token, int offset) {
+        int length = Math.min(label.length(), token.length() - offset);
+        int i = 0;
+        while (i < length && label.charAt(i) == token.charAt(offset + i)) {
+            i++;
+        }
+        return i;
+    }
+    
+    /**
+     * Node of the trie, reached over an edge labelled with one or more characters
+     */
+    private static class Node {
+        private String label;
+        private final Map<Character, Node> children = new HashMap<>();
+        private final Set<String> authorKeys = new HashSet<>();
+        
+        private Node(String label) {
+            this.label = label;
+        }
+    }
+    
+    /**
+     * Author as first spelled in the catalog, with the books written by them
+     */
+    private static class Author {
+        private final String key;
+        private final String name;
+        private final Set<String> bookIds = new LinkedHashSet<>();
+        
+        private Author(String key, String name) {
+            this.key = key;
+            this.name = name;
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package com.library.index;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Full-text index over several weighted fields of an entity, ranking
+ * matches with BM25: a word counts more the rarer it is across entities and
+ * the more often it occurs in a field, with diminishing returns, relative
+ * to how long that field is. Each field is scored on its own and the scores
+ * are added up, weighted. Only the best matches are kept while scoring, in
+ * a heap bounded by the number of results wanted. All methods are synchronized.
+ */
+public class Bm25Index {
+    private static final double K1 = 1.2;
+    private static final double B = 0.75;
+    private static final Comparator<Map.Entry<String, Double>> BY_SCORE =
+        Map.Entry.<String, Double>comparingByValue().thenComparing(Map.Entry.comparingByKey(Comparator.reverseOrder()));
+    
+    private final double[] weights;
+    private final Map<String, Map<String, int[]>> postings = new HashMap<>();
+    private final Map<String, int[]> lengths = new HashMap<>();
+    private final Map<String, Set<String>> wordsOf = new HashMap<>();
+    private final long[] totalLengths;
+    
+    /**
+     * Creates an empty index
+     * @param weights Weight of each field, in the order field texts are passed to {@link #add}
+     */
+    public Bm25Index(double... weights) {
+        this.weights = weights.clone();
+        this.totalLengths = new long[weights.length];
+    }
+    
+    /**
+     * Indexes the fields of an entity, replacing whatever was indexed for it before
+     * @param id ID of the entity
+     * @param fields Text of each field, any of which may be null
+     */
+    public synchronized void add(String id, String... fields) {
+        if (fields.length != weights.length) {
+            throw new IllegalArgumentException("Expected " + weights.length + " fields, got " + fields.length);
+        }
+        remove(id);
+        int[] fieldLengths = new int[weights.length];
+        Set<String> words = new LinkedHashSet<>();
+        for (int field = 0; field < fields.length; field++) {
+            List<String> tokens = TextFolding.tokenize(fields[field]);
+            fieldLengths[field] = tokens.size();
+            totalLengths[field] += tokens.size();
+            for (String token : tokens) {
+                int[] frequencies = postings.computeIfAbsent(token, t -> new HashMap<>())
+                                            .computeIfAbsent(id, i -> new int[weights.length]);
+                frequencies[field]++;
+                words.add(token);
+            }
+        }
+        lengths.put(id, fieldLengths);
+        wordsOf.put(id, words);
+    }
+    
+    /**
+     * Removes an entity from the index
+     * @param id ID of the entity
+     */
+    public synchronized void remove(String id) {
+        Set<String> words = wordsOf.remove(id);
+        if (words == null) {
+            return;
+        }
+        int[] fieldLengths = lengths.remove(id);
+        for (int field = 0; field < fieldLengths.length; field++) {
+            totalLengths[field] -= fieldLengths[field];
+        }
+        for (String word : words) {
+            Map<String, int[]> entities = postings.get(word);
+            entities.remove(id);
+            if (entities.isEmpty()) {
+                postings.remove(word);
+            }
+        }
+    }
+    
+    /**
+     * Finds the entities best matching any of the words of a query
+     * @param query Words to look for
+     * @param limit Maximum number of entities to return
+     * @return IDs of the best matching entities, best first
+     */
+    public synchronized List<String> search(String query, int limit) {
+        int count = lengths.size();
+        if (limit <= 0 || count == 0) {
+            return Collections.emptyList();
+        }
+        double[] averageLengths = new double[weights.length];
+        for (int field = 0; field < weights.length; field++) {
+            averageLengths[field] = Math.max(1.0, (double) totalLengths[field] / count);
+        }
+        
+        Map<String, Double> scores = new HashMap<>();
+        for (String word : new LinkedHashSet<>(TextFolding.tokenize(query))) {
+            Map<String, int[]> entities = postings.get(word);
+            if (entities == null) {
+                continue;
+            }
+            int df = entities.size();
+            double idf = Math.log(1 + (count - df + 0.5) / (df + 0.5));
+            for (Map.Entry<String, int[]> entry : entities.entrySet()) {
+                int[] frequencies = entry.getValue();
+                int[] fieldLengths = lengths.get(entry.getKey());
+                double score = 0;
+                for (int field = 0; field < weights.length; field++) {
+                    int tf = frequencies[field];
+                    if (tf > 0) {
+                        double norm = K1 * (1 - B + B * fieldLengths[field] / averageLengths[field]);
+                        score += weights[field] * tf * (K1 + 1) / (tf + norm);
+                    }
+                }
+                scores.merge(entry.getKey(), idf * score, Double::sum);
+            }
+        }
+        
+        // Weakest of the best seen so far on top, to be evicted first
+        PriorityQueue<Map.Entry<String, Double>> best = new PriorityQueue<>(limit + 1, BY_SCORE);
+        for (Map.Entry<String, Double> entry : scores.entrySet()) {
+            if (best.size() < limit) {
+                best.add(entry);
+            } else if (BY_SCORE.compare(entry, best.peek()) > 0) {
+                best.poll();
+                best.add(entry);
+            }
+        }
+        List<String> result = new ArrayList<>(best.size());
+        while (!best.isEmpty()) {
+            result.add(best.poll().getKey());
+        }
+        Collections.reverse(result);
+        return result;
+    }
+}
@@ -0,0 +1,100 @@
+package com.library.index;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Queue of entities ordered by due date, bucketed by day. Finding or
+ * taking everything due before a date only visits the buckets before it,
+ * so its cost depends on how many entities are due, not on the queue size.
+ * All methods are synchronized, so polling never hands out an entity twice.
+ */
+public class DueDateQueue {
+    private final NavigableMap<Long, Set<String>> buckets = new TreeMap<>();
+    private final Map<String, Long> dayOf = new HashMap<>();
+    
+    /**
+     * Schedules an entity, moving it if it was already scheduled on another day
+     * @param id ID of the entity
+     * @param dueDate Date the entity is due
+     */
+    public synchronized void schedule(String id, LocalDate dueDate) {
+        long day = dueDate.toEpochDay();
+        Long previous = dayOf.put(id, day);
+        if (previous != null) {
+            if (previous == day) {
+                return;
+            }
+            removeFromBucket(previous, id);
+        }
+        buckets.computeIfAbsent(day, d -> new LinkedHashSet<>()).add(id);
+    }
+    
+    /**
+     * Removes an entity from the queue
+     * @param id ID of the entity
+     */
+    public synchronized void cancel(String id) {
+        Long day = dayOf.remove(id);
+        if (day != null) {
+            removeFromBucket(day, id);
+        }
+    }
+    
+    /**
+     * Gets the entities due before a date
+     * @param date Date to compare with
+     * @return IDs of entities due strictly before the date, earliest first
+     */
+    public synchronized List<String> dueBefore(LocalDate date) {
+        List<String> due = new ArrayList<>();
+        for (Set<String> bucket : buckets.headMap(date.toEpochDay(), false).values()) {
+            due.addAll(bucket);
+        }
+        return due;
+    }
+    
+    /**
+     * Takes the entities due before a date off the queue
+     * @param date Date to compare with
+     * @return IDs of entities that were due strictly before the date, earliest first
+     */
+    public synchronized List<String> pollDueBefore(LocalDate date) {
+        List<String> due = new ArrayList<>();
+        Iterator<Set<String>> expired = buckets.headMap(date.toEpochDay(), false).values().iterator();
+        while (expired.hasNext()) {
+            for (String id : expired.next()) {
+                dayOf.remove(id);
+                due.add(id);
+            }
+            expired.remove();
+        }
+        return due;
+    }
+    
+    /**
+     * Gets the number of scheduled entities
+     * @return Number of entities
+     */
+    public synchronized int size() {
+        return dayOf.size();
+    }
+    
+    private void removeFromBucket(long day, String id) {
+        Set<String> bucket = buckets.get(day);
+        if (bucket != null) {
+            bucket.remove(id);
+            if (bucket.isEmpty()) {
+                buckets.remove(day);
+            }
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.library.index;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Secondary index from the value of an enum field (status, category, ...)
+ * to the IDs of the entities holding it. Lookups cost as much as the
+ * entities they return, and counts are constant time. Safe for concurrent
+ * use; lookups return a copy of the IDs.
+ * @param <E> Type of the indexed enum
+ */
+public class EnumIndex<E extends Enum<E>> {
+    private final Map<E, Set<String>> entities;
+    private final Map<String, E> valueOf = new HashMap<>();
+    
+    /**
+     * Creates an empty index
+     * @param type Class of the indexed enum
+     */
+    public EnumIndex(Class<E> type) {
+        this.entities = new EnumMap<>(type);
+        for (E value : type.getEnumConstants()) {
+            entities.put(value, new LinkedHashSet<>());
+        }
+    }
+    
+    /**
+     * Indexes the value an entity has now, moving it from any value it had before
+     * @param id ID of the entity
+     * @param value Current value, may be null
+     */
+    public synchronized void put(String id, E value) {
+        E previous = value != null ? valueOf.put(id, value) : valueOf.remove(id);
+        if (previous == value) {
+            return;
+        }
+        if (previous != null) {
+            entities.get(previous).remove(id);
+        }
+        if (value != null) {
+            entities.get(value).add(id);
+        }
+    }
+    
+    /**
+     * Removes an entity from the index
+     * @param id ID of the entity
+     */
+    public synchronized void remove(String id) {
+        put(id, null);
+    }
+    
+    /**
+     * Gets the entities that have a value
+     * @param value Value to look up
+     * @return IDs of the entities
+     */
+    public synchronized Set<String> get(E value) {
+        return new LinkedHashSet<>(entities.get(value));
+    }
+    
+    /**
+     * Counts the entities that have a value
+     * @param value Value to count
+     * @return Number of entities
+     */
+    public synchronized int count(E value) {
+        return entities.get(value).size();
+    }
+}
@@ -0,0 +1,235 @@
+package com.library.index;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Typo-tolerant word index. The distinct folded words (see {@link TextFolding})
+ * of the indexed texts are kept in a BK-tree, a tree where each child sits at
+ * its edit distance from its parent, so the triangle inequality rules out
+ * whole subtrees when looking for words near a misspelled one. An entity
+ * matches a query when every query word is within the allowed distance of
+ * one of its words. All methods are synchronized.
+ */
+public class FuzzyIndex {
+    private Node root;
+    // Words no entity uses any more keep an empty entry, as their nodes are still in the tree
+    private final Map<String, Set<String>> postings = new HashMap<>();
+    private final Map<String, Set<String>> wordsOf = new HashMap<>();
+    private int deadWords;
+    
+    /**
+     * Indexes the words of an entity, replacing whatever was indexed for it before
+     * @param id ID of the entity
+     * @param text Text to index, may be null
+     */
+    public synchronized void add(String id, String text) {
+        remove(id);
+        Set<String> words = new HashSet<>(TextFolding.tokenize(text));
+        if (words.isEmpty()) {
+            return;
+        }
+        wordsOf.put(id, words);
+        for (String word : words) {
+            Set<String> ids = postings.get(word);
+            if (ids == null) {
+                ids = new LinkedHashSet<>();
+                postings.put(word, ids);
+                insert(word);
+            } else if (ids.isEmpty()) {
+                deadWords--;
+            }
+            ids.add(id);
+        }
+    }
+    
+    /**
+     * Removes an entity from the index. Words no entity uses any more stay in
+     * the tree, as a BK-tree can't drop a node without rebuilding what lies
+     * below it, but are never reported; the tree is rebuilt from the words in
+     * use once the unused ones outnumber half of them.
+     * @param id ID of the entity
+     */
+    public synchronized void remove(String id) {
+        Set<String> words = wordsOf.remove(id);
+        if (words == null) {
+            return;
+        }
+        for (String word : words) {
+            Set<String> ids = postings.get(word);
+            ids.remove(id);
+            if (ids.isEmpty()) {
+                deadWords++;
+            }
+        }
+        if (deadWords > (postings.size() - deadWords) / 2) {
+            rebuild();
+        }
+    }
+    
+    /**
+     * Finds the entities matching every word of a query within an edit distance
+     * @param query Words to look for
+     * @param maxDistance Maximum number of inserted, deleted or replaced
+     *        characters per word; negative to scale with each word's length
+     * @return IDs of matching entities, closest matches first
+     */
+    public synchronized List<String> search(String query, int maxDistance) {
+        Map<String, Integer> distances = null;
+        for (String word : new LinkedHashSet<>(TextFolding.tokenize(query))) {
+            int limit = maxDistance >= 0 ? maxDistance : defaultDistance(word);
+            Map<String, Integer> matches = new HashMap<>();
+            for (Map.Entry<String, Integer> near : nearWords(word, limit).entrySet()) {
+                for (String id : postings.get(near.getKey())) {
+                    matches.merge(id, near.getValue(), Math::min);
+                }
+            }
+            if (distances == null) {
+                distances = matches;
+            } else {
+                // Keep entities matching every word, adding up how far off they are
+                distances.keySet().retainAll(matches.keySet());
+                for (Map.Entry<String, Integer> entry : distances.entrySet()) {
+                    entry.setValue(entry.getValue() + matches.get(entry.getKey()));
+                }
+            }
+            if (distances.isEmpty()) {
+                break;
+            }
+        }
+        if (distances == null) {
+            return new ArrayList<>();
+        }
+        List<Map.Entry<String, Integer>> ranked = new ArrayList<>(distances.entrySet());
+        ranked.sort(Map.Entry.comparingByValue(Comparator.naturalOrder()));
+        List<String> result = new ArrayList<>(ranked.size());
+        for (Map.Entry<String, Integer> entry : ranked) {
+            result.add(entry.getKey());
+        }
+        return result;
+    }
+    
+    /**
+     * Gets the allowed distance for a word when none is given: exact for short
+     * words, where a single typo already yields many unrelated words
+     * @param word Folded word
+     * @return Maximum edit distance
+     */
+    public static int defaultDistance(String word) {
+        if (word.length() <= 3) {
+            return 0;
+        }
+        return word.length() <= 6 ? 1 : 2;
+    }
+    
+    /**
+     * Collects the indexed words still in use within a distance of a word
+     */
+    private Map<String, Integer> nearWords(String word, int limit) {
+        Map<String, Integer> near = new HashMap<>();
+        if (root == null) {
+            return near;
+        }
+        Deque<Node> pending = new ArrayDeque<>();
+        pending.push(root);
+        while (!pending.isEmpty()) {
+            Node node = pending.pop();
+            // Beyond this bound neither the node nor any of its children can match
+            int distance = distance(word, node.word, node.farthestChild + limit);
+            if (distance <= limit && !postings.get(node.word).isEmpty()) {
+                near.put(node.word, distance);
+            }
+            // Only children between distance - limit and distance + limit can be close enough
+            for (int d = Math.max(1, distance - limit); d <= distance + limit; d++) {
+                Node child = node.children.get(d);
+                if (child != null) {
+                    pending.push(child);
+                }
+            }
+        }
+        return near;
+    }
+    
+    /**
+     * Rebuilds the tree from the words still in use, dropping the others
+     */
+    private void rebuild() {
+        postings.values().removeIf(Set::isEmpty);
+        deadWords = 0;
+        root = null;
+        for (String word : postings.keySet()) {
+            insert(word);
+        }
+    }
+    
+    private void insert(String word) {
+        if (root == null) {
+            root = new Node(word);
+            return;
+        }
+        Node node = root;
+        while (true) {
+            int distance = distance(word, node.word, Integer.MAX_VALUE);
+            Node child = node.children.get(distance);
+            if (child == null) {
+                node.children.put(distance, new Node(word));
+                node.farthestChild = Math.max(node.farthestChild, distance);
+                return;
+            }
+            node = child;
+        }
+    }
+    
+    /**
+     * Computes the Levenshtein distance between two words, giving up as soon
+     * as it is known to exceed a bound
+     * @return Distance, or some value above the bound if it is exceeded
+     */
+    private static int distance(String a, String b, int bound) {
+        if (Math.abs(a.length() - b.length()) > bound) {
+            return bound + 1;
+        }
+        int[] previous = new int[b.length() + 1];
+        int[] current = new int[b.length() + 1];
+        for (int j = 0; j <= b.length(); j++) {
+            previous[j] = j;
+        }
+        for (int i = 1; i <= a.length(); i++) {
+            current[0] = i;
+            int rowMinimum = i;
+            for (int j = 1; j <= b.length(); j++) {
+                int cost = a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
+                current[j] = Math.min(Math.min(current[j - 1] + 1, previous[j] + 1), previous[j - 1] + cost);
+                rowMinimum = Math.min(rowMinimum, current[j]);
+            }
+            if (rowMinimum > bound) {
+                return bound + 1;
+            }
+            int[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+        return previous[b.length()];
+    }
+    
+    /**
+     * Word in the tree, with its children keyed by their distance from it
+     */
+    private static class Node {
+        private final String word;
+        private final Map<Integer, Node> children = new HashMap<>();
+        private int farthestChild;
+        
+        private Node(String word) {
+            this.word = word;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package com.library.index;
+
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * Hash index from ISBN to the IDs of the copies carrying it. ISBNs are
+ * normalized first, so hyphenated, spaced and plain forms of an ISBN, and a
+ * valid ISBN-10 and its ISBN-13 equivalent, all find the same copies.
+ */
+public class IsbnIndex extends KeyIndex {
+    private static final Pattern PREFIX = Pattern.compile("^\\s*ISBN(?:-?1[03])?:?", Pattern.CASE_INSENSITIVE);
+    private static final Pattern SEPARATORS = Pattern.compile("[\\s-]+");
+    private static final Pattern ISBN_10 = Pattern.compile("\\d{9}[\\dX]");
+    
+    /**
+     * Creates an empty index
+     */
+    public IsbnIndex() {
+        super(IsbnIndex::normalize);
+    }
+    
+    /**
+     * Normalizes an ISBN: drops an "ISBN" label, hyphens and spaces, and turns
+     * a valid ISBN-10 into ISBN-13. Anything else is kept as typed, upper-cased,
+     * so that unusual or mistyped values still only match themselves.
+     * @param isbn ISBN to normalize
+     * @return Normalized ISBN, empty if isbn is null
+     */
+    public static String normalize(String isbn) {
+        if (isbn == null) {
+            return "";
+        }
+        String compact = SEPARATORS.matcher(PREFIX.matcher(isbn).replaceFirst("")).replaceAll("")
+                                   .toUpperCase(Locale.ROOT);
+        if (ISBN_10.matcher(compact).matches() && isValidIsbn10(compact)) {
+            String body = "978" + compact.substring(0, 9);
+            return body + isbn13CheckDigit(body);
+        }
+        return compact;
+    }
+    
+    private static boolean isValidIsbn10(String isbn) {
+        int sum = 0;
+        for (int i = 0; i < 10; i++) {
+            char c = isbn.charAt(i);
+            int digit = c == 'X' ? 10 : c - '0';
+            sum += digit * (10 - i);
+        }
+        return sum % 11 == 0;
+    }
+    
+    private static char isbn13CheckDigit(String body) {
+        int sum = 0;
+        for (int i = 0; i < 12; i++) {
+            sum += (body.charAt(i) - '0') * (i % 2 == 0 ? 1 : 3);
+        }
+        return (char) ('0' + (10 - sum % 10) % 10);
+    }
+}
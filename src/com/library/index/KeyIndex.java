@@ -0,0 +1,114 @@
+package com.library.index;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.UnaryOperator;
+
+/**
+ * Hash index from a normalized key (ISBN, email, ...) to the IDs of the
+ * entities having it. Keys are normalized the same way when indexing and
+ * when looking up, so lookups ignore whatever the normalizer discards.
+ * Several entities may share a key; callers that want keys to be unique
+ * check with {@link #findOther(String, String)} before indexing, and must
+ * hold their own lock across the check and the update. The index itself is
+ * synchronized, and lookups return copies.
+ */
+public class KeyIndex {
+    private final UnaryOperator<String> normalizer;
+    private final Map<String, Set<String>> entities = new HashMap<>();
+    private final Map<String, String> keyOf = new HashMap<>();
+    
+    /**
+     * Creates an empty index
+     * @param normalizer Turns a key as entered into the form it is indexed under
+     */
+    public KeyIndex(UnaryOperator<String> normalizer) {
+        this.normalizer = normalizer;
+    }
+    
+    /**
+     * Indexes the key of an entity, replacing whatever was indexed for it before
+     * @param id ID of the entity
+     * @param key Key of the entity, may be null
+     */
+    public synchronized void add(String id, String key) {
+        remove(id);
+        if (key == null) {
+            return;
+        }
+        String normalized = normalizer.apply(key);
+        entities.computeIfAbsent(normalized, k -> new LinkedHashSet<>()).add(id);
+        keyOf.put(id, normalized);
+    }
+    
+    /**
+     * Removes an entity from the index
+     * @param id ID of the entity
+     */
+    public synchronized void remove(String id) {
+        String normalized = keyOf.remove(id);
+        if (normalized == null) {
+            return;
+        }
+        Set<String> ids = entities.get(normalized);
+        ids.remove(id);
+        if (ids.isEmpty()) {
+            entities.remove(normalized);
+        }
+    }
+    
+    /**
+     * Gets the entities with a key
+     * @param key Key in any form the normalizer accepts
+     * @return IDs of the entities, in the order they were indexed
+     */
+    public synchronized Set<String> get(String key) {
+        if (key == null) {
+            return Collections.emptySet();
+        }
+        Set<String> ids = entities.get(normalizer.apply(key));
+        return ids != null ? new LinkedHashSet<>(ids) : Collections.emptySet();
+    }
+    
+    /**
+     * Finds an entity other than the given one that already has a key
+     * @param key Key in any form the normalizer accepts
+     * @param id ID of the entity to ignore
+     * @return ID of another entity with the key, or null if there is none
+     */
+    public synchronized String findOther(String key, String id) {
+        for (String other : get(key)) {
+            if (!other.equals(id)) {
+                return other;
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Tells whether an entity is indexed under a key
+     * @param id ID of the entity
+     * @param key Key in any form the normalizer accepts, may be null
+     * @return true if the entity's indexed key is the same, once normalized
+     */
+    public synchronized boolean hasKey(String id, String key) {
+        String indexed = keyOf.get(id);
+        return key == null ? indexed == null : normalizer.apply(key).equals(indexed);
+    }
+    
+    /**
+     * Gets a key shared by more than one indexed entity, if any
+     * @return Normalized key, or null if every non-empty key is unique
+     */
+    public synchronized String findDuplicate() {
+        for (Map.Entry<String, Set<String>> entry : entities.entrySet()) {
+            if (!entry.getKey().isEmpty() && entry.getValue().size() > 1) {
+                return entry.getKey();
+            }
+        }
+        return null;
+    }
+}
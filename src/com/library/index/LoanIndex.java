@@ -0,0 +1,91 @@
+package com.library.index;
+
+import com.library.model.Transaction;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Index of transactions by the member who borrowed and the book that was
+ * lent, so that a member's or a book's loans are found without scanning
+ * every transaction. Counts per member are constant time. Synchronized, so
+ * it can be shared by concurrent checkouts; lookups return copies.
+ */
+public class LoanIndex {
+    private final Map<String, Set<String>> byMember = new HashMap<>();
+    private final Map<String, Set<String>> byBook = new HashMap<>();
+    
+    /**
+     * Adds a transaction to the index
+     * @param transaction Transaction to add
+     */
+    public synchronized void add(Transaction transaction) {
+        byMember.computeIfAbsent(transaction.getMemberId(), k -> new LinkedHashSet<>()).add(transaction.getId());
+        byBook.computeIfAbsent(transaction.getBookId(), k -> new LinkedHashSet<>()).add(transaction.getId());
+    }
+    
+    /**
+     * Removes a transaction from the index
+     * @param transaction Transaction to remove
+     */
+    public synchronized void remove(Transaction transaction) {
+        removeFrom(byMember, transaction.getMemberId(), transaction.getId());
+        removeFrom(byBook, transaction.getBookId(), transaction.getId());
+    }
+    
+    /**
+     * Gets the transactions of a member
+     * @param memberId ID of member
+     * @return IDs of the member's transactions, in the order they were indexed
+     */
+    public synchronized Set<String> getByMember(String memberId) {
+        return lookup(byMember, memberId);
+    }
+    
+    /**
+     * Gets the transactions of a book
+     * @param bookId ID of book
+     * @return IDs of the book's transactions, in the order they were indexed
+     */
+    public synchronized Set<String> getByBook(String bookId) {
+        return lookup(byBook, bookId);
+    }
+    
+    /**
+     * Counts the transactions of a member
+     * @param memberId ID of member
+     * @return Number of transactions
+     */
+    public synchronized int countByMember(String memberId) {
+        Set<String> ids = byMember.get(memberId);
+        return ids != null ? ids.size() : 0;
+    }
+    
+    /**
+     * Counts the transactions of a book
+     * @param bookId ID of book
+     * @return Number of transactions
+     */
+    public synchronized int countByBook(String bookId) {
+        Set<String> ids = byBook.get(bookId);
+        return ids != null ? ids.size() : 0;
+    }
+    
+    private static Set<String> lookup(Map<String, Set<String>> index, String key) {
+        Set<String> ids = index.get(key);
+        return ids != null ? new LinkedHashSet<>(ids) : Collections.emptySet();
+    }
+    
+    private static void removeFrom(Map<String, Set<String>> index, String key, String id) {
+        Set<String> ids = index.get(key);
+        if (ids != null) {
+            ids.remove(id);
+            if (ids.isEmpty()) {
+                index.remove(key);
+            }
+        }
+    }
+}
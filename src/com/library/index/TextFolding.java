@@ -0,0 +1,44 @@
+package com.library.index;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * Utility class for normalizing free text before it is indexed, so that
+ * lookups ignore case and accents (an accented "E" matches a plain "e")
+ */
+public class TextFolding {
+    private static final Pattern MARKS = Pattern.compile("\\p{M}+");
+    private static final Pattern SEPARATORS = Pattern.compile("[^\\p{L}\\p{N}]+");
+    
+    /**
+     * Folds a text to lower case without diacritics
+     * @param text Text to fold
+     * @return Folded text, empty if text is null
+     */
+    public static String fold(String text) {
+        if (text == null) {
+            return "";
+        }
+        String decomposed = Normalizer.normalize(text, Normalizer.Form.NFD);
+        return MARKS.matcher(decomposed).replaceAll("").toLowerCase(Locale.ROOT);
+    }
+    
+    /**
+     * Folds a text and splits it into words on anything that isn't a letter or digit
+     * @param text Text to split
+     * @return Folded words in order, possibly repeated
+     */
+    public static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<>();
+        for (String token : SEPARATORS.split(fold(text))) {
+            if (!token.isEmpty()) {
+                tokens.add(token);
+            }
+        }
+        return tokens;
+    }
+}
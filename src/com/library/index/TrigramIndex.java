@@ -0,0 +1,127 @@
+package com.library.index;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Inverted index from the trigrams (three-character substrings) of a text
+ * field to the IDs of the entities holding it, for case-insensitive substring
+ * search. A query is answered by intersecting the posting lists of its own
+ * trigrams, starting from the shortest, and checking the few candidates
+ * left against their indexed text. Queries shorter than a trigram check
+ * the indexed text of every entity, which is already lower-cased.
+ * Text is lower-cased with {@link String#toLowerCase()}, the same way a
+ * plain scan with contains would, so both find exactly the same entities.
+ * All methods are synchronized.
+ */
+public class TrigramIndex {
+    private static final int GRAM_LENGTH = 3;
+    
+    private final Map<Long, Set<String>> postings = new HashMap<>();
+    private final Map<String, String> indexedText = new HashMap<>();
+    
+    /**
+     * Indexes the text of an entity, replacing whatever was indexed for it before
+     * @param id ID of the entity
+     * @param text Text to index, may be null
+     */
+    public synchronized void add(String id, String text) {
+        remove(id);
+        if (text == null) {
+            return;
+        }
+        String folded = text.toLowerCase();
+        indexedText.put(id, folded);
+        for (long gram : grams(folded)) {
+            postings.computeIfAbsent(gram, g -> new HashSet<>()).add(id);
+        }
+    }
+    
+    /**
+     * Removes an entity from the index
+     * @param id ID of the entity
+     */
+    public synchronized void remove(String id) {
+        String folded = indexedText.remove(id);
+        if (folded == null) {
+            return;
+        }
+        for (long gram : grams(folded)) {
+            Set<String> ids = postings.get(gram);
+            if (ids != null) {
+                ids.remove(id);
+                if (ids.isEmpty()) {
+                    postings.remove(gram);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Finds the entities whose text contains a query, ignoring case
+     * @param query Substring to look for
+     * @return IDs of matching entities
+     */
+    public synchronized List<String> search(String query) {
+        String folded = query.toLowerCase();
+        if (folded.length() < GRAM_LENGTH) {
+            List<String> matches = new ArrayList<>();
+            for (Map.Entry<String, String> entry : indexedText.entrySet()) {
+                if (entry.getValue().contains(folded)) {
+                    matches.add(entry.getKey());
+                }
+            }
+            return matches;
+        }
+        
+        List<Set<String>> lists = new ArrayList<>();
+        for (long gram : grams(folded)) {
+            Set<String> ids = postings.get(gram);
+            if (ids == null) {
+                return Collections.emptyList();
+            }
+            lists.add(ids);
+        }
+        lists.sort(Comparator.comparingInt(Set::size));
+        
+        List<String> matches = new ArrayList<>();
+        candidates:
+        for (String id : lists.get(0)) {
+            for (int i = 1; i < lists.size(); i++) {
+                if (!lists.get(i).contains(id)) {
+                    continue candidates;
+                }
+            }
+            // Sharing every trigram doesn't guarantee they occur in sequence
+            if (indexedText.get(id).contains(folded)) {
+                matches.add(id);
+            }
+        }
+        return matches;
+    }
+    
+    /**
+     * Gets the number of indexed entities
+     * @return Number of entities
+     */
+    public synchronized int size() {
+        return indexedText.size();
+    }
+    
+    /**
+     * Gets the distinct trigrams of a lower-cased text, each packed into a long
+     */
+    private static Set<Long> grams(String folded) {
+        Set<Long> grams = new HashSet<>();
+        for (int i = 0; i + GRAM_LENGTH <= folded.length(); i++) {
+            grams.add(((long) folded.charAt(i) << 32) | ((long) folded.charAt(i + 1) << 16) | folded.charAt(i + 2));
+        }
+        return grams;
+    }
+}
@@ -1,6 +1,8 @@
 package com.library.model;
 
 import java.io.Serializable;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.util.UUID;
 
 /**
@@ -9,14 +11,25 @@ import java.util.UUID;
 public class Book implements Serializable {
     private static final long serialVersionUID = 1L;
     
+    private static final VarHandle STATUS;
+    
+    static {
+        try {
+            STATUS = MethodHandles.lookup().findVarHandle(Book.class, "status", BookStatus.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+    
     private String id;
     private String title;
     private String author;
     private String isbn;
     private String publisher;
     private int publicationYear;
-    private BookStatus status;
+    private volatile BookStatus status;
     private BookCategory category;
+    private int version;
     
     public Book() {
         this.id = UUID.randomUUID().toString();
@@ -34,6 +47,31 @@ public class Book implements Serializable {
         this.category = category;
     }
     
+    /**
+     * Restores a book with all of its persisted fields
+     */
+    public Book(String id, String title, String author, String isbn, String publisher,
+                int publicationYear, BookStatus status, BookCategory category) {
+        this.id = id;
+        this.title = title;
+        this.author = author;
+        this.isbn = isbn;
+        this.publisher = publisher;
+        this.publicationYear = publicationYear;
+        this.status = status;
+        this.category = category;
+    }
+    
+    /**
+     * Creates a copy of a book, to be edited without changing the stored one
+     * @param other Book to copy
+     */
+    public Book(Book other) {
+        this(other.id, other.title, other.author, other.isbn, other.publisher,
+             other.publicationYear, other.status, other.category);
+        this.version = other.version;
+    }
+    
     // Getters and Setters
     public String getId() {
         return id;
@@ -87,6 +125,19 @@ public class Book implements Serializable {
         this.status = status;
     }
     
+    /**
+     * Changes the status only if it is still the expected one, as one atomic
+     * step, so that of several threads claiming the same book exactly one
+     * succeeds. This only decides races between holders of this instance;
+     * storage engines handing out copies need {@code BookService} to order them.
+     * @param from Status the book must have
+     * @param to New status
+     * @return true if the status was changed, false if the book had another status
+     */
+    public boolean tryTransition(BookStatus from, BookStatus to) {
+        return STATUS.compareAndSet(this, from, to);
+    }
+    
     public BookCategory getCategory() {
         return category;
     }
@@ -95,6 +146,18 @@ public class Book implements Serializable {
         this.category = category;
     }
     
+    /**
+     * Gets the version of the book
+     * @return Version, 0 for a book never changed since it was created
+     */
+    public int getVersion() {
+        return version;
+    }
+    
+    public void setVersion(int version) {
+        this.version = version;
+    }
+    
     @Override
     public String toString() {
         return String.format("Book [ID: %s, Title: %s, Author: %s, ISBN: %s, Status: %s]", 
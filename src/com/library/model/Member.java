@@ -18,6 +18,7 @@ public class Member implements Serializable {
     private LocalDate memberSince;
     private MembershipType membershipType;
     private boolean active;
+    private int version;
     
     public Member() {
         this.id = UUID.randomUUID().toString();
@@ -34,6 +35,31 @@ public class Member implements Serializable {
         this.membershipType = membershipType;
     }
     
+    /**
+     * Restores a member with all of its persisted fields
+     */
+    public Member(String id, String name, String email, String phone, String address,
+                  LocalDate memberSince, MembershipType membershipType, boolean active) {
+        this.id = id;
+        this.name = name;
+        this.email = email;
+        this.phone = phone;
+        this.address = address;
+        this.memberSince = memberSince;
+        this.membershipType = membershipType;
+        this.active = active;
+    }
+    
+    /**
+     * Creates a copy of a member, to be edited without changing the stored one
+     * @param other Member to copy
+     */
+    public Member(Member other) {
+        this(other.id, other.name, other.email, other.phone, other.address,
+             other.memberSince, other.membershipType, other.active);
+        this.version = other.version;
+    }
+    
     // Getters and Setters
     public String getId() {
         return id;
@@ -91,6 +117,18 @@ public class Member implements Serializable {
         this.active = active;
     }
     
+    /**
+     * Gets the version of the member
+     * @return Version, 0 for a member never changed since it was created
+     */
+    public int getVersion() {
+        return version;
+    }
+    
+    public void setVersion(int version) {
+        this.version = version;
+    }
+    
     @Override
     public String toString() {
         return String.format("Member [ID: %s, Name: %s, Email: %s, Type: %s, Status: %s]", 
@@ -18,6 +18,7 @@ public class Transaction implements Serializable {
     private LocalDate returnDate;
     private double fine;
     private TransactionStatus status;
+    private int version;
     
     public Transaction() {
         this.id = UUID.randomUUID().toString();
@@ -32,6 +33,21 @@ public class Transaction implements Serializable {
         this.dueDate = borrowDate.plusDays(loanDays);
     }
     
+    /**
+     * Restores a transaction with all of its persisted fields
+     */
+    public Transaction(String id, String bookId, String memberId, LocalDate borrowDate,
+                       LocalDate dueDate, LocalDate returnDate, double fine, TransactionStatus status) {
+        this.id = id;
+        this.bookId = bookId;
+        this.memberId = memberId;
+        this.borrowDate = borrowDate;
+        this.dueDate = dueDate;
+        this.returnDate = returnDate;
+        this.fine = fine;
+        this.status = status;
+    }
+    
     // Getters and Setters
     public String getId() {
         return id;
@@ -65,6 +81,15 @@ public class Transaction implements Serializable {
         this.returnDate = returnDate;
     }
     
+    /**
+     * Checks whether the book has been brought back, whatever the final status
+     * (a late return keeps the OVERDUE status)
+     * @return true if the transaction has a return date, false otherwise
+     */
+    public boolean isReturned() {
+        return returnDate != null;
+    }
+    
     public double getFine() {
         return fine;
     }
@@ -81,6 +106,18 @@ public class Transaction implements Serializable {
         this.status = status;
     }
     
+    /**
+     * Gets the version of the transaction
+     * @return Version, 0 for a transaction never changed since it was created
+     */
+    public int getVersion() {
+        return version;
+    }
+    
+    public void setVersion(int version) {
+        this.version = version;
+    }
+    
     @Override
     public String toString() {
         return String.format("Transaction [ID: %s, Book ID: %s, Member ID: %s, Borrow Date: %s, Due Date: %s, Status: %s]", 
@@ -0,0 +1,260 @@
+package com.library.query;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Predicate;
+
+/**
+ * Filter of a query: comparisons of a field with a value, combined with
+ * AND, OR and NOT. Conditions are inspectable, so the planner can tell which
+ * comparisons an index can answer.
+ * @param <T> Type of entity
+ */
+public abstract class Condition<T> implements Predicate<T> {
+    
+    /**
+     * Operators a field can be compared with
+     */
+    public enum Operator {
+        EQUAL("="),
+        CONTAINS("contains"),
+        LESS_THAN("<"),
+        GREATER_THAN(">");
+        
+        private final String symbol;
+        
+        Operator(String symbol) {
+            this.symbol = symbol;
+        }
+        
+        public String getSymbol() {
+            return symbol;
+        }
+    }
+    
+    /**
+     * Matches entities whose field equals a value
+     * @param field Field to compare
+     * @param value Value to compare with
+     * @return Condition
+     */
+    public static <T, V> Condition<T> equalTo(Field<T, V> field, V value) {
+        return new Comparison<>(field, Operator.EQUAL, value);
+    }
+    
+    /**
+     * Matches entities whose text field contains a value, ignoring case
+     * @param field Field to compare
+     * @param text Text to look for
+     * @return Condition
+     */
+    public static <T> Condition<T> contains(Field<T, String> field, String text) {
+        return new Comparison<>(field, Operator.CONTAINS, text);
+    }
+    
+    /**
+     * Matches entities whose field is set and less than a value
+     * @param field Field to compare
+     * @param value Value to compare with
+     * @return Condition
+     */
+    public static <T, V extends Comparable<? super V>> Condition<T> lessThan(Field<T, V> field, V value) {
+        return new Comparison<>(field, Operator.LESS_THAN, value);
+    }
+    
+    /**
+     * Matches entities whose field is set and greater than a value
+     * @param field Field to compare
+     * @param value Value to compare with
+     * @return Condition
+     */
+    public static <T, V extends Comparable<? super V>> Condition<T> greaterThan(Field<T, V> field, V value) {
+        return new Comparison<>(field, Operator.GREATER_THAN, value);
+    }
+    
+    /**
+     * Matches entities matching every one of some conditions
+     * @param conditions Conditions to combine
+     * @return Condition
+     */
+    @SafeVarargs
+    public static <T> Condition<T> and(Condition<T>... conditions) {
+        List<Condition<T>> parts = new ArrayList<>(conditions.length);
+        for (Condition<T> condition : conditions) {
+            parts.add(condition);
+        }
+        return new And<>(parts);
+    }
+    
+    /**
+     * Matches entities matching at least one of some conditions
+     * @param conditions Conditions to combine
+     * @return Condition
+     */
+    @SafeVarargs
+    public static <T> Condition<T> or(Condition<T>... conditions) {
+        List<Condition<T>> parts = new ArrayList<>(conditions.length);
+        for (Condition<T> condition : conditions) {
+            parts.add(condition);
+        }
+        return new Or<>(parts);
+    }
+    
+    /**
+     * Matches entities not matching a condition
+     * @param condition Condition to negate
+     * @return Condition
+     */
+    public static <T> Condition<T> not(Condition<T> condition) {
+        return new Not<>(condition);
+    }
+    
+    /**
+     * Comparison of one field with a value; the only kind of condition an
+     * index can answer on its own
+     * @param <T> Type of entity
+     */
+    public static class Comparison<T> extends Condition<T> {
+        private final Field<T, ?> field;
+        private final Operator operator;
+        private final Object value;
+        
+        private Comparison(Field<T, ?> field, Operator operator, Object value) {
+            this.field = field;
+            this.operator = operator;
+            this.value = value;
+        }
+        
+        public Field<T, ?> getField() {
+            return field;
+        }
+        
+        public Operator getOperator() {
+            return operator;
+        }
+        
+        public Object getValue() {
+            return value;
+        }
+        
+        /**
+         * Checks whether this compares a given field with a given operator
+         * @param field Field to check for
+         * @param operator Operator to check for
+         * @return true if both match, false otherwise
+         */
+        public boolean is(Field<T, ?> field, Operator operator) {
+            return this.field == field && this.operator == operator;
+        }
+        
+        @Override
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        public boolean test(T entity) {
+            Object actual = field.get(entity);
+            switch (operator) {
+                case EQUAL:
+                    return Objects.equals(actual, value);
+                case CONTAINS:
+                    return actual != null && actual.toString().toLowerCase()
+                                                   .contains(String.valueOf(value).toLowerCase());
+                case LESS_THAN:
+                    return actual != null && ((Comparable) actual).compareTo(value) < 0;
+                case GREATER_THAN:
+                    return actual != null && ((Comparable) actual).compareTo(value) > 0;
+                default:
+                    throw new IllegalStateException("Unknown operator " + operator);
+            }
+        }
+        
+        @Override
+        public String toString() {
+            String shown = value instanceof String ? "'" + value + "'" : String.valueOf(value);
+            return field.getName() + " " + operator.getSymbol() + " " + shown;
+        }
+    }
+    
+    static class And<T> extends Condition<T> {
+        private final List<Condition<T>> conditions;
+        
+        private And(List<Condition<T>> conditions) {
+            this.conditions = Collections.unmodifiableList(conditions);
+        }
+        
+        List<Condition<T>> getConditions() {
+            return conditions;
+        }
+        
+        @Override
+        public boolean test(T entity) {
+            for (Condition<T> condition : conditions) {
+                if (!condition.test(entity)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        
+        @Override
+        public String toString() {
+            return join(conditions, " AND ");
+        }
+    }
+    
+    static class Or<T> extends Condition<T> {
+        private final List<Condition<T>> conditions;
+        
+        private Or(List<Condition<T>> conditions) {
+            this.conditions = Collections.unmodifiableList(conditions);
+        }
+        
+        List<Condition<T>> getConditions() {
+            return conditions;
+        }
+        
+        @Override
+        public boolean test(T entity) {
+            for (Condition<T> condition : conditions) {
+                if (condition.test(entity)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        
+        @Override
+        public String toString() {
+            return join(conditions, " OR ");
+        }
+    }
+    
+    static class Not<T> extends Condition<T> {
+        private final Condition<T> condition;
+        
+        private Not(Condition<T> condition) {
+            this.condition = condition;
+        }
+        
+        @Override
+        public boolean test(T entity) {
+            return !condition.test(entity);
+        }
+        
+        @Override
+        public String toString() {
+            return "NOT (" + condition + ")";
+        }
+    }
+    
+    private static <T> String join(List<Condition<T>> conditions, String separator) {
+        StringBuilder text = new StringBuilder("(");
+        for (int i = 0; i < conditions.size(); i++) {
+            if (i > 0) {
+                text.append(separator);
+            }
+            text.append(conditions.get(i));
+        }
+        return text.append(")").toString();
+    }
+}
@@ -0,0 +1,42 @@
+package com.library.query;
+
+import java.util.function.Function;
+
+/**
+ * Named field of an entity that queries can filter and sort on.
+ * The fields of books, members and transactions are listed in {@link Fields}.
+ * @param <T> Type of entity
+ * @param <V> Type of the field's value
+ */
+public class Field<T, V> {
+    private final String name;
+    private final Function<T, V> getter;
+    
+    /**
+     * Creates a field
+     * @param name Name shown in query plans
+     * @param getter Reads the field from an entity
+     */
+    public Field(String name, Function<T, V> getter) {
+        this.name = name;
+        this.getter = getter;
+    }
+    
+    public String getName() {
+        return name;
+    }
+    
+    /**
+     * Reads the field from an entity
+     * @param entity Entity to read
+     * @return Value of the field
+     */
+    public V get(T entity) {
+        return getter.apply(entity);
+    }
+    
+    @Override
+    public String toString() {
+        return name;
+    }
+}
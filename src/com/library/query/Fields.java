@@ -0,0 +1,37 @@
+package com.library.query;
+
+import com.library.model.Book;
+import com.library.model.Member;
+import com.library.model.Transaction;
+
+import java.time.LocalDate;
+
+/**
+ * Fields of books, members and transactions that queries can use
+ */
+public class Fields {
+    public static final Field<Book, String> BOOK_ID = new Field<>("id", Book::getId);
+    public static final Field<Book, String> BOOK_TITLE = new Field<>("title", Book::getTitle);
+    public static final Field<Book, String> BOOK_AUTHOR = new Field<>("author", Book::getAuthor);
+    public static final Field<Book, String> BOOK_ISBN = new Field<>("isbn", Book::getIsbn);
+    public static final Field<Book, String> BOOK_PUBLISHER = new Field<>("publisher", Book::getPublisher);
+    public static final Field<Book, Integer> BOOK_YEAR = new Field<>("publicationYear", Book::getPublicationYear);
+    public static final Field<Book, Book.BookStatus> BOOK_STATUS = new Field<>("status", Book::getStatus);
+    public static final Field<Book, Book.BookCategory> BOOK_CATEGORY = new Field<>("category", Book::getCategory);
+    
+    public static final Field<Member, String> MEMBER_ID = new Field<>("id", Member::getId);
+    public static final Field<Member, String> MEMBER_NAME = new Field<>("name", Member::getName);
+    public static final Field<Member, String> MEMBER_EMAIL = new Field<>("email", Member::getEmail);
+    public static final Field<Member, LocalDate> MEMBER_SINCE = new Field<>("memberSince", Member::getMemberSince);
+    public static final Field<Member, Member.MembershipType> MEMBER_TYPE = new Field<>("membershipType", Member::getMembershipType);
+    public static final Field<Member, Boolean> MEMBER_ACTIVE = new Field<>("active", Member::isActive);
+    
+    public static final Field<Transaction, String> TRANSACTION_ID = new Field<>("id", Transaction::getId);
+    public static final Field<Transaction, String> TRANSACTION_BOOK = new Field<>("bookId", Transaction::getBookId);
+    public static final Field<Transaction, String> TRANSACTION_MEMBER = new Field<>("memberId", Transaction::getMemberId);
+    public static final Field<Transaction, LocalDate> TRANSACTION_BORROW_DATE = new Field<>("borrowDate", Transaction::getBorrowDate);
+    public static final Field<Transaction, LocalDate> TRANSACTION_DUE_DATE = new Field<>("dueDate", Transaction::getDueDate);
+    public static final Field<Transaction, LocalDate> TRANSACTION_RETURN_DATE = new Field<>("returnDate", Transaction::getReturnDate);
+    public static final Field<Transaction, Double> TRANSACTION_FINE = new Field<>("fine", Transaction::getFine);
+    public static final Field<Transaction, Transaction.TransactionStatus> TRANSACTION_STATUS = new Field<>("status", Transaction::getStatus);
+}
@@ -0,0 +1,57 @@
+package com.library.query;
+
+import java.util.Collection;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Lookup of the entities matching a comparison in an index, with an
+ * estimate of how many it returns so the planner can pick the cheapest
+ * @param <T> Type of entity
+ */
+public class IndexLookup<T> {
+    private final String indexName;
+    private final int estimate;
+    private final Supplier<Collection<T>> fetch;
+    
+    /**
+     * Creates a lookup that is only run if the planner picks it
+     * @param indexName Name of the index, shown in query plans
+     * @param estimate Number of entities the lookup returns, or an upper bound
+     * @param fetch Runs the lookup
+     */
+    public IndexLookup(String indexName, int estimate, Supplier<Collection<T>> fetch) {
+        this.indexName = indexName;
+        this.estimate = estimate;
+        this.fetch = fetch;
+    }
+    
+    /**
+     * Creates a lookup from the IDs an index holds for a comparison; the
+     * entities are only loaded if the planner picks it
+     * @param indexName Name of the index, shown in query plans
+     * @param ids IDs of the matching entities
+     * @param resolver Loads the entities for the IDs
+     * @return Index lookup
+     */
+    public static <T> IndexLookup<T> ofIds(String indexName, Collection<String> ids,
+                                           Function<Collection<String>, Collection<T>> resolver) {
+        return new IndexLookup<>(indexName, ids.size(), () -> resolver.apply(ids));
+    }
+    
+    public String getIndexName() {
+        return indexName;
+    }
+    
+    public int getEstimate() {
+        return estimate;
+    }
+    
+    /**
+     * Runs the lookup
+     * @return Entities found
+     */
+    public Collection<T> fetch() {
+        return fetch.get();
+    }
+}
@@ -0,0 +1,112 @@
+package com.library.query;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Query over one type of entity: an optional filter, sort order and limit.
+ * Run it through the service owning the entities, which plans it against
+ * the indexes it maintains.
+ * @param <T> Type of entity
+ */
+public class Query<T> {
+    private Condition<T> condition;
+    private final List<Field<T, ?>> sortFields = new ArrayList<>();
+    private final List<Boolean> sortDescending = new ArrayList<>();
+    private int limit = -1;
+    
+    /**
+     * Creates a query matching every entity
+     * @return Query
+     */
+    public static <T> Query<T> all() {
+        return new Query<>();
+    }
+    
+    /**
+     * Creates a query matching entities that satisfy a condition
+     * @param condition Condition to satisfy
+     * @return Query
+     */
+    public static <T> Query<T> where(Condition<T> condition) {
+        Query<T> query = new Query<>();
+        query.condition = condition;
+        return query;
+    }
+    
+    /**
+     * Sorts results by a field, in ascending order with missing values last.
+     * Further calls break ties.
+     * @param field Field to sort by
+     * @return This query
+     */
+    public <V extends Comparable<? super V>> Query<T> orderBy(Field<T, V> field) {
+        sortFields.add(field);
+        sortDescending.add(false);
+        return this;
+    }
+    
+    /**
+     * Sorts results by a field, in descending order with missing values last
+     * @param field Field to sort by
+     * @return This query
+     */
+    public <V extends Comparable<? super V>> Query<T> orderByDescending(Field<T, V> field) {
+        sortFields.add(field);
+        sortDescending.add(true);
+        return this;
+    }
+    
+    /**
+     * Returns at most a given number of results
+     * @param limit Maximum number of results
+     * @return This query
+     */
+    public Query<T> limit(int limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("Limit cannot be negative");
+        }
+        this.limit = limit;
+        return this;
+    }
+    
+    public Condition<T> getCondition() {
+        return condition;
+    }
+    
+    public int getLimit() {
+        return limit;
+    }
+    
+    boolean isSorted() {
+        return !sortFields.isEmpty();
+    }
+    
+    /**
+     * Builds the comparator for the sort order
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    Comparator<T> comparator() {
+        Comparator<T> comparator = (a, b) -> 0;
+        for (int i = 0; i < sortFields.size(); i++) {
+            Field<T, ?> field = sortFields.get(i);
+            Comparator<Comparable> order = sortDescending.get(i)
+                    ? Comparator.<Comparable>reverseOrder() : Comparator.<Comparable>naturalOrder();
+            comparator = comparator.thenComparing(entity -> (Comparable) field.get(entity),
+                                                  Comparator.nullsLast(order));
+        }
+        return comparator;
+    }
+    
+    /**
+     * Describes the sort order
+     */
+    String describeOrder() {
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; i < sortFields.size(); i++) {
+            keys.add(sortFields.get(i).getName() + (sortDescending.get(i) ? " desc" : " asc"));
+        }
+        return String.join(", ", keys);
+    }
+}
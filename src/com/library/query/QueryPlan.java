@@ -0,0 +1,225 @@
+package com.library.query;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Plan for running a query: how the candidate entities are found (a full
+ * scan, an index lookup or a union of lookups), then the filter, sort and
+ * limit applied to them. Candidates are always checked against the whole
+ * condition, so an index only has to narrow the search down.
+ * @param <T> Type of entity
+ */
+public class QueryPlan<T> {
+    private final QuerySource<T> source;
+    private final Query<T> query;
+    private final Access<T> access;
+    
+    private QueryPlan(QuerySource<T> source, Query<T> query, Access<T> access) {
+        this.source = source;
+        this.query = query;
+        this.access = access;
+    }
+    
+    /**
+     * Plans a query. For an AND the most selective comparison with an index is
+     * looked up; an OR is answered from indexes only if all its branches can
+     * be. Anything else, or a lookup expected to return every entity, is
+     * answered by a full scan.
+     * @param source Entities to query, with their indexes
+     * @param query Query to plan
+     * @return Plan
+     */
+    public static <T> QueryPlan<T> plan(QuerySource<T> source, Query<T> query) {
+        Access<T> access = query.getCondition() != null ? choose(source, query.getCondition()) : null;
+        if (access == null || access.estimate() >= source.size()) {
+            access = new Scan<>(source);
+        }
+        return new QueryPlan<>(source, query, access);
+    }
+    
+    /**
+     * Runs the plan
+     * @return Matching entities, sorted and limited as the query asks
+     */
+    public List<T> execute() {
+        Condition<T> condition = query.getCondition();
+        int limit = query.getLimit();
+        boolean sorted = query.isSorted();
+        
+        List<T> results = new ArrayList<>();
+        for (T entity : access.fetch(source)) {
+            if (!sorted && limit >= 0 && results.size() >= limit) {
+                break;
+            }
+            if (condition == null || condition.test(entity)) {
+                results.add(entity);
+            }
+        }
+        if (sorted) {
+            results.sort(query.comparator());
+        }
+        if (limit >= 0 && results.size() > limit) {
+            return new ArrayList<>(results.subList(0, limit));
+        }
+        return results;
+    }
+    
+    /**
+     * Describes the plan, one step per line, each step feeding the one above it
+     * @return Description of the plan
+     */
+    public String explain() {
+        List<String> lines = new ArrayList<>();
+        int depth = 0;
+        if (query.getLimit() >= 0) {
+            lines.add(indent(depth++) + "Limit " + query.getLimit());
+        }
+        if (query.isSorted()) {
+            lines.add(indent(depth++) + "Sort by " + query.describeOrder());
+        }
+        if (query.getCondition() != null) {
+            lines.add(indent(depth++) + "Filter " + query.getCondition());
+        }
+        access.explain(lines, depth);
+        return String.join(System.lineSeparator(), lines);
+    }
+    
+    @Override
+    public String toString() {
+        return explain();
+    }
+    
+    private static <T> Access<T> choose(QuerySource<T> source, Condition<T> condition) {
+        if (condition instanceof Condition.Comparison) {
+            IndexLookup<T> lookup = source.index((Condition.Comparison<T>) condition);
+            return lookup != null ? new Lookup<>(lookup, condition) : null;
+        }
+        if (condition instanceof Condition.And) {
+            Access<T> best = null;
+            for (Condition<T> part : ((Condition.And<T>) condition).getConditions()) {
+                Access<T> access = choose(source, part);
+                if (access != null && (best == null || access.estimate() < best.estimate())) {
+                    best = access;
+                }
+            }
+            return best;
+        }
+        if (condition instanceof Condition.Or) {
+            List<Access<T>> branches = new ArrayList<>();
+            for (Condition<T> part : ((Condition.Or<T>) condition).getConditions()) {
+                Access<T> access = choose(source, part);
+                if (access == null) {
+                    return null;
+                }
+                branches.add(access);
+            }
+            return new Union<>(branches);
+        }
+        return null;
+    }
+    
+    private static String indent(int depth) {
+        return "  ".repeat(depth);
+    }
+    
+    /**
+     * Way of finding the candidate entities
+     */
+    private interface Access<T> {
+        int estimate();
+        
+        Collection<T> fetch(QuerySource<T> source);
+        
+        void explain(List<String> lines, int depth);
+    }
+    
+    private static class Scan<T> implements Access<T> {
+        private final int size;
+        
+        private Scan(QuerySource<T> source) {
+            this.size = source.size();
+        }
+        
+        @Override
+        public int estimate() {
+            return size;
+        }
+        
+        @Override
+        public Collection<T> fetch(QuerySource<T> source) {
+            return source.scan();
+        }
+        
+        @Override
+        public void explain(List<String> lines, int depth) {
+            lines.add(indent(depth) + "Full scan (" + size + " rows)");
+        }
+    }
+    
+    private static class Lookup<T> implements Access<T> {
+        private final IndexLookup<T> lookup;
+        private final Condition<T> condition;
+        
+        private Lookup(IndexLookup<T> lookup, Condition<T> condition) {
+            this.lookup = lookup;
+            this.condition = condition;
+        }
+        
+        @Override
+        public int estimate() {
+            return lookup.getEstimate();
+        }
+        
+        @Override
+        public Collection<T> fetch(QuerySource<T> source) {
+            return lookup.fetch();
+        }
+        
+        @Override
+        public void explain(List<String> lines, int depth) {
+            lines.add(indent(depth) + "Index lookup " + lookup.getIndexName() + " [" + condition + "] (~"
+                      + lookup.getEstimate() + " rows)");
+        }
+    }
+    
+    private static class Union<T> implements Access<T> {
+        private final List<Access<T>> branches;
+        
+        private Union(List<Access<T>> branches) {
+            this.branches = branches;
+        }
+        
+        @Override
+        public int estimate() {
+            int total = 0;
+            for (Access<T> branch : branches) {
+                total += branch.estimate();
+            }
+            return total;
+        }
+        
+        @Override
+        public Collection<T> fetch(QuerySource<T> source) {
+            // Branches may find the same entity, possibly as separate copies
+            Map<String, T> merged = new LinkedHashMap<>();
+            for (Access<T> branch : branches) {
+                for (T entity : branch.fetch(source)) {
+                    merged.putIfAbsent(source.idOf(entity), entity);
+                }
+            }
+            return merged.values();
+        }
+        
+        @Override
+        public void explain(List<String> lines, int depth) {
+            lines.add(indent(depth) + "Union (~" + estimate() + " rows)");
+            for (Access<T> branch : branches) {
+                branch.explain(lines, depth + 1);
+            }
+        }
+    }
+}
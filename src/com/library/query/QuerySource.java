@@ -0,0 +1,38 @@
+package com.library.query;
+
+import java.util.Collection;
+
+/**
+ * Entities a query runs over, together with the indexes available on them.
+ * Implemented by the services that own the entities.
+ * @param <T> Type of entity
+ */
+public interface QuerySource<T> {
+    /**
+     * Gets every entity, for queries no index can narrow down
+     * @return All entities
+     */
+    Collection<T> scan();
+    
+    /**
+     * Gets the number of entities a scan returns
+     * @return Number of entities
+     */
+    int size();
+    
+    /**
+     * Gets the ID of an entity, to merge the results of several index lookups
+     * @param entity Entity
+     * @return ID of the entity
+     */
+    String idOf(T entity);
+    
+    /**
+     * Gets an index lookup answering a comparison. The lookup may return
+     * entities not matching it, as results are always checked against the
+     * full condition, but must not miss any that do.
+     * @param comparison Comparison to answer
+     * @return Index lookup, or null if no index can answer it
+     */
+    IndexLookup<T> index(Condition.Comparison<T> comparison);
+}
@@ -0,0 +1,61 @@
+package com.library.service;
+
+import com.library.model.Transaction;
+
+/**
+ * Outcome of one item of a bulk borrow, return or renewal: the transaction
+ * it produced, or why it was refused
+ */
+public class BatchOutcome {
+    private final String itemId;
+    private final Transaction transaction;
+    private final String error;
+    
+    private BatchOutcome(String itemId, Transaction transaction, String error) {
+        this.itemId = itemId;
+        this.transaction = transaction;
+        this.error = error;
+    }
+    
+    static BatchOutcome success(String itemId, Transaction transaction) {
+        return new BatchOutcome(itemId, transaction, null);
+    }
+    
+    static BatchOutcome failure(String itemId, String error) {
+        return new BatchOutcome(itemId, null, error);
+    }
+    
+    /**
+     * Gets the ID the item was given by: a book ID when borrowing, a
+     * transaction ID when returning or renewing
+     * @return ID of the item
+     */
+    public String getItemId() {
+        return itemId;
+    }
+    
+    public boolean isSuccess() {
+        return error == null;
+    }
+    
+    /**
+     * Gets the transaction the item produced or updated
+     * @return Transaction, or null if the item was refused
+     */
+    public Transaction getTransaction() {
+        return transaction;
+    }
+    
+    /**
+     * Gets why the item was refused
+     * @return Reason, or null if the item succeeded
+     */
+    public String getError() {
+        return error;
+    }
+    
+    @Override
+    public String toString() {
+        return isSuccess() ? itemId + ": " + transaction : itemId + ": " + error;
+    }
+}
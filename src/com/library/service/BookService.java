@@ -2,70 +2,178 @@ package com.library.service;
 
 import com.library.model.Book;
 import com.library.exception.BookNotFoundException;
+import com.library.exception.ConcurrentUpdateException;
+import com.library.index.AuthorTrie;
+import com.library.index.Bm25Index;
+import com.library.index.EnumIndex;
+import com.library.index.FuzzyIndex;
+import com.library.index.IsbnIndex;
+import com.library.index.TrigramIndex;
+import com.library.query.Condition;
+import com.library.query.Fields;
+import com.library.query.IndexLookup;
+import com.library.query.Query;
+import com.library.query.QueryPlan;
+import com.library.query.QuerySource;
+import com.library.storage.BackupManager;
+import com.library.storage.SnapshotStorageEngine;
+import com.library.storage.StorageEngine;
+import com.library.storage.UnitOfWork;
+import com.library.util.BookCodec;
 import com.library.util.FileHandler;
+import com.library.util.StripedLock;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.HashMap;
 import java.util.stream.Collectors;
 
 /**
- * Service for managing books in the library
+ * Service for managing books in the library.
+ * Safe for concurrent callers: changes to a book are serialized by a lock
+ * striped by book ID, and adding or updating a book also locks its ISBN so
+ * that two books can't claim the same one at once.
  */
 public class BookService {
-    private Map<String, Book> books;
-    private FileHandler fileHandler;
-    private static final String BOOKS_FILE = "books.dat";
+    public static final String BOOKS_FILE = "books.dat";
+    private static final double TITLE_WEIGHT = 2.0;
+    private static final double AUTHOR_WEIGHT = 1.5;
+    private static final double PUBLISHER_WEIGHT = 0.5;
+    
+    private StorageEngine<Book> books;
+    private final TrigramIndex titleIndex = new TrigramIndex();
+    private final AuthorTrie authorIndex = new AuthorTrie();
+    private final IsbnIndex isbnIndex = new IsbnIndex();
+    private final FuzzyIndex fuzzyIndex = new FuzzyIndex();
+    private final Bm25Index rankedIndex = new Bm25Index(TITLE_WEIGHT, AUTHOR_WEIGHT, PUBLISHER_WEIGHT);
+    private final QuerySource<Book> querySource = new QuerySource<>() {
+        @Override
+        public Collection<Book> scan() {
+            return books.scan();
+        }
+        
+        @Override
+        public int size() {
+            return books.size();
+        }
+        
+        @Override
+        public String idOf(Book book) {
+            return book.getId();
+        }
+        
+        @Override
+        public IndexLookup<Book> index(Condition.Comparison<Book> comparison) {
+            return lookup(comparison);
+        }
+    };
+    private final EnumIndex<Book.BookStatus> statusIndex = new EnumIndex<>(Book.BookStatus.class);
+    private final EnumIndex<Book.BookCategory> categoryIndex = new EnumIndex<>(Book.BookCategory.class);
+    private final StripedLock locks = new StripedLock();
+    private volatile boolean uniqueIsbns;
     
     public BookService(FileHandler fileHandler) {
-        this.fileHandler = fileHandler;
-        loadBooks();
+        this(new SnapshotStorageEngine<>(fileHandler, BOOKS_FILE, new BookCodec()));
     }
     
     /**
-     * Loads books from file or initializes empty map if file doesn't exist
+     * Creates a book service on top of a specific storage engine
+     * @param books Engine holding the catalog
      */
-    @SuppressWarnings("unchecked")
-    private void loadBooks() {
-        Object data = fileHandler.readFromFile(BOOKS_FILE);
-        if (data != null) {
-            books = (Map<String, Book>) data;
-        } else {
-            books = new HashMap<>();
+    public BookService(StorageEngine<Book> books) {
+        this.books = books;
+        for (Book book : books.scan()) {
+            index(book);
         }
     }
     
     /**
-     * Saves books to file
+     * Sets whether every book must have its own ISBN. When set, adding or
+     * updating a book to an ISBN another book already has is refused.
+     * Books without an ISBN are never considered duplicates.
+     * @param uniqueIsbns true to enforce unique ISBNs, false to allow copies
+     * @throws IllegalStateException if enforcing while the catalog already has duplicates
      */
-    private void saveBooks() {
-        fileHandler.writeToFile(BOOKS_FILE, books);
+    public void setUniqueIsbns(boolean uniqueIsbns) {
+        StripedLock.Held held = locks.lockAll();
+        try {
+            if (uniqueIsbns) {
+                String duplicate = isbnIndex.findDuplicate();
+                if (duplicate != null) {
+                    throw new IllegalStateException("Catalog already has several books with ISBN " + duplicate);
+                }
+            }
+            this.uniqueIsbns = uniqueIsbns;
+        } finally {
+            held.unlock();
+        }
     }
     
     /**
      * Adds a new book to the library
      * @param book Book to add
      * @return Added book with generated ID
+     * @throws IllegalArgumentException if ISBNs must be unique and another book has this one
      */
     public Book addBook(Book book) {
-        books.put(book.getId(), book);
-        saveBooks();
+        StripedLock.Held held = lockWithIsbn(book);
+        try {
+            checkIsbn(book);
+            books.put(book.getId(), book);
+            index(book);
+        } finally {
+            held.unlock();
+        }
         return book;
     }
     
     /**
-     * Updates an existing book
+     * Updates an existing book, overwriting whatever changed since it was read
      * @param book Book with updated information
      * @return Updated book
      * @throws BookNotFoundException if book doesn't exist
+     * @throws IllegalArgumentException if ISBNs must be unique and another book has this one
      */
     public Book updateBook(Book book) throws BookNotFoundException {
-        if (!books.containsKey(book.getId())) {
-            throw new BookNotFoundException("Book with ID " + book.getId() + " not found");
+        StripedLock.Held held = lockWithIsbn(book);
+        try {
+            replace(book, getBookById(book.getId()));
+        } finally {
+            held.unlock();
+        }
+        return book;
+    }
+    
+    /**
+     * Updates an existing book unless it changed since it was read. Every
+     * stored change raises the version of a book, member or transaction, so
+     * an edit based on an older version can be told apart and refused rather
+     * than silently overwrite the change made in between. Edit a copy of the
+     * book (see {@link Book#Book(Book)}), so that a refused update leaves the
+     * stored book untouched.
+     * @param book Book with updated information
+     * @param expectedVersion Version of the book when it was read
+     * @return Updated book, at its new version
+     * @throws BookNotFoundException if book doesn't exist
+     * @throws ConcurrentUpdateException if the stored book is no longer at the expected version
+     * @throws IllegalArgumentException if ISBNs must be unique and another book has this one
+     */
+    public Book updateBook(Book book, int expectedVersion)
+            throws BookNotFoundException, ConcurrentUpdateException {
+        StripedLock.Held held = lockWithIsbn(book);
+        try {
+            Book stored = getBookById(book.getId());
+            if (stored.getVersion() != expectedVersion) {
+                throw new ConcurrentUpdateException("Book with ID " + book.getId() + " was changed by someone else"
+                                                    + " (version " + stored.getVersion() + ", expected "
+                                                    + expectedVersion + ")");
+            }
+            replace(book, stored);
+        } finally {
+            held.unlock();
         }
-        books.put(book.getId(), book);
-        saveBooks();
         return book;
     }
     
@@ -75,12 +183,16 @@ public class BookService {
      * @return true if book was removed, false otherwise
      */
     public boolean removeBook(String bookId) {
-        if (books.containsKey(bookId)) {
-            books.remove(bookId);
-            saveBooks();
-            return true;
+        StripedLock.Held held = locks.lock(bookId);
+        try {
+            boolean removed = books.delete(bookId);
+            if (removed) {
+                unindex(bookId);
+            }
+            return removed;
+        } finally {
+            held.unlock();
         }
-        return false;
     }
     
     /**
@@ -102,7 +214,7 @@ public class BookService {
      * @return List of all books
      */
     public List<Book> getAllBooks() {
-        return new ArrayList<>(books.values());
+        return new ArrayList<>(books.scan());
     }
     
     /**
@@ -111,9 +223,7 @@ public class BookService {
      * @return List of matching books
      */
     public List<Book> searchByTitle(String title) {
-        return books.values().stream()
-                    .filter(book -> book.getTitle().toLowerCase().contains(title.toLowerCase()))
-                    .collect(Collectors.toList());
+        return resolve(titleIndex.search(title));
     }
     
     /**
@@ -122,20 +232,66 @@ public class BookService {
      * @return List of matching books
      */
     public List<Book> searchByAuthor(String author) {
-        return books.values().stream()
+        return books.scan().stream()
                     .filter(book -> book.getAuthor().toLowerCase().contains(author.toLowerCase()))
                     .collect(Collectors.toList());
     }
     
     /**
-     * Searches for books by ISBN
+     * Searches title, author and publisher at once, ranking books by how well
+     * they match (BM25). Books need not contain every word; rarer words and
+     * title matches weigh more.
+     * @param query Words to search for
+     * @param limit Maximum number of books to return
+     * @return List of the best matching books, best first
+     */
+    public List<Book> searchRanked(String query, int limit) {
+        return resolve(rankedIndex.search(query, limit));
+    }
+    
+    /**
+     * Searches titles and authors tolerating typos. Each word of the query
+     * must be close to a word of the book's title or author; how many typos
+     * are allowed grows with the length of the word.
+     * @param query Words to search for
+     * @return List of matching books, closest matches first
+     */
+    public List<Book> fuzzySearch(String query) {
+        return fuzzySearch(query, -1);
+    }
+    
+    /**
+     * Searches titles and authors tolerating typos
+     * @param query Words to search for
+     * @param maxDistance Maximum number of wrong, missing or extra characters per word
+     * @return List of matching books, closest matches first
+     */
+    public List<Book> fuzzySearch(String query, int maxDistance) {
+        return resolve(fuzzyIndex.search(query, maxDistance));
+    }
+    
+    /**
+     * Completes a partially typed author name, ignoring case and accents
+     * @param prefix Start of one or more words of the author's name
+     * @param limit Maximum number of authors to return
+     * @return Matching authors mapped to their books, authors with the most books first
+     */
+    public Map<String, List<Book>> autocompleteAuthors(String prefix, int limit) {
+        Map<String, List<Book>> result = new LinkedHashMap<>();
+        for (String author : authorIndex.complete(prefix, limit)) {
+            result.put(author, resolve(authorIndex.getBookIds(author)));
+        }
+        return result;
+    }
+    
+    /**
+     * Searches for books by ISBN. Hyphens and spaces are ignored, and an
+     * ISBN-10 also finds books catalogued under its ISBN-13 and vice versa.
      * @param isbn ISBN to search for
-     * @return List of matching books
+     * @return List of matching books, one per copy
      */
     public List<Book> searchByISBN(String isbn) {
-        return books.values().stream()
-                    .filter(book -> book.getIsbn().equals(isbn))
-                    .collect(Collectors.toList());
+        return resolve(isbnIndex.get(isbn));
     }
     
     /**
@@ -143,9 +299,25 @@ public class BookService {
      * @return List of available books
      */
     public List<Book> getAvailableBooks() {
-        return books.values().stream()
-                    .filter(book -> book.getStatus() == Book.BookStatus.AVAILABLE)
-                    .collect(Collectors.toList());
+        return getBooksByStatus(Book.BookStatus.AVAILABLE);
+    }
+    
+    /**
+     * Gets books by status
+     * @param status Status to filter by
+     * @return List of books with the given status
+     */
+    public List<Book> getBooksByStatus(Book.BookStatus status) {
+        return resolve(statusIndex.get(status));
+    }
+    
+    /**
+     * Counts books by status
+     * @param status Status to count
+     * @return Number of books with the given status
+     */
+    public int countBooksByStatus(Book.BookStatus status) {
+        return statusIndex.count(status);
     }
     
     /**
@@ -154,9 +326,34 @@ public class BookService {
      * @return List of books in the given category
      */
     public List<Book> getBooksByCategory(Book.BookCategory category) {
-        return books.values().stream()
-                    .filter(book -> book.getCategory() == category)
-                    .collect(Collectors.toList());
+        return resolve(categoryIndex.get(category));
+    }
+    
+    /**
+     * Counts books by category
+     * @param category Category to count
+     * @return Number of books in the given category
+     */
+    public int countBooksByCategory(Book.BookCategory category) {
+        return categoryIndex.count(category);
+    }
+    
+    /**
+     * Runs a query over the catalog, using the catalog's indexes where they help
+     * @param query Query to run
+     * @return Matching books
+     */
+    public List<Book> query(Query<Book> query) {
+        return QueryPlan.plan(querySource, query).execute();
+    }
+    
+    /**
+     * Describes how a query over the catalog would be run
+     * @param query Query to plan
+     * @return Query plan, one step per line
+     */
+    public String explain(Query<Book> query) {
+        return QueryPlan.plan(querySource, query).explain();
     }
     
     /**
@@ -166,8 +363,222 @@ public class BookService {
      * @throws BookNotFoundException if book doesn't exist
      */
     public void updateBookStatus(String bookId, Book.BookStatus status) throws BookNotFoundException {
-        Book book = getBookById(bookId);
+        StripedLock.Held held = locks.lock(bookId);
+        try {
+            Book book = getBookById(bookId);
+            book.setStatus(status);
+            book.setVersion(book.getVersion() + 1);
+            books.put(bookId, book);
+            statusIndex.put(bookId, status);
+        } finally {
+            held.unlock();
+        }
+    }
+    
+    /**
+     * Changes the status of a book if it is still the expected one, such as
+     * AVAILABLE to RESERVED, without overwriting a change made in between
+     * @param bookId ID of book to update
+     * @param from Status the book must have
+     * @param to New status
+     * @return true if the status was changed, false if the book had another status
+     * @throws BookNotFoundException if book doesn't exist
+     */
+    public boolean transitionBookStatus(String bookId, Book.BookStatus from, Book.BookStatus to)
+            throws BookNotFoundException {
+        StripedLock.Held held = locks.lock(bookId);
+        try {
+            Book book = getBookById(bookId);
+            if (!book.tryTransition(from, to)) {
+                return false;
+            }
+            book.setVersion(book.getVersion() + 1);
+            books.put(bookId, book);
+            statusIndex.put(bookId, to);
+            return true;
+        } finally {
+            held.unlock();
+        }
+    }
+    
+    /**
+     * Changes the status of a book as part of a unit of work; the change is
+     * persisted, and seen by status queries, when the unit commits.
+     * The caller holds the book's lock (see {@link #lockBook(String)}).
+     * @param book Book to update
+     * @param status New status
+     * @param unit Unit of work to add the change to
+     */
+    public void updateBookStatus(Book book, Book.BookStatus status, UnitOfWork unit) {
         book.setStatus(status);
-        saveBooks();
+        book.setVersion(book.getVersion() + 1);
+        unit.put(books, book.getId(), book)
+            .afterCommit(() -> statusIndex.put(book.getId(), status));
+    }
+    
+    /**
+     * Changes the status of a book as part of a unit of work if it is still
+     * the expected one, the check and change being one atomic step. As with
+     * {@link #updateBookStatus(Book, Book.BookStatus, UnitOfWork)}, the caller
+     * holds the book's lock, so the change is persisted in order.
+     * @param book Book to update
+     * @param from Status the book must have
+     * @param to New status
+     * @param unit Unit of work to add the change to
+     * @return true if the status was changed, false if the book had another status
+     */
+    public boolean transitionBookStatus(Book book, Book.BookStatus from, Book.BookStatus to, UnitOfWork unit) {
+        if (!book.tryTransition(from, to)) {
+            return false;
+        }
+        book.setVersion(book.getVersion() + 1);
+        unit.put(books, book.getId(), book)
+            .afterCommit(() -> statusIndex.put(book.getId(), to));
+        return true;
+    }
+    
+    /**
+     * Locks a book against concurrent changes until {@link StripedLock.Held#unlock()} is called.
+     * Services changing a book together with other entities take this lock
+     * first, then the locks of the other entities.
+     * @param bookId ID of book to lock
+     * @return Held lock
+     */
+    StripedLock.Held lockBook(String bookId) {
+        return locks.lock(bookId);
+    }
+    
+    /**
+     * Locks several books at once, in an order that can't deadlock with
+     * other callers doing the same
+     * @param bookIds IDs of books to lock
+     * @return Held locks
+     */
+    StripedLock.Held lockBooks(Collection<String> bookIds) {
+        return locks.lock(bookIds.toArray(new String[0]));
+    }
+    
+    /**
+     * Locks every book, for changes to loans whose books aren't known in advance
+     * @return Held locks
+     */
+    StripedLock.Held lockAllBooks() {
+        return locks.lockAll();
+    }
+    
+    /**
+     * Locks a book and its ISBN, so that checking the ISBN is unique and
+     * indexing it can't interleave with another book doing the same
+     */
+    private StripedLock.Held lockWithIsbn(Book book) {
+        return locks.lock(book.getId(), IsbnIndex.normalize(book.getIsbn()));
+    }
+    
+    /**
+     * Stores a changed book in place of the stored one, one version later.
+     * The caller holds the locks of the book and its ISBN.
+     */
+    private void replace(Book book, Book stored) {
+        checkIsbn(book);
+        book.setVersion(stored.getVersion() + 1);
+        books.put(book.getId(), book);
+        index(book);
+    }
+    
+    /**
+     * Refuses a book whose ISBN another book already has, if ISBNs must be unique
+     */
+    private void checkIsbn(Book book) {
+        if (!uniqueIsbns || IsbnIndex.normalize(book.getIsbn()).isEmpty()) {
+            return;
+        }
+        String other = isbnIndex.findOther(book.getIsbn(), book.getId());
+        if (other != null) {
+            throw new IllegalArgumentException("Book with ID " + other + " already has ISBN " + book.getIsbn());
+        }
+    }
+    
+    /**
+     * Finds the index answering a comparison in a query, if there is one
+     */
+    private IndexLookup<Book> lookup(Condition.Comparison<Book> comparison) {
+        Object value = comparison.getValue();
+        if (value == null) {
+            return null;
+        }
+        if (comparison.is(Fields.BOOK_ID, Condition.Operator.EQUAL)) {
+            return IndexLookup.ofIds("books", List.of((String) value), this::resolve);
+        }
+        if (comparison.is(Fields.BOOK_STATUS, Condition.Operator.EQUAL)) {
+            Book.BookStatus status = (Book.BookStatus) value;
+            return new IndexLookup<>("status", statusIndex.count(status), () -> resolve(statusIndex.get(status)));
+        }
+        if (comparison.is(Fields.BOOK_CATEGORY, Condition.Operator.EQUAL)) {
+            Book.BookCategory category = (Book.BookCategory) value;
+            return new IndexLookup<>("category", categoryIndex.count(category),
+                                     () -> resolve(categoryIndex.get(category)));
+        }
+        if (comparison.is(Fields.BOOK_ISBN, Condition.Operator.EQUAL)) {
+            return IndexLookup.ofIds("isbn", isbnIndex.get((String) value), this::resolve);
+        }
+        if (comparison.is(Fields.BOOK_AUTHOR, Condition.Operator.EQUAL)) {
+            // Books by an author with no words aren't indexed; a scan finds them
+            if (!AuthorTrie.isIndexable((String) value)) {
+                return null;
+            }
+            return IndexLookup.ofIds("author", authorIndex.getBookIds((String) value), this::resolve);
+        }
+        if (comparison.is(Fields.BOOK_TITLE, Condition.Operator.CONTAINS)) {
+            return IndexLookup.ofIds("title trigrams", titleIndex.search((String) value), this::resolve);
+        }
+        return null;
+    }
+    
+    /**
+     * Looks up the books for IDs found in an index
+     */
+    private List<Book> resolve(Collection<String> bookIds) {
+        List<Book> result = new ArrayList<>(bookIds.size());
+        for (String bookId : bookIds) {
+            Book book = books.get(bookId);
+            if (book != null) {
+                result.add(book);
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Brings the search indexes up to date with a book that was added or changed
+     */
+    private void index(Book book) {
+        titleIndex.add(book.getId(), book.getTitle());
+        authorIndex.add(book.getId(), book.getAuthor());
+        isbnIndex.add(book.getId(), book.getIsbn());
+        fuzzyIndex.add(book.getId(), book.getTitle() + " " + book.getAuthor());
+        rankedIndex.add(book.getId(), book.getTitle(), book.getAuthor(), book.getPublisher());
+        statusIndex.put(book.getId(), book.getStatus());
+        categoryIndex.put(book.getId(), book.getCategory());
+    }
+    
+    /**
+     * Drops a removed book from the search indexes
+     */
+    private void unindex(String bookId) {
+        titleIndex.remove(bookId);
+        authorIndex.remove(bookId);
+        isbnIndex.remove(bookId);
+        fuzzyIndex.remove(bookId);
+        rankedIndex.remove(bookId);
+        statusIndex.remove(bookId);
+        categoryIndex.remove(bookId);
+    }
+    
+    /**
+     * Registers the catalog with a backup manager
+     * @param backupManager Backup manager to register with
+     */
+    public void addToBackup(BackupManager backupManager) {
+        backupManager.addStore(BOOKS_FILE, new BookCodec(), books);
     }
 }
@@ -1,71 +1,144 @@
 package com.library.service;
 
 import com.library.model.Member;
+import com.library.exception.ConcurrentUpdateException;
 import com.library.exception.MemberNotFoundException;
+import com.library.index.EnumIndex;
+import com.library.index.KeyIndex;
+import com.library.index.TrigramIndex;
+import com.library.query.Condition;
+import com.library.query.Fields;
+import com.library.query.IndexLookup;
+import com.library.query.Query;
+import com.library.query.QueryPlan;
+import com.library.query.QuerySource;
+import com.library.storage.BackupManager;
+import com.library.storage.SnapshotStorageEngine;
+import com.library.storage.StorageEngine;
 import com.library.util.FileHandler;
+import com.library.util.MemberCodec;
+import com.library.util.StripedLock;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
-import java.util.Map;
-import java.util.HashMap;
-import java.util.stream.Collectors;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
- * Service for managing library members
+ * Service for managing library members.
+ * Safe for concurrent callers: changes to a member are serialized by a lock
+ * striped by member ID, also taken on the email when registering or
+ * updating, so two members can't claim the same email at once.
  */
 public class MemberService {
-    private Map<String, Member> members;
-    private FileHandler fileHandler;
-    private static final String MEMBERS_FILE = "members.dat";
+    public static final String MEMBERS_FILE = "members.dat";
+    
+    private StorageEngine<Member> members;
+    private final EnumIndex<Member.MembershipType> typeIndex = new EnumIndex<>(Member.MembershipType.class);
+    private final Set<String> activeMembers = ConcurrentHashMap.newKeySet();
+    private final KeyIndex emailIndex = new KeyIndex(MemberService::normalizeEmail);
+    private final TrigramIndex emailSearchIndex = new TrigramIndex();
+    private final TrigramIndex nameIndex = new TrigramIndex();
+    private final StripedLock locks = new StripedLock();
+    private final QuerySource<Member> querySource = new QuerySource<>() {
+        @Override
+        public Collection<Member> scan() {
+            return members.scan();
+        }
+        
+        @Override
+        public int size() {
+            return members.size();
+        }
+        
+        @Override
+        public String idOf(Member member) {
+            return member.getId();
+        }
+        
+        @Override
+        public IndexLookup<Member> index(Condition.Comparison<Member> comparison) {
+            return lookup(comparison);
+        }
+    };
     
     public MemberService(FileHandler fileHandler) {
-        this.fileHandler = fileHandler;
-        loadMembers();
+        this(new SnapshotStorageEngine<>(fileHandler, MEMBERS_FILE, new MemberCodec()));
     }
     
     /**
-     * Loads members from file or initializes empty map if file doesn't exist
+     * Creates a member service on top of a specific storage engine
+     * @param members Engine holding the members
      */
-    @SuppressWarnings("unchecked")
-    private void loadMembers() {
-        Object data = fileHandler.readFromFile(MEMBERS_FILE);
-        if (data != null) {
-            members = (Map<String, Member>) data;
-        } else {
-            members = new HashMap<>();
+    public MemberService(StorageEngine<Member> members) {
+        this.members = members;
+        for (Member member : members.scan()) {
+            index(member);
         }
     }
     
-    /**
-     * Saves members to file
-     */
-    private void saveMembers() {
-        fileHandler.writeToFile(MEMBERS_FILE, members);
-    }
-    
     /**
      * Registers a new member
      * @param member Member to register
      * @return Registered member with generated ID
+     * @throws IllegalArgumentException if another member has the same email
      */
     public Member registerMember(Member member) {
-        members.put(member.getId(), member);
-        saveMembers();
+        StripedLock.Held held = lockWithEmail(member);
+        try {
+            checkEmail(member);
+            members.put(member.getId(), member);
+            index(member);
+        } finally {
+            held.unlock();
+        }
         return member;
     }
     
     /**
-     * Updates an existing member
+     * Updates an existing member, overwriting whatever changed since it was read
      * @param member Member with updated information
      * @return Updated member
      * @throws MemberNotFoundException if member doesn't exist
+     * @throws IllegalArgumentException if the email changes to one another member has
      */
     public Member updateMember(Member member) throws MemberNotFoundException {
-        if (!members.containsKey(member.getId())) {
-            throw new MemberNotFoundException("Member with ID " + member.getId() + " not found");
+        StripedLock.Held held = lockWithEmail(member);
+        try {
+            replace(member, getMemberById(member.getId()));
+        } finally {
+            held.unlock();
+        }
+        return member;
+    }
+    
+    /**
+     * Updates an existing member unless they changed since they were read.
+     * Edit a copy of the member (see {@link Member#Member(Member)}), so that
+     * a refused update leaves the stored member untouched.
+     * @param member Member with updated information
+     * @param expectedVersion Version of the member when read
+     * @return Updated member, at their new version
+     * @throws MemberNotFoundException if member doesn't exist
+     * @throws ConcurrentUpdateException if the stored member is no longer at the expected version
+     * @throws IllegalArgumentException if the email changes to one another member has
+     */
+    public Member updateMember(Member member, int expectedVersion)
+            throws MemberNotFoundException, ConcurrentUpdateException {
+        StripedLock.Held held = lockWithEmail(member);
+        try {
+            Member stored = getMemberById(member.getId());
+            if (stored.getVersion() != expectedVersion) {
+                throw new ConcurrentUpdateException("Member with ID " + member.getId()
+                                                    + " was changed by someone else (version "
+                                                    + stored.getVersion() + ", expected " + expectedVersion + ")");
+            }
+            replace(member, stored);
+        } finally {
+            held.unlock();
         }
-        members.put(member.getId(), member);
-        saveMembers();
         return member;
     }
     
@@ -75,12 +148,16 @@ public class MemberService {
      * @return true if member was removed, false otherwise
      */
     public boolean removeMember(String memberId) {
-        if (members.containsKey(memberId)) {
-            members.remove(memberId);
-            saveMembers();
-            return true;
+        StripedLock.Held held = locks.lock(memberId);
+        try {
+            boolean removed = members.delete(memberId);
+            if (removed) {
+                unindex(memberId);
+            }
+            return removed;
+        } finally {
+            held.unlock();
         }
-        return false;
     }
     
     /**
@@ -97,12 +174,28 @@ public class MemberService {
         return member;
     }
     
+    /**
+     * Gets a member by their email, ignoring case and surrounding spaces
+     * @param email Email of member to get
+     * @return Member if found
+     * @throws MemberNotFoundException if no member has the email
+     */
+    public Member getMemberByEmail(String email) throws MemberNotFoundException {
+        for (String memberId : emailIndex.get(email)) {
+            Member member = members.get(memberId);
+            if (member != null) {
+                return member;
+            }
+        }
+        throw new MemberNotFoundException("Member with email " + email + " not found");
+    }
+    
     /**
      * Gets all members
      * @return List of all members
      */
     public List<Member> getAllMembers() {
-        return new ArrayList<>(members.values());
+        return new ArrayList<>(members.scan());
     }
     
     /**
@@ -111,9 +204,7 @@ public class MemberService {
      * @return List of matching members
      */
     public List<Member> searchByName(String name) {
-        return members.values().stream()
-                     .filter(member -> member.getName().toLowerCase().contains(name.toLowerCase()))
-                     .collect(Collectors.toList());
+        return resolve(nameIndex.search(name));
     }
     
     /**
@@ -122,9 +213,7 @@ public class MemberService {
      * @return List of matching members
      */
     public List<Member> searchByEmail(String email) {
-        return members.values().stream()
-                     .filter(member -> member.getEmail().toLowerCase().contains(email.toLowerCase()))
-                     .collect(Collectors.toList());
+        return resolve(emailSearchIndex.search(email));
     }
     
     /**
@@ -132,9 +221,15 @@ public class MemberService {
      * @return List of active members
      */
     public List<Member> getActiveMembers() {
-        return members.values().stream()
-                     .filter(Member::isActive)
-                     .collect(Collectors.toList());
+        return resolve(activeMembers);
+    }
+    
+    /**
+     * Counts active members
+     * @return Number of active members
+     */
+    public int countActiveMembers() {
+        return activeMembers.size();
     }
     
     /**
@@ -143,9 +238,34 @@ public class MemberService {
      * @return List of members with the given membership type
      */
     public List<Member> getMembersByType(Member.MembershipType membershipType) {
-        return members.values().stream()
-                     .filter(member -> member.getMembershipType() == membershipType)
-                     .collect(Collectors.toList());
+        return resolve(typeIndex.get(membershipType));
+    }
+    
+    /**
+     * Counts members by membership type
+     * @param membershipType Type to count
+     * @return Number of members with the given membership type
+     */
+    public int countMembersByType(Member.MembershipType membershipType) {
+        return typeIndex.count(membershipType);
+    }
+    
+    /**
+     * Runs a query over the members, using the member indexes where they help
+     * @param query Query to run
+     * @return Matching members
+     */
+    public List<Member> query(Query<Member> query) {
+        return QueryPlan.plan(querySource, query).execute();
+    }
+    
+    /**
+     * Describes how a query over the members would be run
+     * @param query Query to plan
+     * @return Query plan, one step per line
+     */
+    public String explain(Query<Member> query) {
+        return QueryPlan.plan(querySource, query).explain();
     }
     
     /**
@@ -155,8 +275,155 @@ public class MemberService {
      * @throws MemberNotFoundException if member doesn't exist
      */
     public void updateMemberActiveStatus(String memberId, boolean active) throws MemberNotFoundException {
-        Member member = getMemberById(memberId);
-        member.setActive(active);
-        saveMembers();
+        StripedLock.Held held = locks.lock(memberId);
+        try {
+            Member member = getMemberById(memberId);
+            member.setActive(active);
+            member.setVersion(member.getVersion() + 1);
+            members.put(memberId, member);
+            index(member);
+        } finally {
+            held.unlock();
+        }
+    }
+    
+    /**
+     * Locks a member against concurrent changes until {@link StripedLock.Held#unlock()} is called
+     * @param memberId ID of member to lock
+     * @return Held lock
+     */
+    StripedLock.Held lockMember(String memberId) {
+        return locks.lock(memberId);
+    }
+    
+    /**
+     * Gets an email several members share. Registering or changing to a
+     * taken email is refused, so this can only come from older data.
+     * @return Normalized email, or null if every member's email is unique
+     */
+    public String findDuplicateEmail() {
+        return emailIndex.findDuplicate();
+    }
+    
+    /**
+     * Locks a member and its email, so that checking the email is unique and
+     * indexing it can't interleave with another member doing the same
+     */
+    private StripedLock.Held lockWithEmail(Member member) {
+        String email = member.getEmail();
+        return locks.lock(member.getId(), email != null ? normalizeEmail(email) : null);
+    }
+    
+    /**
+     * Normalizes an email the way it is indexed, ignoring case and surrounding spaces
+     */
+    private static String normalizeEmail(String email) {
+        return email.trim().toLowerCase(Locale.ROOT);
+    }
+    
+    /**
+     * Stores a changed member in place of the stored one, one version later.
+     * The email is only checked if it changes, so members sharing one from
+     * before emails had to be unique can still be updated otherwise.
+     */
+    private void replace(Member member, Member stored) {
+        if (!emailIndex.hasKey(member.getId(), member.getEmail())) {
+            checkEmail(member);
+        }
+        member.setVersion(stored.getVersion() + 1);
+        members.put(member.getId(), member);
+        index(member);
+    }
+    
+    /**
+     * Refuses a member whose email another member already has
+     */
+    private void checkEmail(Member member) {
+        String email = member.getEmail();
+        if (email == null || email.isBlank()) {
+            return;
+        }
+        String other = emailIndex.findOther(email, member.getId());
+        if (other != null) {
+            throw new IllegalArgumentException("Member with ID " + other + " already has email " + email);
+        }
+    }
+    
+    /**
+     * Finds the index answering a comparison in a query, if there is one
+     */
+    private IndexLookup<Member> lookup(Condition.Comparison<Member> comparison) {
+        Object value = comparison.getValue();
+        if (value == null) {
+            return null;
+        }
+        if (comparison.is(Fields.MEMBER_ID, Condition.Operator.EQUAL)) {
+            return IndexLookup.ofIds("members", List.of((String) value), this::resolve);
+        }
+        if (comparison.is(Fields.MEMBER_TYPE, Condition.Operator.EQUAL)) {
+            Member.MembershipType type = (Member.MembershipType) value;
+            return new IndexLookup<>("membershipType", typeIndex.count(type), () -> resolve(typeIndex.get(type)));
+        }
+        if (comparison.is(Fields.MEMBER_ACTIVE, Condition.Operator.EQUAL) && Boolean.TRUE.equals(value)) {
+            return IndexLookup.ofIds("active", activeMembers, this::resolve);
+        }
+        if (comparison.is(Fields.MEMBER_EMAIL, Condition.Operator.EQUAL)) {
+            return IndexLookup.ofIds("email", emailIndex.get((String) value), this::resolve);
+        }
+        if (comparison.is(Fields.MEMBER_EMAIL, Condition.Operator.CONTAINS)) {
+            return IndexLookup.ofIds("email trigrams", emailSearchIndex.search((String) value), this::resolve);
+        }
+        if (comparison.is(Fields.MEMBER_NAME, Condition.Operator.CONTAINS)) {
+            return IndexLookup.ofIds("name trigrams", nameIndex.search((String) value), this::resolve);
+        }
+        return null;
+    }
+    
+    /**
+     * Looks up the members for IDs found in an index
+     */
+    private List<Member> resolve(Collection<String> memberIds) {
+        List<Member> result = new ArrayList<>(memberIds.size());
+        for (String memberId : memberIds) {
+            Member member = members.get(memberId);
+            if (member != null) {
+                result.add(member);
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Brings the indexes up to date with a member that was added or changed
+     */
+    private void index(Member member) {
+        typeIndex.put(member.getId(), member.getMembershipType());
+        emailIndex.add(member.getId(), member.getEmail());
+        emailSearchIndex.add(member.getId(), member.getEmail());
+        nameIndex.add(member.getId(), member.getName());
+        if (member.isActive()) {
+            activeMembers.add(member.getId());
+        } else {
+            activeMembers.remove(member.getId());
+        }
+    }
+    
+    /**
+     * Drops a removed member from the indexes
+     */
+    private void unindex(String memberId) {
+        typeIndex.remove(memberId);
+        emailIndex.remove(memberId);
+        emailSearchIndex.remove(memberId);
+        nameIndex.remove(memberId);
+        activeMembers.remove(memberId);
+    }
+    
+    /**
+     * Registers the members with a backup manager
+     * @param backupManager Backup manager to register with
+     */
+    public void addToBackup(BackupManager backupManager) {
+        backupManager.addStore(MEMBERS_FILE, new MemberCodec(), members);
     }
 }
@@ -4,54 +4,161 @@ import com.library.model.Book;
 import com.library.model.Member;
 import com.library.model.Transaction;
 import com.library.exception.BookNotFoundException;
+import com.library.exception.BookUnavailableException;
+import com.library.exception.ConcurrentUpdateException;
+import com.library.exception.MemberNotEligibleException;
 import com.library.exception.MemberNotFoundException;
+import com.library.exception.StorageException;
+import com.library.index.DueDateQueue;
+import com.library.index.LoanIndex;
+import com.library.query.Condition;
+import com.library.query.Fields;
+import com.library.query.IndexLookup;
+import com.library.query.Query;
+import com.library.query.QueryPlan;
+import com.library.query.QuerySource;
+import com.library.storage.BackupManager;
+import com.library.storage.LazyStorageEngine;
+import com.library.storage.SegmentArchive;
+import com.library.storage.SnapshotStorageEngine;
+import com.library.storage.StorageEngine;
+import com.library.storage.StorageEngines;
+import com.library.storage.UnitOfWork;
+import com.library.storage.WriteBatch;
 import com.library.util.FileHandler;
+import com.library.util.StripedLock;
+import com.library.util.TransactionCodec;
 
 import java.time.LocalDate;
 import java.time.temporal.ChronoUnit;
+import java.io.File;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.HashMap;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.ToIntFunction;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
- * Service for managing book transactions (borrowing/returning)
+ * Service for managing book transactions (borrowing/returning).
+ * Active loans and returned history are kept in separate stores so that only
+ * the active ones need to be loaded to serve checkouts. Returned transactions
+ * can further be moved from history to a compressed archive once they are old
+ * enough; history queries read all three tiers.
+ * Safe for concurrent callers: every change to a loan holds the lock of its
+ * book, and checkouts the lock of the member too, so two checkouts of the
+ * same copy, or of the last copies a member may borrow, are serialized while
+ * unrelated checkouts run in parallel.
  */
 public class TransactionService {
-    private Map<String, Transaction> transactions;
+    public static final String TRANSACTIONS_FILE = "transactions.dat";
+    public static final String HISTORY_FILE = "transaction_history.dat";
+    public static final String ARCHIVE_DIRECTORY = "archive";
+    public static final String ARCHIVE_NAME = "transactions";
+    // Attributes indexed in every archive segment
+    private static final String ARCHIVED_MEMBER = "member";
+    private static final String ARCHIVED_BOOK = "book";
+    
+    private StorageEngine<Transaction> transactions;
+    private StorageEngine<Transaction> history;
+    private SegmentArchive<Transaction> archive;
     private BookService bookService;
     private MemberService memberService;
-    private FileHandler fileHandler;
-    private static final String TRANSACTIONS_FILE = "transactions.dat";
+    private final LoanIndex activeLoans = new LoanIndex();
+    private volatile LoanIndex historyLoans;
+    private final Object historyLock = new Object();
+    private final Object archiveLock = new Object();
+    private final DueDateQueue dueDates = new DueDateQueue();
+    private final DueDateQueue overdueSweep = new DueDateQueue();
+    private final QuerySource<Transaction> querySource = new QuerySource<>() {
+        @Override
+        public Collection<Transaction> scan() {
+            return getAllTransactions();
+        }
+        
+        @Override
+        public int size() {
+            return transactions.size() + estimateHistorySize() + archive.estimateSize();
+        }
+        
+        @Override
+        public String idOf(Transaction transaction) {
+            return transaction.getId();
+        }
+        
+        @Override
+        public IndexLookup<Transaction> index(Condition.Comparison<Transaction> comparison) {
+            return lookup(comparison);
+        }
+    };
     private static final int DEFAULT_LOAN_DAYS = 14;
     private static final double DAILY_FINE_RATE = 1.0; // $1 per day
     
     public TransactionService(BookService bookService, MemberService memberService, FileHandler fileHandler) {
+        this(bookService, memberService,
+             new SnapshotStorageEngine<>(fileHandler, TRANSACTIONS_FILE, new TransactionCodec()),
+             StorageEngines.openLazy(StorageEngines.SNAPSHOT, fileHandler, HISTORY_FILE, new TransactionCodec()),
+             openArchive(fileHandler.getDataDirectory()));
+    }
+    
+    /**
+     * Creates a transaction service on top of specific storage engines.
+     * Returned transactions still found in the active engine (written before
+     * history was split off) are moved to the history engine.
+     * @param bookService Service for the books being lent
+     * @param memberService Service for the borrowing members
+     * @param transactions Engine holding the transactions that are not returned yet
+     * @param history Engine holding the returned transactions, ideally a {@link LazyStorageEngine}
+     *        from {@link StorageEngines#openLazy}, so that returns don't load it
+     * @param archive Archive holding old returned transactions
+     */
+    public TransactionService(BookService bookService, MemberService memberService,
+                              StorageEngine<Transaction> transactions, StorageEngine<Transaction> history,
+                              SegmentArchive<Transaction> archive) {
         this.bookService = bookService;
         this.memberService = memberService;
-        this.fileHandler = fileHandler;
-        loadTransactions();
+        this.transactions = transactions;
+        this.history = history;
+        this.archive = archive;
+        migrateReturnedTransactions();
+        for (Transaction t : transactions.scan()) {
+            activeLoans.add(t);
+            schedule(t);
+        }
     }
     
     /**
-     * Loads transactions from file or initializes empty map if file doesn't exist
+     * Creates the archive for old returned transactions in a data directory
+     * @param dataDirectory Data directory of the library
+     * @return Archive, opened on first use
      */
-    @SuppressWarnings("unchecked")
-    private void loadTransactions() {
-        Object data = fileHandler.readFromFile(TRANSACTIONS_FILE);
-        if (data != null) {
-            transactions = (Map<String, Transaction>) data;
-        } else {
-            transactions = new HashMap<>();
-        }
+    public static SegmentArchive<Transaction> openArchive(String dataDirectory) {
+        return new SegmentArchive<>(dataDirectory + File.separator + ARCHIVE_DIRECTORY, ARCHIVE_NAME,
+                                    new TransactionCodec(), Transaction::getReturnDate,
+                                    Map.of(ARCHIVED_MEMBER, Transaction::getMemberId,
+                                           ARCHIVED_BOOK, Transaction::getBookId));
     }
     
     /**
-     * Saves transactions to file
+     * Moves returned transactions from the active engine to the history engine
      */
-    private void saveTransactions() {
-        fileHandler.writeToFile(TRANSACTIONS_FILE, transactions);
+    private void migrateReturnedTransactions() {
+        UnitOfWork unit = new UnitOfWork();
+        for (Transaction t : transactions.scan()) {
+            if (t.isReturned()) {
+                unit.put(history, t.getId(), t).delete(transactions, t.getId());
+            }
+        }
+        
+        if (!unit.isEmpty()) {
+            unit.commit();
+        }
     }
     
     /**
@@ -64,33 +171,134 @@ public class TransactionService {
      */
     public Transaction borrowBook(String bookId, String memberId) 
             throws BookNotFoundException, MemberNotFoundException {
-        Book book = bookService.getBookById(bookId);
-        Member member = memberService.getMemberById(memberId);
+        // Turn down a book that is already out without queueing for its lock,
+        // as everyone after a popular book would; the winner claims it below
+        if (bookService.getBookById(bookId).getStatus() != Book.BookStatus.AVAILABLE) {
+            throw new BookUnavailableException("Book is not available for borrowing");
+        }
         
-        // Check if book is available
-        if (book.getStatus() != Book.BookStatus.AVAILABLE) {
-            throw new BookNotFoundException("Book is not available for borrowing");
+        StripedLock.Held bookLock = bookService.lockBook(bookId);
+        try {
+            StripedLock.Held memberLock = memberService.lockMember(memberId);
+            try {
+                return borrowLocked(bookId, memberId);
+            } finally {
+                memberLock.unlock();
+            }
+        } finally {
+            bookLock.unlock();
         }
+    }
+    
+    /**
+     * Borrows a book, holding the locks of the book and the member
+     */
+    private Transaction borrowLocked(String bookId, String memberId)
+            throws BookNotFoundException, MemberNotFoundException {
+        Book book = bookService.getBookById(bookId);
+        Member member = memberService.getMemberById(memberId);
         
         // Check if member is active
         if (!member.isActive()) {
-            throw new MemberNotFoundException("Member is not active");
+            throw new MemberNotEligibleException("Member is not active");
         }
         
         // Check if member has reached their borrowing limit
-        List<Transaction> activeBorrowings = getMemberActiveTransactions(memberId);
-        if (activeBorrowings.size() >= member.getMembershipType().getMaxBorrowItems()) {
-            throw new MemberNotFoundException("Member has reached their borrowing limit");
+        if (countMemberActiveTransactions(memberId) >= member.getMembershipType().getMaxBorrowItems()) {
+            throw new MemberNotEligibleException("Member has reached their borrowing limit");
         }
         
-        // Create transaction
-        Transaction transaction = new Transaction(bookId, memberId, DEFAULT_LOAN_DAYS);
-        transactions.put(transaction.getId(), transaction);
+        // Create transaction and update book status in a single commit
+        UnitOfWork unit = new UnitOfWork();
+        List<Runnable> undo = new ArrayList<>();
+        Transaction transaction = stageBorrow(book, memberId, unit, undo);
+        commit(unit, undo);
+        return transaction;
+    }
+    
+    /**
+     * Lends several books to one member, as at a self-checkout kiosk. Each
+     * book is checked on its own and a refused one doesn't stop the others;
+     * the loans granted are committed together, with one write per store.
+     * @param memberId ID of borrowing member
+     * @param bookIds IDs of books to borrow
+     * @return Outcome for each book, in the order given
+     * @throws MemberNotFoundException if member doesn't exist or is inactive
+     * @throws StorageException if the loans couldn't be persisted, in which case none was granted
+     */
+    public List<BatchOutcome> borrowBooks(String memberId, List<String> bookIds) throws MemberNotFoundException {
+        StripedLock.Held bookLock = bookService.lockBooks(bookIds);
+        try {
+            StripedLock.Held memberLock = memberService.lockMember(memberId);
+            try {
+                return borrowAllLocked(memberId, bookIds);
+            } finally {
+                memberLock.unlock();
+            }
+        } finally {
+            bookLock.unlock();
+        }
+    }
+    
+    /**
+     * Lends several books, holding the locks of the books and the member
+     */
+    private List<BatchOutcome> borrowAllLocked(String memberId, List<String> bookIds)
+            throws MemberNotFoundException {
+        Member member = memberService.getMemberById(memberId);
+        if (!member.isActive()) {
+            throw new MemberNotEligibleException("Member is not active");
+        }
+        int allowed = member.getMembershipType().getMaxBorrowItems() - countMemberActiveTransactions(memberId);
         
-        // Update book status
-        bookService.updateBookStatus(bookId, Book.BookStatus.BORROWED);
+        UnitOfWork unit = new UnitOfWork();
+        List<Runnable> undo = new ArrayList<>();
+        List<BatchOutcome> outcomes = new ArrayList<>();
+        Set<String> seen = new HashSet<>();
+        for (String bookId : bookIds) {
+            try {
+                // Engines handing out copies would let a repeated book be claimed twice
+                if (!seen.add(bookId)) {
+                    throw new BookNotFoundException("Book appears more than once in the batch");
+                }
+                Book book = bookService.getBookById(bookId);
+                if (allowed <= 0) {
+                    throw new MemberNotEligibleException("Member has reached their borrowing limit");
+                }
+                outcomes.add(BatchOutcome.success(bookId, stageBorrow(book, memberId, unit, undo)));
+                allowed--;
+            } catch (BookNotFoundException | MemberNotFoundException e) {
+                outcomes.add(BatchOutcome.failure(bookId, e.getMessage()));
+            }
+        }
+        commit(unit, undo);
+        return outcomes;
+    }
+    
+    /**
+     * Claims an available book and opens a loan of it, as part of a unit of
+     * work. The caller holds the lock of the book.
+     * @throws BookNotFoundException if the book isn't available
+     */
+    private Transaction stageBorrow(Book book, String memberId, UnitOfWork unit, List<Runnable> undo)
+            throws BookNotFoundException {
+        int previousBookVersion = book.getVersion();
         
-        saveTransactions();
+        // Check availability and claim the book in one step
+        if (!bookService.transitionBookStatus(book, Book.BookStatus.AVAILABLE, Book.BookStatus.BORROWED, unit)) {
+            throw new BookUnavailableException("Book is not available for borrowing");
+        }
+        undo.add(() -> {
+            book.setStatus(Book.BookStatus.AVAILABLE);
+            book.setVersion(previousBookVersion);
+        });
+        
+        Transaction transaction = new Transaction(book.getId(), memberId, DEFAULT_LOAN_DAYS);
+        unit.put(transactions, transaction.getId(), transaction)
+            .afterCommit(() -> {
+                activeLoans.add(transaction);
+                schedule(transaction);
+            });
         return transaction;
     }
     
@@ -101,15 +309,67 @@ public class TransactionService {
      * @throws BookNotFoundException if transaction doesn't exist
      */
     public Transaction returnBook(String transactionId) throws BookNotFoundException {
-        Transaction transaction = transactions.get(transactionId);
-        if (transaction == null) {
-            throw new BookNotFoundException("Transaction not found");
+        StripedLock.Held held = lockLoan(transactionId);
+        try {
+            Transaction transaction = getActiveTransaction(transactionId);
+            
+            // Update book status and move the completed transaction to history in a single commit
+            UnitOfWork unit = new UnitOfWork();
+            List<Runnable> undo = new ArrayList<>();
+            stageReturn(transaction, unit, undo);
+            commit(unit, undo);
+            return transaction;
+        } finally {
+            held.unlock();
         }
-        
-        // Check if book is already returned
-        if (transaction.getStatus() == Transaction.TransactionStatus.RETURNED) {
-            throw new BookNotFoundException("Book is already returned");
+    }
+    
+    /**
+     * Returns several borrowed books, as at a returns sorter. Each loan is
+     * checked on its own and a refused one doesn't stop the others; the
+     * returns accepted are committed together, with one write per store.
+     * @param transactionIds IDs of transactions to complete
+     * @return Outcome for each transaction, in the order given
+     * @throws StorageException if the returns couldn't be persisted, in which case none was recorded
+     */
+    public List<BatchOutcome> returnBooks(List<String> transactionIds) {
+        StripedLock.Held held = lockLoans(transactionIds);
+        try {
+            UnitOfWork unit = new UnitOfWork();
+            List<Runnable> undo = new ArrayList<>();
+            List<BatchOutcome> outcomes = new ArrayList<>();
+            Set<String> seen = new HashSet<>();
+            for (String transactionId : transactionIds) {
+                try {
+                    if (!seen.add(transactionId)) {
+                        throw new BookNotFoundException("Transaction appears more than once in the batch");
+                    }
+                    Transaction transaction = getActiveTransaction(transactionId);
+                    stageReturn(transaction, unit, undo);
+                    outcomes.add(BatchOutcome.success(transactionId, transaction));
+                } catch (BookNotFoundException e) {
+                    outcomes.add(BatchOutcome.failure(transactionId, e.getMessage()));
+                }
+            }
+            commit(unit, undo);
+            return outcomes;
+        } finally {
+            held.unlock();
         }
+    }
+    
+    /**
+     * Completes a loan, freeing its book and moving it to history, as part
+     * of a unit of work. The caller holds the lock of the book.
+     * @throws BookNotFoundException if the book of the loan doesn't exist
+     */
+    private void stageReturn(Transaction transaction, UnitOfWork unit, List<Runnable> undo)
+            throws BookNotFoundException {
+        Book book = bookService.getBookById(transaction.getBookId());
+        Transaction.TransactionStatus previousStatus = transaction.getStatus();
+        Book.BookStatus previousBookStatus = book.getStatus();
+        int previousVersion = transaction.getVersion();
+        int previousBookVersion = book.getVersion();
         
         // Set return date and calculate fine if overdue
         LocalDate returnDate = LocalDate.now();
@@ -125,12 +385,20 @@ public class TransactionService {
         } else {
             transaction.setStatus(Transaction.TransactionStatus.RETURNED);
         }
+        transaction.setVersion(previousVersion + 1);
+        undo.add(() -> {
+            transaction.setReturnDate(null);
+            transaction.setFine(0.0);
+            transaction.setStatus(previousStatus);
+            transaction.setVersion(previousVersion);
+            book.setStatus(previousBookStatus);
+            book.setVersion(previousBookVersion);
+        });
         
-        // Update book status
-        bookService.updateBookStatus(transaction.getBookId(), Book.BookStatus.AVAILABLE);
-        
-        saveTransactions();
-        return transaction;
+        unit.put(history, transaction.getId(), transaction)
+            .delete(transactions, transaction.getId())
+            .afterCommit(() -> moveToHistory(transaction));
+        bookService.updateBookStatus(book, Book.BookStatus.AVAILABLE, unit);
     }
     
     /**
@@ -141,26 +409,220 @@ public class TransactionService {
      * @throws BookNotFoundException if transaction doesn't exist
      */
     public Transaction renewBook(String transactionId, int additionalDays) throws BookNotFoundException {
-        Transaction transaction = transactions.get(transactionId);
-        if (transaction == null) {
-            throw new BookNotFoundException("Transaction not found");
+        StripedLock.Held held = lockLoan(transactionId);
+        try {
+            return renewLocked(getActiveTransaction(transactionId), additionalDays);
+        } finally {
+            held.unlock();
         }
-        
-        // Check if book is already returned
-        if (transaction.getStatus() == Transaction.TransactionStatus.RETURNED) {
-            throw new BookNotFoundException("Book is already returned");
+    }
+    
+    /**
+     * Renews a borrowed book unless the loan changed since it was read, so
+     * that two people renewing the same loan don't extend it twice
+     * @param transactionId ID of transaction to renew
+     * @param additionalDays Number of days to extend
+     * @param expectedVersion Version of the transaction when it was read
+     * @return Updated transaction
+     * @throws BookNotFoundException if transaction doesn't exist
+     * @throws ConcurrentUpdateException if the transaction is no longer at the expected version
+     */
+    public Transaction renewBook(String transactionId, int additionalDays, int expectedVersion)
+            throws BookNotFoundException, ConcurrentUpdateException {
+        StripedLock.Held held = lockLoan(transactionId);
+        try {
+            Transaction transaction = getActiveTransaction(transactionId);
+            if (transaction.getVersion() != expectedVersion) {
+                throw new ConcurrentUpdateException("Transaction with ID " + transactionId
+                                                    + " was changed by someone else (version "
+                                                    + transaction.getVersion() + ", expected " + expectedVersion + ")");
+            }
+            return renewLocked(transaction, additionalDays);
+        } finally {
+            held.unlock();
         }
+    }
+    
+    /**
+     * Renews several borrowed books by the same number of days. Each loan is
+     * checked on its own and a refused one doesn't stop the others; the
+     * renewals accepted are committed together, with one write per store.
+     * @param transactionIds IDs of transactions to renew
+     * @param additionalDays Number of days to extend
+     * @return Outcome for each transaction, in the order given
+     * @throws StorageException if the renewals couldn't be persisted, in which case none was recorded
+     */
+    public List<BatchOutcome> renewBooks(List<String> transactionIds, int additionalDays) {
+        StripedLock.Held held = lockLoans(transactionIds);
+        try {
+            UnitOfWork unit = new UnitOfWork();
+            List<Runnable> undo = new ArrayList<>();
+            List<BatchOutcome> outcomes = new ArrayList<>();
+            Set<String> seen = new HashSet<>();
+            for (String transactionId : transactionIds) {
+                try {
+                    if (!seen.add(transactionId)) {
+                        throw new BookNotFoundException("Transaction appears more than once in the batch");
+                    }
+                    Transaction transaction = getActiveTransaction(transactionId);
+                    stageRenew(transaction, additionalDays, unit, undo);
+                    outcomes.add(BatchOutcome.success(transactionId, transaction));
+                } catch (BookNotFoundException e) {
+                    outcomes.add(BatchOutcome.failure(transactionId, e.getMessage()));
+                }
+            }
+            commit(unit, undo);
+            return outcomes;
+        } finally {
+            held.unlock();
+        }
+    }
+    
+    /**
+     * Renews a borrowed book, holding the lock of the book
+     */
+    private Transaction renewLocked(Transaction transaction, int additionalDays) {
+        UnitOfWork unit = new UnitOfWork();
+        List<Runnable> undo = new ArrayList<>();
+        stageRenew(transaction, additionalDays, unit, undo);
+        commit(unit, undo);
+        return transaction;
+    }
+    
+    /**
+     * Extends a loan as part of a unit of work. The caller holds the lock of
+     * the book.
+     */
+    private void stageRenew(Transaction transaction, int additionalDays, UnitOfWork unit, List<Runnable> undo) {
+        LocalDate previousDueDate = transaction.getDueDate();
+        Transaction.TransactionStatus previousStatus = transaction.getStatus();
+        int previousVersion = transaction.getVersion();
         
         // Extend due date
-        LocalDate newDueDate = transaction.getDueDate().plusDays(additionalDays);
+        LocalDate newDueDate = previousDueDate.plusDays(additionalDays);
         transaction.setDueDate(newDueDate);
         
         // Reset overdue status if applicable
         if (transaction.getStatus() == Transaction.TransactionStatus.OVERDUE) {
             transaction.setStatus(Transaction.TransactionStatus.BORROWED);
         }
+        transaction.setVersion(previousVersion + 1);
+        undo.add(() -> {
+            transaction.setDueDate(previousDueDate);
+            transaction.setStatus(previousStatus);
+            transaction.setVersion(previousVersion);
+        });
         
-        saveTransactions();
+        unit.put(transactions, transaction.getId(), transaction)
+            .afterCommit(() -> schedule(transaction));
+    }
+    
+    /**
+     * Commits a unit of work, undoing the in-memory changes staged for it if
+     * it can't be persisted
+     */
+    private static void commit(UnitOfWork unit, List<Runnable> undo) {
+        try {
+            unit.commit();
+        } catch (StorageException e) {
+            for (int i = undo.size() - 1; i >= 0; i--) {
+                undo.get(i).run();
+            }
+            throw e;
+        }
+    }
+    
+    /**
+     * Locks the book of an active transaction. Callers look the transaction
+     * up again once locked, as it may have been returned in the meantime.
+     * @param transactionId ID of the transaction
+     * @return Held lock
+     * @throws BookNotFoundException if transaction doesn't exist or is already returned
+     */
+    private StripedLock.Held lockLoan(String transactionId) throws BookNotFoundException {
+        return bookService.lockBook(getActiveTransaction(transactionId).getBookId());
+    }
+    
+    /**
+     * Locks the books of several active transactions at once. Unknown or
+     * returned transactions are skipped; callers report them when they look
+     * the transactions up again once locked.
+     * @param transactionIds IDs of the transactions
+     * @return Held locks
+     */
+    private StripedLock.Held lockLoans(List<String> transactionIds) {
+        List<String> bookIds = new ArrayList<>();
+        for (String transactionId : transactionIds) {
+            Transaction transaction = transactions.get(transactionId);
+            if (transaction != null) {
+                bookIds.add(transaction.getBookId());
+            }
+        }
+        return bookService.lockBooks(bookIds);
+    }
+    
+    /**
+     * Moves a returned transaction from the active loan index to the history
+     * one, if history has been indexed yet
+     */
+    private void moveToHistory(Transaction transaction) {
+        activeLoans.remove(transaction);
+        dueDates.cancel(transaction.getId());
+        overdueSweep.cancel(transaction.getId());
+        synchronized (historyLock) {
+            if (historyLoans != null) {
+                historyLoans.add(transaction);
+            }
+        }
+    }
+    
+    /**
+     * Queues an active transaction by its due date. Only those not marked
+     * overdue yet are queued for the overdue sweep.
+     */
+    private void schedule(Transaction transaction) {
+        dueDates.schedule(transaction.getId(), transaction.getDueDate());
+        if (transaction.getStatus() == Transaction.TransactionStatus.BORROWED) {
+            overdueSweep.schedule(transaction.getId(), transaction.getDueDate());
+        } else {
+            overdueSweep.cancel(transaction.getId());
+        }
+    }
+    
+    /**
+     * Gets the index of returned transactions in history, building it on
+     * first use so that history is still only loaded when it is queried
+     */
+    private LoanIndex historyLoans() {
+        LoanIndex index = historyLoans;
+        if (index == null) {
+            // Returns committed while building would otherwise be missed
+            synchronized (historyLock) {
+                index = historyLoans;
+                if (index == null) {
+                    index = new LoanIndex();
+                    for (Transaction t : history.scan()) {
+                        index.add(t);
+                    }
+                    historyLoans = index;
+                }
+            }
+        }
+        return index;
+    }
+    
+    /**
+     * Gets a transaction that has not been returned yet
+     * @param transactionId ID of transaction to get
+     * @return Active transaction
+     * @throws BookNotFoundException if transaction doesn't exist or is already returned
+     */
+    private Transaction getActiveTransaction(String transactionId) throws BookNotFoundException {
+        Transaction transaction = transactions.get(transactionId);
+        if (transaction == null) {
+            // Telling the two apart would mean loading history
+            throw new BookNotFoundException("Transaction not found or already returned");
+        }
         return transaction;
     }
     
@@ -170,7 +632,11 @@ public class TransactionService {
      * @return Transaction if found, null otherwise
      */
     public Transaction getTransactionById(String transactionId) {
-        return transactions.get(transactionId);
+        Transaction transaction = transactions.get(transactionId);
+        if (transaction == null) {
+            transaction = history.get(transactionId);
+        }
+        return transaction != null ? transaction : archive.get(transactionId);
     }
     
     /**
@@ -178,7 +644,174 @@ public class TransactionService {
      * @return List of all transactions
      */
     public List<Transaction> getAllTransactions() {
-        return new ArrayList<>(transactions.values());
+        return findAcrossTiers(t -> true);
+    }
+    
+    /**
+     * Finds transactions in the active store, history and archive.
+     * A transaction archived by a run that was interrupted before removing it
+     * from history is reported once, from history.
+     * @param filter Filter to apply
+     * @return Matching transactions, newest tier first
+     */
+    private List<Transaction> findAcrossTiers(Predicate<Transaction> filter) {
+        Map<String, Transaction> found = new LinkedHashMap<>();
+        Stream.concat(transactions.scan().stream(), history.scan().stream())
+              .filter(filter)
+              .forEach(t -> found.put(t.getId(), t));
+        for (Transaction t : archive.find(filter)) {
+            found.putIfAbsent(t.getId(), t);
+        }
+        return new ArrayList<>(found.values());
+    }
+    
+    /**
+     * Finds the transactions of one member or book across all tiers, using the
+     * loan indexes for the active store and history and the attribute index of
+     * each archive segment, so only the blocks holding them are inflated
+     * @param lookup Gets the IDs of the wanted transactions from a loan index
+     * @param archivedAttribute Archive attribute holding the same member or book
+     * @param value ID of the member or book
+     * @return Matching transactions, newest tier first
+     */
+    private List<Transaction> findIndexed(Function<LoanIndex, Set<String>> lookup, String archivedAttribute,
+                                          String value) {
+        Map<String, Transaction> found = new LinkedHashMap<>();
+        for (String id : lookup.apply(activeLoans)) {
+            Transaction t = transactions.get(id);
+            if (t != null) {
+                found.put(id, t);
+            }
+        }
+        for (String id : lookup.apply(historyLoans())) {
+            Transaction t = history.get(id);
+            if (t != null) {
+                found.put(id, t);
+            }
+        }
+        for (Transaction t : archive.find(archivedAttribute, value)) {
+            found.putIfAbsent(t.getId(), t);
+        }
+        return new ArrayList<>(found.values());
+    }
+    
+    /**
+     * Runs a query over all transactions, active, returned and archived,
+     * using the loan indexes where they help
+     * @param query Query to run
+     * @return Matching transactions
+     */
+    public List<Transaction> query(Query<Transaction> query) {
+        return QueryPlan.plan(querySource, query).execute();
+    }
+    
+    /**
+     * Describes how a query over all transactions would be run
+     * @param query Query to plan
+     * @return Query plan, one step per line
+     */
+    public String explain(Query<Transaction> query) {
+        return QueryPlan.plan(querySource, query).explain();
+    }
+    
+    /**
+     * Finds the index answering a comparison in a query, if there is one.
+     * Lookups by member or book reach the archive through its attribute indexes.
+     */
+    private IndexLookup<Transaction> lookup(Condition.Comparison<Transaction> comparison) {
+        Object value = comparison.getValue();
+        if (value == null) {
+            return null;
+        }
+        if (comparison.is(Fields.TRANSACTION_ID, Condition.Operator.EQUAL)) {
+            return new IndexLookup<>("transactions", 1, () -> {
+                Transaction t = getTransactionById((String) value);
+                return t != null ? List.of(t) : List.of();
+            });
+        }
+        if (comparison.is(Fields.TRANSACTION_MEMBER, Condition.Operator.EQUAL)) {
+            String memberId = (String) value;
+            int members = 0;
+            for (Member.MembershipType type : Member.MembershipType.values()) {
+                members += memberService.countMembersByType(type);
+            }
+            int estimate = activeLoans.countByMember(memberId)
+                    + estimateHistoryLoans(index -> index.countByMember(memberId), members);
+            return new IndexLookup<>("loans by member", estimate, () -> getMemberTransactionHistory(memberId));
+        }
+        if (comparison.is(Fields.TRANSACTION_BOOK, Condition.Operator.EQUAL)) {
+            String bookId = (String) value;
+            int books = 0;
+            for (Book.BookStatus status : Book.BookStatus.values()) {
+                books += bookService.countBooksByStatus(status);
+            }
+            int estimate = activeLoans.countByBook(bookId)
+                    + estimateHistoryLoans(index -> index.countByBook(bookId), books);
+            return new IndexLookup<>("loans by book", estimate, () -> getBookTransactionHistory(bookId));
+        }
+        return null;
+    }
+    
+    /**
+     * Estimates the number of transactions in history without loading it
+     */
+    private int estimateHistorySize() {
+        if (history instanceof LazyStorageEngine) {
+            return ((LazyStorageEngine<Transaction>) history).estimateSize();
+        }
+        return history.size();
+    }
+    
+    /**
+     * Estimates how many returned transactions in history a member or book
+     * has: counted once history is indexed, until then the average over all
+     * members or books, so that planning a query doesn't load history
+     * @param count Counts the transactions of the member or book in an index
+     * @param owners Number of members or books
+     */
+    private int estimateHistoryLoans(ToIntFunction<LoanIndex> count, int owners) {
+        LoanIndex index = historyLoans;
+        if (index != null) {
+            return count.applyAsInt(index);
+        }
+        return estimateHistorySize() / Math.max(1, owners);
+    }
+    
+    /**
+     * Moves returned transactions older than a given age from history to the
+     * archive, partitioned by the month they were returned in
+     * @param minimumAgeDays Minimum number of days since the return
+     * @return Number of transactions archived
+     */
+    public int archiveReturnedTransactions(int minimumAgeDays) {
+        if (minimumAgeDays < 0) {
+            throw new IllegalArgumentException("Archive age cannot be negative");
+        }
+        LocalDate cutoff = LocalDate.now().minusDays(minimumAgeDays);
+        synchronized (archiveLock) {
+            List<Transaction> old = history.scan().stream()
+                                           .filter(t -> t.isReturned() && t.getReturnDate().isBefore(cutoff))
+                                           .collect(Collectors.toList());
+            if (old.isEmpty()) {
+                return 0;
+            }
+            
+            // Archive first: if removing them from history fails, they are only duplicated
+            archive.append(old);
+            WriteBatch<Transaction> removed = new WriteBatch<>();
+            for (Transaction t : old) {
+                removed.delete(t.getId());
+            }
+            history.batch(removed);
+            synchronized (historyLock) {
+                if (historyLoans != null) {
+                    for (Transaction t : old) {
+                        historyLoans.remove(t);
+                    }
+                }
+            }
+            return old.size();
+        }
     }
     
     /**
@@ -187,11 +820,23 @@ public class TransactionService {
      * @return List of active transactions
      */
     public List<Transaction> getMemberActiveTransactions(String memberId) {
-        return transactions.values().stream()
-                          .filter(t -> t.getMemberId().equals(memberId))
-                          .filter(t -> t.getStatus() == Transaction.TransactionStatus.BORROWED || 
-                                       t.getStatus() == Transaction.TransactionStatus.OVERDUE)
-                          .collect(Collectors.toList());
+        List<Transaction> active = new ArrayList<>();
+        for (String id : activeLoans.getByMember(memberId)) {
+            Transaction t = transactions.get(id);
+            if (t != null) {
+                active.add(t);
+            }
+        }
+        return active;
+    }
+    
+    /**
+     * Counts the active (not returned) transactions of a member
+     * @param memberId ID of member
+     * @return Number of active transactions
+     */
+    public int countMemberActiveTransactions(String memberId) {
+        return activeLoans.countByMember(memberId);
     }
     
     /**
@@ -200,9 +845,7 @@ public class TransactionService {
      * @return List of all transactions for the member
      */
     public List<Transaction> getMemberTransactionHistory(String memberId) {
-        return transactions.values().stream()
-                          .filter(t -> t.getMemberId().equals(memberId))
-                          .collect(Collectors.toList());
+        return findIndexed(index -> index.getByMember(memberId), ARCHIVED_MEMBER, memberId);
     }
     
     /**
@@ -211,9 +854,7 @@ public class TransactionService {
      * @return List of all transactions for the book
      */
     public List<Transaction> getBookTransactionHistory(String bookId) {
-        return transactions.values().stream()
-                          .filter(t -> t.getBookId().equals(bookId))
-                          .collect(Collectors.toList());
+        return findIndexed(index -> index.getByBook(bookId), ARCHIVED_BOOK, bookId);
     }
     
     /**
@@ -221,32 +862,71 @@ public class TransactionService {
      * @return List of overdue transactions
      */
     public List<Transaction> getOverdueTransactions() {
-        LocalDate today = LocalDate.now();
-        return transactions.values().stream()
-                          .filter(t -> t.getStatus() == Transaction.TransactionStatus.BORROWED || 
-                                       t.getStatus() == Transaction.TransactionStatus.OVERDUE)
-                          .filter(t -> t.getDueDate().isBefore(today))
-                          .collect(Collectors.toList());
+        List<Transaction> overdue = new ArrayList<>();
+        for (String id : dueDates.dueBefore(LocalDate.now())) {
+            Transaction t = transactions.get(id);
+            if (t != null) {
+                overdue.add(t);
+            }
+        }
+        return overdue;
     }
     
     /**
      * Updates overdue status of all transactions
-     * Sets transactions to OVERDUE status if past due date
+     * Sets transactions to OVERDUE status if past due date. Only the loans
+     * that fell due since the previous run are visited.
      */
     public void updateOverdueStatus() {
         LocalDate today = LocalDate.now();
-        boolean needSave = false;
-        
-        for (Transaction t : transactions.values()) {
-            if ((t.getStatus() == Transaction.TransactionStatus.BORROWED) && 
-                t.getDueDate().isBefore(today)) {
-                t.setStatus(Transaction.TransactionStatus.OVERDUE);
-                needSave = true;
-            }
+        List<String> due = overdueSweep.pollDueBefore(today);
+        if (due.isEmpty()) {
+            return;
         }
         
-        if (needSave) {
-            saveTransactions();
+        // The loans' books aren't known before looking them up, so hold them all while marking
+        StripedLock.Held held = bookService.lockAllBooks();
+        try {
+            List<Transaction> marked = new ArrayList<>();
+            WriteBatch<Transaction> updates = new WriteBatch<>();
+            
+            for (String id : due) {
+                // A loan renewed since it was polled is no longer due
+                Transaction t = transactions.get(id);
+                if (t != null && t.getStatus() == Transaction.TransactionStatus.BORROWED
+                        && t.getDueDate().isBefore(today)) {
+                    t.setStatus(Transaction.TransactionStatus.OVERDUE);
+                    t.setVersion(t.getVersion() + 1);
+                    updates.put(t.getId(), t);
+                    marked.add(t);
+                }
+            }
+            
+            if (!updates.isEmpty()) {
+                try {
+                    transactions.batch(updates);
+                } catch (StorageException e) {
+                    // Put them back so the next run tries again
+                    for (Transaction t : marked) {
+                        t.setStatus(Transaction.TransactionStatus.BORROWED);
+                        t.setVersion(t.getVersion() - 1);
+                        schedule(t);
+                    }
+                    throw e;
+                }
+            }
+        } finally {
+            held.unlock();
         }
     }
+    
+    /**
+     * Registers active transactions, history and archive with a backup manager
+     * @param backupManager Backup manager to register with
+     */
+    public void addToBackup(BackupManager backupManager) {
+        backupManager.addStore(TRANSACTIONS_FILE, new TransactionCodec(), transactions);
+        backupManager.addStore(HISTORY_FILE, new TransactionCodec(), history);
+        backupManager.addFileDirectory(ARCHIVE_DIRECTORY, archive.getDirectory());
+    }
 }
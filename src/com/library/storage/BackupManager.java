@@ -0,0 +1,732 @@
+package com.library.storage;
+
+import com.library.exception.StorageException;
+import com.library.util.FileHandler;
+import com.library.util.RecordCodec;
+import com.library.util.RecordReader;
+import com.library.util.RecordWriter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Supplier;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Incremental backups of the library's stores.
+ * Every backup is a new generation. The manifest records, for every entity,
+ * the generation it last changed in and a hash of its encoding, and for
+ * every file-backed store how far its {@link ChangeTracker} had got. A backup
+ * only encodes and hashes the entities whose keys changed since then (or
+ * every entity, when the tracker started afresh or the store has none), and
+ * writes those that are new or changed (and the keys that were removed) to
+ * gen-&lt;n&gt;/&lt;file&gt;.delta, so what is read and written scales with
+ * churn rather than with the size of the library. Directories of immutable
+ * files, such as archive segments, are backed up by copying the files not
+ * backed up yet.
+ * The manifest itself is kept as a base file plus the changes each
+ * generation made to it, in gen-&lt;n&gt;/manifest.delta, which is written
+ * last and so marks the generation complete; the base is rewritten every
+ * {@value #MANIFEST_COMPACTION_INTERVAL} generations.
+ * A restore replays the deltas up to a generation and writes a fresh
+ * snapshot of every store.
+ */
+public class BackupManager {
+    private static final String MANIFEST_FILE = "manifest";
+    private static final String MANIFEST_DELTA_FILE = "manifest.delta";
+    private static final String GENERATION_PREFIX = "gen-";
+    private static final String DELTA_SUFFIX = ".delta";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final int MANIFEST_MAGIC = 0x4C4D4246; // "LMBF"
+    private static final int DELTA_MAGIC = 0x4C4D4244; // "LMBD"
+    private static final int MANIFEST_DELTA_MAGIC = 0x4C4D424D; // "LMBM"
+    private static final int FORMAT_VERSION = 1;
+    private static final int MANIFEST_FORMAT_VERSION = 2;
+    private static final int MANIFEST_COMPACTION_INTERVAL = 32;
+    
+    private final Path backupDirectory;
+    private final Map<String, Store<?>> stores = new LinkedHashMap<>();
+    private final Map<String, Path> fileDirectories = new LinkedHashMap<>();
+    
+    /**
+     * Creates a backup manager writing to (or restoring from) a directory
+     * @param backupDirectory Directory holding the backup generations
+     */
+    public BackupManager(String backupDirectory) {
+        this.backupDirectory = Paths.get(backupDirectory);
+    }
+    
+    /**
+     * Registers a store to back up
+     * @param filename Data file of the store, which a restore writes
+     * @param codec Codec for the entities
+     * @param engine Engine holding the entities
+     */
+    public <V> void addStore(String filename, RecordCodec<V> codec, StorageEngine<V> engine) {
+        stores.put(filename, new Store<>(codec, engine));
+    }
+    
+    /**
+     * Registers a store that is only restored, not backed up
+     * @param filename Data file of the store, which a restore writes
+     * @param codec Codec for the entities
+     */
+    public <V> void addStore(String filename, RecordCodec<V> codec) {
+        addStore(filename, codec, null);
+    }
+    
+    /**
+     * Registers a directory of files that are never modified once written
+     * @param name Name of the directory within the data directory and the backup
+     * @param directory Directory holding the files
+     */
+    public void addFileDirectory(String name, String directory) {
+        fileDirectories.put(name, Paths.get(directory));
+    }
+    
+    /**
+     * Backs up everything that changed since the previous backup
+     * @return Generation written, or the previous generation if nothing changed
+     * @throws StorageException if the backup cannot be written; the previous generations stay usable
+     */
+    public int backup() {
+        Manifest manifest = readManifest();
+        int generation = manifest.generation + 1;
+        Path generationDirectory = generationDirectory(generation);
+        Manifest delta = new Manifest();
+        delta.generation = generation;
+        boolean changed = false;
+        try {
+            deleteRecursively(generationDirectory);
+            for (Map.Entry<String, Store<?>> store : stores.entrySet()) {
+                if (store.getValue().engine != null) {
+                    changed |= backupStore(store.getKey(), store.getValue(), manifest, delta,
+                                           generationDirectory);
+                }
+            }
+            for (Map.Entry<String, Path> directory : fileDirectories.entrySet()) {
+                changed |= backupFiles(directory.getKey(), directory.getValue(), manifest, delta);
+            }
+            if (!changed) {
+                return manifest.generation;
+            }
+            pruneTrackers(manifest, delta);
+            writeManifest(generationDirectory.resolve(MANIFEST_DELTA_FILE), MANIFEST_DELTA_MAGIC, delta);
+            manifest.generation = generation;
+            if (generation % MANIFEST_COMPACTION_INTERVAL == 0) {
+                writeManifest(backupDirectory.resolve(MANIFEST_FILE), MANIFEST_MAGIC, manifest);
+            }
+        } catch (IOException e) {
+            throw new StorageException("Could not write backup generation " + generation, e);
+        }
+        return generation;
+    }
+    
+    /**
+     * Gets the latest generation in the backup directory
+     * @return Latest generation, 0 if there is no backup yet
+     */
+    public int getLatestGeneration() {
+        return readManifest().generation;
+    }
+    
+    /**
+     * Rebuilds the data files of every registered store as of a backup generation
+     * @param dataDirectory Data directory to restore into, which must be empty or not exist yet
+     * @param generation Generation to restore, or 0 for the latest
+     * @throws StorageException if the backup is incomplete or corrupt, or the data directory isn't empty
+     */
+    public void restore(String dataDirectory, int generation) {
+        Manifest manifest = readManifest();
+        int restored = generation == 0 ? manifest.generation : generation;
+        if (restored < 1 || restored > manifest.generation) {
+            throw new StorageException("No backup generation " + generation);
+        }
+        
+        Path target = Paths.get(dataDirectory);
+        if (Files.isDirectory(target)) {
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(target)) {
+                if (entries.iterator().hasNext()) {
+                    throw new StorageException("Data directory " + dataDirectory + " is not empty");
+                }
+            } catch (IOException e) {
+                throw new StorageException("Could not read data directory " + dataDirectory, e);
+            }
+        }
+        FileHandler fileHandler = new FileHandler(dataDirectory);
+        try {
+            for (Map.Entry<String, Store<?>> store : stores.entrySet()) {
+                restoreStore(store.getKey(), store.getValue(), restored, fileHandler);
+            }
+            for (Map.Entry<String, Path> directory : fileDirectories.entrySet()) {
+                restoreFiles(directory.getKey(), manifest, restored, target.resolve(directory.getKey()));
+            }
+        } catch (IOException e) {
+            throw new StorageException("Could not restore backup generation " + restored, e);
+        }
+    }
+    
+    /**
+     * Writes the entities of a store that changed since the previous backup
+     * @return true if anything changed, or the store's tracker started afresh
+     */
+    private <V> boolean backupStore(String filename, Store<V> store, Manifest manifest, Manifest delta,
+                                    Path generationDirectory) throws IOException {
+        Map<String, Version> versions = manifest.stores.computeIfAbsent(filename, f -> new HashMap<>());
+        DeltaBuilder<V> builder = new DeltaBuilder<>(store.codec, versions, delta.generation);
+        
+        // Taken before reading any entity: later changes are left to the next backup
+        ChangeTracker tracker = trackerOf(store.engine);
+        Tracking previous = manifest.tracking.get(filename);
+        Tracking tracking = tracker == null ? null : new Tracking(tracker.getEpoch(), tracker.getSequence());
+        boolean incremental = tracking != null && previous != null && previous.epoch == tracking.epoch;
+        if (incremental) {
+            for (String key : tracker.changedSince(previous.sequence)) {
+                V entity = store.engine.get(key);
+                if (entity == null) {
+                    builder.remove(key);
+                } else {
+                    builder.put(key, entity);
+                }
+            }
+        } else {
+            Set<String> present = new HashSet<>();
+            for (V entity : store.engine.scan()) {
+                String key = store.codec.getKey(entity);
+                present.add(key);
+                builder.put(key, entity);
+            }
+            for (String key : new ArrayList<>(versions.keySet())) {
+                if (!present.contains(key)) {
+                    builder.remove(key);
+                }
+            }
+        }
+        
+        if (tracking != null) {
+            manifest.tracking.put(filename, tracking);
+            delta.tracking.put(filename, tracking);
+        }
+        if (builder.changedRecords.isEmpty() && builder.removed.isEmpty()) {
+            return tracking != null && !incremental;
+        }
+        delta.stores.put(filename, builder.changed);
+        delta.removed.put(filename, builder.removed);
+        
+        Files.createDirectories(generationDirectory);
+        writeChecked(generationDirectory.resolve(filename + DELTA_SUFFIX), dos -> {
+            dos.writeInt(DELTA_MAGIC);
+            dos.writeByte(FORMAT_VERSION);
+            dos.writeInt(store.codec.getVersion());
+            dos.writeInt(builder.changedRecords.size());
+            for (byte[] record : builder.changedRecords) {
+                dos.write(record);
+            }
+            dos.writeInt(builder.removed.size());
+            RecordWriter keyWriter = new RecordWriter(dos);
+            for (String key : builder.removed) {
+                keyWriter.writeString(key);
+            }
+            keyWriter.flush();
+        });
+        return true;
+    }
+    
+    /**
+     * Lets the change trackers drop the stamps of deletions this backup
+     * recorded, and records the new epoch of those that did. Should the
+     * manifest then not be written, the next backup scans those stores.
+     */
+    private void pruneTrackers(Manifest manifest, Manifest delta) {
+        for (Map.Entry<String, Store<?>> store : stores.entrySet()) {
+            Tracking tracking = delta.tracking.get(store.getKey());
+            ChangeTracker tracker = tracking == null ? null : trackerOf(store.getValue().engine);
+            if (tracker != null && tracker.pruneDeleted(tracking.epoch, tracking.sequence)) {
+                tracker.save();
+                Tracking pruned = new Tracking(tracker.getEpoch(), tracking.sequence);
+                manifest.tracking.put(store.getKey(), pruned);
+                delta.tracking.put(store.getKey(), pruned);
+            }
+        }
+    }
+    
+    /**
+     * Gets the change tracker of a store, opening it if it is lazy
+     * @return Tracker, or null if the store doesn't track its changes
+     */
+    private static ChangeTracker trackerOf(StorageEngine<?> engine) {
+        if (engine instanceof LazyStorageEngine) {
+            engine = ((LazyStorageEngine<?>) engine).delegate();
+        }
+        return engine instanceof FileStorageEngine ? ((FileStorageEngine<?>) engine).changes : null;
+    }
+    
+    /**
+     * Copies the files of a directory that are not in the backup yet
+     * @return true if any file was copied
+     */
+    private boolean backupFiles(String name, Path directory, Manifest manifest, Manifest delta)
+            throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return false;
+        }
+        Map<String, Version> versions = manifest.files.computeIfAbsent(name, n -> new TreeMap<>());
+        Path target = backupDirectory.resolve(name);
+        boolean copied = false;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                String fileName = file.getFileName().toString();
+                if (fileName.endsWith(TEMP_SUFFIX) || versions.containsKey(fileName)) {
+                    continue;
+                }
+                Files.createDirectories(target);
+                Path temp = target.resolve(fileName + TEMP_SUFFIX);
+                Files.copy(file, temp, StandardCopyOption.REPLACE_EXISTING);
+                Files.move(temp, target.resolve(fileName), StandardCopyOption.REPLACE_EXISTING,
+                           StandardCopyOption.ATOMIC_MOVE);
+                Version version = new Version(delta.generation, 0);
+                versions.put(fileName, version);
+                delta.files.computeIfAbsent(name, n -> new TreeMap<>()).put(fileName, version);
+                copied = true;
+            }
+        }
+        return copied;
+    }
+    
+    /**
+     * Replays the deltas of a store up to a generation and writes its data file
+     */
+    private <V> void restoreStore(String filename, Store<V> store, int target, FileHandler fileHandler)
+            throws IOException {
+        Map<String, V> records = new HashMap<>();
+        for (int generation = 1; generation <= target; generation++) {
+            Path delta = generationDirectory(generation).resolve(filename + DELTA_SUFFIX);
+            if (!Files.exists(delta)) {
+                continue;
+            }
+            readChecked(delta, dis -> {
+                if (dis.readInt() != DELTA_MAGIC || dis.readByte() != FORMAT_VERSION) {
+                    throw new IOException("Not a backup delta: " + delta);
+                }
+                int version = dis.readInt();
+                RecordReader reader = new RecordReader(dis);
+                for (int i = dis.readInt(); i > 0; i--) {
+                    V entity = store.codec.read(reader, version);
+                    records.put(store.codec.getKey(entity), entity);
+                }
+                for (int i = dis.readInt(); i > 0; i--) {
+                    records.remove(reader.readString());
+                }
+            });
+        }
+        if (!fileHandler.writeRecords(filename, records, store.codec)) {
+            throw new IOException("Could not write " + filename);
+        }
+    }
+    
+    /**
+     * Copies the backed-up files of a directory that existed as of a generation
+     */
+    private void restoreFiles(String name, Manifest manifest, int target, Path directory) throws IOException {
+        Map<String, Version> versions = manifest.files.get(name);
+        if (versions == null) {
+            return;
+        }
+        for (Map.Entry<String, Version> file : versions.entrySet()) {
+            if (file.getValue().generation <= target) {
+                Files.createDirectories(directory);
+                Files.copy(backupDirectory.resolve(name).resolve(file.getKey()), directory.resolve(file.getKey()),
+                           StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+    }
+    
+    /**
+     * Reads the manifest base and applies the deltas of the complete
+     * generations after it, or starts an empty one before the first backup
+     */
+    private Manifest readManifest() {
+        Manifest manifest = new Manifest();
+        Path path = backupDirectory.resolve(MANIFEST_FILE);
+        try {
+            if (Files.exists(path)) {
+                readManifest(path, MANIFEST_MAGIC, manifest);
+            }
+            Path deltaPath = generationDirectory(manifest.generation + 1).resolve(MANIFEST_DELTA_FILE);
+            while (Files.exists(deltaPath)) {
+                Manifest delta = new Manifest();
+                readManifest(deltaPath, MANIFEST_DELTA_MAGIC, delta);
+                if (delta.generation != manifest.generation + 1) {
+                    throw new IOException("Manifest delta out of sequence: " + deltaPath);
+                }
+                manifest.apply(delta);
+                deltaPath = generationDirectory(manifest.generation + 1).resolve(MANIFEST_DELTA_FILE);
+            }
+        } catch (IOException e) {
+            throw new StorageException("Could not read backup manifest", e);
+        }
+        return manifest;
+    }
+    
+    /**
+     * Reads a manifest base or delta file into an empty manifest
+     */
+    private void readManifest(Path path, int magic, Manifest manifest) throws IOException {
+        readChecked(path, dis -> {
+            if (dis.readInt() != magic) {
+                throw new IOException("Not a backup manifest: " + path);
+            }
+            int version = dis.readByte();
+            if (version < 1 || version > MANIFEST_FORMAT_VERSION) {
+                throw new IOException("Unsupported backup manifest version " + version);
+            }
+            manifest.generation = dis.readInt();
+            RecordReader reader = new RecordReader(dis);
+            readVersions(dis, reader, manifest.stores, HashMap::new);
+            readVersions(dis, reader, manifest.files, TreeMap::new);
+            if (version >= 2) {
+                for (int i = dis.readInt(); i > 0; i--) {
+                    manifest.tracking.put(reader.readString(), new Tracking(reader.readLong(), reader.readLong()));
+                }
+                for (int i = dis.readInt(); i > 0; i--) {
+                    String name = reader.readString();
+                    List<String> keys = new ArrayList<>();
+                    for (int j = dis.readInt(); j > 0; j--) {
+                        keys.add(reader.readString());
+                    }
+                    manifest.removed.put(name, keys);
+                }
+            }
+        });
+    }
+    
+    private static void readVersions(DataInputStream dis, RecordReader reader, Map<String, Map<String, Version>> target,
+                                     Supplier<Map<String, Version>> mapFactory) throws IOException {
+        for (int i = dis.readInt(); i > 0; i--) {
+            String name = reader.readString();
+            Map<String, Version> versions = mapFactory.get();
+            for (int j = dis.readInt(); j > 0; j--) {
+                String key = reader.readString();
+                int generation = reader.readVarInt();
+                versions.put(key, new Version(generation, dis.readLong()));
+            }
+            target.put(name, versions);
+        }
+    }
+    
+    /**
+     * Writes a manifest base or delta file, replacing any previous one atomically
+     */
+    private void writeManifest(Path path, int magic, Manifest manifest) throws IOException {
+        writeChecked(path, dos -> {
+            dos.writeInt(magic);
+            dos.writeByte(MANIFEST_FORMAT_VERSION);
+            dos.writeInt(manifest.generation);
+            RecordWriter writer = new RecordWriter(dos);
+            writeVersions(dos, writer, manifest.stores);
+            writeVersions(dos, writer, manifest.files);
+            writer.flush();
+            dos.writeInt(manifest.tracking.size());
+            for (Map.Entry<String, Tracking> tracking : manifest.tracking.entrySet()) {
+                writer.writeString(tracking.getKey());
+                writer.writeLong(tracking.getValue().epoch);
+                writer.writeLong(tracking.getValue().sequence);
+            }
+            writer.flush();
+            dos.writeInt(manifest.removed.size());
+            for (Map.Entry<String, List<String>> removed : manifest.removed.entrySet()) {
+                writer.writeString(removed.getKey());
+                writer.flush();
+                dos.writeInt(removed.getValue().size());
+                for (String key : removed.getValue()) {
+                    writer.writeString(key);
+                }
+            }
+            writer.flush();
+        });
+    }
+    
+    private static void writeVersions(DataOutputStream dos, RecordWriter writer,
+                                      Map<String, Map<String, Version>> source) throws IOException {
+        writer.flush();
+        dos.writeInt(source.size());
+        for (Map.Entry<String, Map<String, Version>> entry : source.entrySet()) {
+            writer.writeString(entry.getKey());
+            writer.flush();
+            dos.writeInt(entry.getValue().size());
+            for (Map.Entry<String, Version> version : entry.getValue().entrySet()) {
+                writer.writeString(version.getKey());
+                writer.writeVarInt(version.getValue().generation);
+                writer.flush();
+                dos.writeLong(version.getValue().hash);
+            }
+        }
+    }
+    
+    /**
+     * Resolves the directory of a backup generation
+     */
+    private Path generationDirectory(int generation) {
+        return backupDirectory.resolve(String.format("%s%06d", GENERATION_PREFIX, generation));
+    }
+    
+    /**
+     * Writes a file with a CRC32C trailer to a synced temporary file and moves it into place
+     */
+    private void writeChecked(Path path, Body<DataOutputStream> body) throws IOException {
+        Files.createDirectories(path.getParent());
+        Path temp = path.resolveSibling(path.getFileName() + TEMP_SUFFIX);
+        CRC32C crc = new CRC32C();
+        try (FileOutputStream fos = new FileOutputStream(temp.toFile())) {
+            DataOutputStream dos = new DataOutputStream(
+                    new BufferedOutputStream(new CheckedOutputStream(fos, crc)));
+            body.accept(dos);
+            dos.flush();
+            new DataOutputStream(fos).writeInt((int) crc.getValue());
+            fos.getChannel().force(true);
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    
+    /**
+     * Reads a file written by {@link #writeChecked}, verifying its trailer
+     */
+    private void readChecked(Path path, Body<DataInputStream> body) throws IOException {
+        long size = Files.size(path);
+        if (size < 4) {
+            throw new IOException("Truncated backup file " + path.getFileName());
+        }
+        CRC32C crc = new CRC32C();
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(path))) {
+            DataInputStream checked = new DataInputStream(new CheckedInputStream(
+                    new BoundedInputStream(in, size - 4), crc));
+            body.accept(checked);
+            if (checked.read() != -1) {
+                throw new IOException("Unexpected data in backup file " + path.getFileName());
+            }
+            if (new DataInputStream(in).readInt() != (int) crc.getValue()) {
+                throw new IOException("Checksum mismatch in backup file " + path.getFileName());
+            }
+        }
+    }
+    
+    private static void deleteRecursively(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+        if (Files.isDirectory(path)) {
+            try (DirectoryStream<Path> children = Files.newDirectoryStream(path)) {
+                for (Path child : children) {
+                    deleteRecursively(child);
+                }
+            }
+        }
+        Files.delete(path);
+    }
+    
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+    
+    /**
+     * Hashes an encoded entity to 64 bits
+     */
+    private static long hash(MessageDigest digest, byte[] encoded) {
+        byte[] sha = digest.digest(encoded);
+        long hash = 0;
+        for (int i = 0; i < 8; i++) {
+            hash = (hash << 8) | (sha[i] & 0xFF);
+        }
+        return hash;
+    }
+    
+    /**
+     * Reads or writes the body of a checksummed backup file
+     */
+    private interface Body<S> {
+        void accept(S stream) throws IOException;
+    }
+    
+    /**
+     * Input stream that ends after a fixed number of bytes, leaving the rest for the caller
+     */
+    private static class BoundedInputStream extends InputStream {
+        private final InputStream in;
+        private long remaining;
+        
+        BoundedInputStream(InputStream in, long limit) {
+            this.in = in;
+            this.remaining = limit;
+        }
+        
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int b = in.read();
+            if (b >= 0) {
+                remaining--;
+            }
+            return b;
+        }
+        
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int n = in.read(buffer, offset, (int) Math.min(length, remaining));
+            if (n > 0) {
+                remaining -= n;
+            }
+            return n;
+        }
+    }
+    
+    /**
+     * Store registered for backup
+     */
+    private static class Store<V> {
+        private final RecordCodec<V> codec;
+        private final StorageEngine<V> engine;
+        
+        Store(RecordCodec<V> codec, StorageEngine<V> engine) {
+            this.codec = codec;
+            this.engine = engine;
+        }
+    }
+    
+    /**
+     * Generation an entity or file last changed in, and the hash of its encoding
+     */
+    private static class Version {
+        private final int generation;
+        private final long hash;
+        
+        Version(int generation, long hash) {
+            this.generation = generation;
+            this.hash = hash;
+        }
+    }
+    
+    /**
+     * How far the change tracker of a store had got when it was backed up
+     */
+    private static class Tracking {
+        private final long epoch;
+        private final long sequence;
+        
+        Tracking(long epoch, long sequence) {
+            this.epoch = epoch;
+            this.sequence = sequence;
+        }
+    }
+    
+    /**
+     * Contents of the backup manifest, or of the changes one generation made to it
+     */
+    private static class Manifest {
+        private int generation;
+        private final Map<String, Map<String, Version>> stores = new TreeMap<>();
+        private final Map<String, Map<String, Version>> files = new TreeMap<>();
+        private final Map<String, Tracking> tracking = new TreeMap<>();
+        // Keys each store removed; only ever filled in a delta
+        private final Map<String, List<String>> removed = new TreeMap<>();
+        
+        /**
+         * Applies the delta of the next generation
+         */
+        void apply(Manifest delta) {
+            for (Map.Entry<String, Map<String, Version>> store : delta.stores.entrySet()) {
+                stores.computeIfAbsent(store.getKey(), s -> new HashMap<>()).putAll(store.getValue());
+            }
+            for (Map.Entry<String, List<String>> store : delta.removed.entrySet()) {
+                Map<String, Version> versions = stores.get(store.getKey());
+                if (versions != null) {
+                    versions.keySet().removeAll(store.getValue());
+                }
+            }
+            for (Map.Entry<String, Map<String, Version>> directory : delta.files.entrySet()) {
+                files.computeIfAbsent(directory.getKey(), d -> new TreeMap<>()).putAll(directory.getValue());
+            }
+            tracking.putAll(delta.tracking);
+            generation = delta.generation;
+        }
+    }
+    
+    /**
+     * Collects the changed entities of one store for a generation, updating
+     * the manifest's versions as it goes
+     */
+    private static class DeltaBuilder<V> {
+        private final RecordCodec<V> codec;
+        private final Map<String, Version> versions;
+        private final int generation;
+        private final MessageDigest digest = sha256();
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        private final RecordWriter writer = new RecordWriter(buffer);
+        private final List<byte[]> changedRecords = new ArrayList<>();
+        private final Map<String, Version> changed = new HashMap<>();
+        private final List<String> removed = new ArrayList<>();
+        
+        DeltaBuilder(RecordCodec<V> codec, Map<String, Version> versions, int generation) {
+            this.codec = codec;
+            this.versions = versions;
+            this.generation = generation;
+        }
+        
+        /**
+         * Adds an entity if it is new or its encoding changed
+         */
+        void put(String key, V entity) throws IOException {
+            buffer.reset();
+            codec.write(writer, entity);
+            writer.flush();
+            byte[] encoded = buffer.toByteArray();
+            long hash = hash(digest, encoded);
+            Version version = versions.get(key);
+            if (version == null || version.hash != hash) {
+                version = new Version(generation, hash);
+                versions.put(key, version);
+                changed.put(key, version);
+                changedRecords.add(encoded);
+            }
+        }
+        
+        /**
+         * Adds the removal of a key, if it was backed up
+         */
+        void remove(String key) {
+            if (versions.remove(key) != null) {
+                removed.add(key);
+            }
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package com.library.storage;
+
+import com.library.exception.StorageException;
+import com.library.util.FileHandler;
+import com.library.util.RecordCodec;
+import com.library.util.RecordReader;
+import com.library.util.RecordWriter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Records which keys of a file-backed store changed, and in what order, so
+ * that an incremental backup only visits the keys changed since the previous
+ * one instead of encoding every entity. Every mutation stamps its key with the
+ * next change sequence number.
+ * The stamps are saved to &lt;file&gt;.changes before each snapshot of the
+ * store is written; stamps for mutations still held in the log are rebuilt
+ * when the log is replayed. A tracker started afresh (e.g. on a restored data
+ * directory) gets a new random epoch, telling backups that the sequence
+ * numbers they recorded no longer apply.
+ * Stamps of deleted keys are dropped once a backup has recorded the
+ * deletions, which also starts a new epoch, so that any other backup still
+ * behind them scans the whole store instead of missing a removal.
+ */
+class ChangeTracker {
+    private static final String CHANGES_SUFFIX = ".changes";
+    // Key of the saved stamp that holds the epoch; store keys are never empty
+    private static final String EPOCH_KEY = "";
+    // Number of deleted keys' stamps worth starting a new epoch to drop
+    private static final int PRUNE_THRESHOLD = 256;
+    
+    private final FileHandler fileHandler;
+    private final String filename;
+    private volatile long epoch;
+    
+    // Guarded by this
+    private final Map<String, Long> sequences = new HashMap<>();
+    private final NavigableMap<Long, String> keysBySequence = new TreeMap<>();
+    private final NavigableMap<Long, String> deletedBySequence = new TreeMap<>();
+    private long sequence;
+    private long savedSequence = -1;
+    
+    /**
+     * Loads the saved stamps of a data file, or starts a new epoch
+     * @param fileHandler File handler for the data directory
+     * @param dataFilename Data file whose changes are tracked
+     */
+    ChangeTracker(FileHandler fileHandler, String dataFilename) {
+        this.fileHandler = fileHandler;
+        this.filename = dataFilename + CHANGES_SUFFIX;
+        Map<String, Stamp> saved = null;
+        try {
+            saved = fileHandler.readRecords(filename, new StampCodec());
+        } catch (StorageException e) {
+            System.err.println("Restarting change tracking of " + dataFilename + ": " + e.getMessage());
+        }
+        Stamp savedEpoch = saved == null ? null : saved.remove(EPOCH_KEY);
+        if (savedEpoch == null) {
+            epoch = ThreadLocalRandom.current().nextLong();
+            return;
+        }
+        epoch = savedEpoch.sequence;
+        for (Stamp stamp : saved.values()) {
+            sequences.put(stamp.key, stamp.sequence);
+            keysBySequence.put(stamp.sequence, stamp.key);
+            if (stamp.deleted) {
+                deletedBySequence.put(stamp.sequence, stamp.key);
+            }
+            sequence = Math.max(sequence, stamp.sequence);
+        }
+        savedSequence = sequence;
+    }
+    
+    /**
+     * Stamps a key as changed; called after the mutation is applied, so that
+     * anyone who sees the stamp also sees the mutation
+     * @param key Key that was put or deleted
+     * @param deleted Whether the key was deleted
+     */
+    synchronized void touch(String key, boolean deleted) {
+        Long previous = sequences.put(key, ++sequence);
+        if (previous != null) {
+            keysBySequence.remove(previous);
+            deletedBySequence.remove(previous);
+        }
+        keysBySequence.put(sequence, key);
+        if (deleted) {
+            deletedBySequence.put(sequence, key);
+        }
+    }
+    
+    long getEpoch() {
+        return epoch;
+    }
+    
+    /**
+     * Gets the sequence number of the latest change. Every key changed up to
+     * it is stamped by the time this returns.
+     * @return Latest change sequence number, 0 if nothing changed yet
+     */
+    synchronized long getSequence() {
+        return sequence;
+    }
+    
+    /**
+     * Lists the keys whose latest change came after a sequence number
+     * @param since Sequence number of the last change already seen
+     * @return Keys changed since, including deleted ones
+     */
+    synchronized List<String> changedSince(long since) {
+        return new ArrayList<>(keysBySequence.tailMap(since, false).values());
+    }
+    
+    /**
+     * Drops the stamps of keys deleted up to a sequence number, once there
+     * are enough of them, and starts a new epoch. Called after a backup has
+     * recorded every change up to that sequence number.
+     * @param recordedEpoch Epoch the backup recorded
+     * @param through Sequence number the backup recorded
+     * @return true if stamps were dropped; the backup must then record the new epoch
+     */
+    synchronized boolean pruneDeleted(long recordedEpoch, long through) {
+        if (epoch != recordedEpoch || deletedBySequence.size() < PRUNE_THRESHOLD) {
+            return false;
+        }
+        NavigableMap<Long, String> recorded = deletedBySequence.headMap(through, true);
+        if (recorded.isEmpty()) {
+            return false;
+        }
+        for (Map.Entry<Long, String> stamp : recorded.entrySet()) {
+            sequences.remove(stamp.getValue());
+            keysBySequence.remove(stamp.getKey());
+        }
+        recorded.clear();
+        epoch = ThreadLocalRandom.current().nextLong();
+        savedSequence = -1;
+        return true;
+    }
+    
+    /**
+     * Saves the stamps if anything changed since they were last saved. Must
+     * be called before a snapshot of the store is written, as the snapshot
+     * ends the log that stamps would otherwise be rebuilt from.
+     */
+    void save() {
+        Map<String, Stamp> stamps = new HashMap<>();
+        long through;
+        synchronized (this) {
+            if (sequence == savedSequence) {
+                return;
+            }
+            through = sequence;
+            for (Map.Entry<String, Long> entry : sequences.entrySet()) {
+                stamps.put(entry.getKey(), new Stamp(entry.getKey(), entry.getValue(),
+                                                     deletedBySequence.containsKey(entry.getValue())));
+            }
+            stamps.put(EPOCH_KEY, new Stamp(EPOCH_KEY, epoch, false));
+        }
+        if (!fileHandler.writeRecords(filename, stamps, new StampCodec())) {
+            // The stamps about to leave the log are lost, so backups must scan everything again
+            System.err.println("Error saving change tracking to " + filename);
+            epoch = ThreadLocalRandom.current().nextLong();
+            return;
+        }
+        synchronized (this) {
+            savedSequence = Math.max(savedSequence, through);
+        }
+    }
+    
+    /**
+     * Key, the sequence number of its latest change, and whether that change deleted it
+     */
+    private static class Stamp {
+        private final String key;
+        private final long sequence;
+        private final boolean deleted;
+        
+        Stamp(String key, long sequence, boolean deleted) {
+            this.key = key;
+            this.sequence = sequence;
+            this.deleted = deleted;
+        }
+    }
+    
+    /**
+     * Binary codec for saved stamps
+     */
+    private static class StampCodec implements RecordCodec<Stamp> {
+        private static final int VERSION = 2;
+        
+        @Override
+        public int getVersion() {
+            return VERSION;
+        }
+        
+        @Override
+        public String getKey(Stamp stamp) {
+            return stamp.key;
+        }
+        
+        @Override
+        public void write(RecordWriter writer, Stamp stamp) throws IOException {
+            writer.writeString(stamp.key);
+            writer.writeLong(stamp.sequence);
+            writer.writeBoolean(stamp.deleted);
+        }
+        
+        @Override
+        public Stamp read(RecordReader reader, int version) throws IOException {
+            if (version < 1 || version > VERSION) {
+                throw new IOException("Unsupported change stamp version " + version);
+            }
+            String key = reader.readString();
+            long sequence = reader.readLong();
+            // Version 1 didn't record deletions, whose stamps are then kept
+            return new Stamp(key, sequence, version >= 2 && reader.readBoolean());
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.library.storage;
+
+import com.library.util.FileHandler;
+import com.library.util.LogBatch;
+import com.library.util.LogRecord;
+import com.library.util.RecordCodec;
+
+import java.util.AbstractMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Base of the engines that keep their entities on the heap and persist them
+ * to a data file through a {@link FileHandler}, which lets them take part in
+ * a journaled {@link UnitOfWork} with other engines on the same file handler.
+ * Every key they change is stamped by a {@link ChangeTracker} for incremental backups.
+ * @param <V> Type of entity stored
+ */
+public abstract class FileStorageEngine<V> extends InMemoryStorageEngine<V> {
+    protected final FileHandler fileHandler;
+    protected final String filename;
+    protected final RecordCodec<V> codec;
+    final ChangeTracker changes;
+    
+    /**
+     * Loads the latest snapshot of a data file; subclasses replay its log
+     * @param fileHandler File handler for the data directory
+     * @param filename Data file holding the entities
+     * @param codec Codec for the entities
+     */
+    protected FileStorageEngine(FileHandler fileHandler, String filename, RecordCodec<V> codec) {
+        this.fileHandler = fileHandler;
+        this.filename = filename;
+        this.codec = codec;
+        this.changes = new ChangeTracker(fileHandler, filename);
+        Map<String, V> data = fileHandler.readRecords(filename, codec);
+        if (data != null) {
+            records.putAll(data);
+        }
+    }
+    
+    @Override
+    public void put(String key, V value) {
+        super.put(key, value);
+        changes.touch(key, false);
+    }
+    
+    @Override
+    public boolean delete(String key) {
+        if (!super.delete(key)) {
+            return false;
+        }
+        changes.touch(key, true);
+        return true;
+    }
+    
+    @Override
+    protected void apply(List<LogRecord<V>> mutations) {
+        super.apply(mutations);
+        for (LogRecord<V> record : mutations) {
+            changes.touch(record.getKey(), record.getOperation() == LogRecord.Operation.DELETE);
+        }
+    }
+    
+    /**
+     * Gets a view of the entities to replay the log into, which stamps every
+     * key the log changes, as their stamps were only saved up to the last snapshot
+     * @return Map that writes through to the entities
+     */
+    protected Map<String, V> replayTarget() {
+        return new AbstractMap<String, V>() {
+            @Override
+            public Set<Map.Entry<String, V>> entrySet() {
+                return records.entrySet();
+            }
+            
+            @Override
+            public V put(String key, V value) {
+                V previous = records.put(key, value);
+                changes.touch(key, false);
+                return previous;
+            }
+            
+            @Override
+            public V remove(Object key) {
+                V previous = records.remove(key);
+                changes.touch((String) key, true);
+                return previous;
+            }
+        };
+    }
+    
+    /**
+     * Gets the mutations of a batch as records for this engine's data file
+     * @param batch Mutations to convert
+     * @return Records tagged with the data file and codec
+     */
+    LogBatch<V> toLogBatch(WriteBatch<V> batch) {
+        return new LogBatch<>(filename, codec, batch.getRecords());
+    }
+    
+    /**
+     * Applies a batch that is already durable in the commit journal
+     * @param batch Mutations to apply
+     * @param commitId ID of the unit of work the batch belongs to
+     */
+    abstract void applyCommitted(WriteBatch<V> batch, String commitId);
+}
@@ -0,0 +1,68 @@
+package com.library.storage;
+
+import com.library.util.LogRecord;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Storage engine that keeps entities on the heap only, without persisting them.
+ * Also the base of the file-backed engines, which keep the same map and add persistence.
+ * The map is concurrent, so reads never block; writes to the same key must not
+ * race each other, which the services ensure by locking the entity first.
+ * @param <V> Type of entity stored
+ */
+public class InMemoryStorageEngine<V> implements StorageEngine<V> {
+    protected final Map<String, V> records = new ConcurrentHashMap<>();
+    
+    @Override
+    public V get(String key) {
+        return records.get(key);
+    }
+    
+    @Override
+    public boolean containsKey(String key) {
+        return records.containsKey(key);
+    }
+    
+    @Override
+    public void put(String key, V value) {
+        records.put(key, value);
+    }
+    
+    @Override
+    public boolean delete(String key) {
+        return records.remove(key) != null;
+    }
+    
+    @Override
+    public Collection<V> scan() {
+        return records.values();
+    }
+    
+    @Override
+    public void batch(WriteBatch<V> batch) {
+        apply(batch.getRecords());
+    }
+    
+    @Override
+    public int size() {
+        return records.size();
+    }
+    
+    /**
+     * Applies mutations to the in-memory map
+     * @param mutations Mutations to apply, in order
+     */
+    protected void apply(List<LogRecord<V>> mutations) {
+        for (LogRecord<V> record : mutations) {
+            if (record.getOperation() == LogRecord.Operation.PUT) {
+                records.put(record.getKey(), record.getValue());
+            } else {
+                records.remove(record.getKey());
+            }
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package com.library.storage;
+
+import com.library.util.FileHandler;
+import com.library.util.LogBatch;
+import com.library.util.LogRecord;
+import com.library.util.RecordCodec;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.function.Supplier;
+
+/**
+ * Storage engine that defers opening (and therefore loading) another engine
+ * until it is first used. Suited to stores that are rarely read, such as history.
+ * When the engine keeps its entities in a data file, puts and batches made
+ * before it is opened don't open it: they are appended to the data file's
+ * log, which the engine replays once it is opened.
+ * @param <V> Type of entity stored
+ */
+public class LazyStorageEngine<V> implements StorageEngine<V> {
+    private final Supplier<StorageEngine<V>> opener;
+    private volatile StorageEngine<V> delegate;
+    // Data file of the underlying engine; null if it isn't file-backed
+    final FileHandler fileHandler;
+    private final String filename;
+    private final RecordCodec<V> codec;
+    
+    /**
+     * Creates a lazy engine
+     * @param opener Opens the underlying engine; called at most once
+     */
+    public LazyStorageEngine(Supplier<StorageEngine<V>> opener) {
+        this(null, null, null, opener);
+    }
+    
+    /**
+     * Creates a lazy engine over a data file, taking writes before it is opened
+     * @param fileHandler File handler for the data directory
+     * @param filename Data file holding the entities
+     * @param codec Codec for the entities
+     * @param opener Opens the underlying engine on the data file, replaying its
+     *        log; called at most once
+     */
+    public LazyStorageEngine(FileHandler fileHandler, String filename, RecordCodec<V> codec,
+                             Supplier<StorageEngine<V>> opener) {
+        this.fileHandler = fileHandler;
+        this.filename = filename;
+        this.codec = codec;
+        this.opener = opener;
+    }
+    
+    /**
+     * Checks whether the underlying engine has been opened yet
+     * @return true if opened, false otherwise
+     */
+    public boolean isOpen() {
+        return delegate != null;
+    }
+    
+    /**
+     * Gets the underlying engine, opening it on first use
+     * @return Underlying engine
+     */
+    StorageEngine<V> delegate() {
+        StorageEngine<V> engine = delegate;
+        if (engine == null) {
+            synchronized (this) {
+                engine = delegate;
+                if (engine == null) {
+                    engine = opener.get();
+                    delegate = engine;
+                }
+            }
+        }
+        return engine;
+    }
+    
+    @Override
+    public V get(String key) {
+        return delegate().get(key);
+    }
+    
+    @Override
+    public boolean containsKey(String key) {
+        return delegate().containsKey(key);
+    }
+    
+    /**
+     * Checks whether writes can still go straight to the log of the data file
+     * @return true if the engine is file-backed and not opened yet
+     */
+    boolean isAppendable() {
+        return fileHandler != null && delegate == null;
+    }
+    
+    @Override
+    public void put(String key, V value) {
+        synchronized (this) {
+            if (isAppendable()) {
+                fileHandler.appendToLog(filename, Collections.singletonList(LogRecord.put(key, value)), codec);
+                return;
+            }
+        }
+        delegate().put(key, value);
+    }
+    
+    @Override
+    public boolean delete(String key) {
+        return delegate().delete(key);
+    }
+    
+    @Override
+    public Collection<V> scan() {
+        return delegate().scan();
+    }
+    
+    @Override
+    public void batch(WriteBatch<V> batch) {
+        synchronized (this) {
+            if (isAppendable()) {
+                if (!batch.isEmpty()) {
+                    fileHandler.appendToLog(filename, batch.getRecords(), codec);
+                }
+                return;
+            }
+        }
+        delegate().batch(batch);
+    }
+    
+    /**
+     * Gets the mutations of a batch as records for the data file
+     */
+    LogBatch<V> toLogBatch(WriteBatch<V> batch) {
+        return new LogBatch<>(filename, codec, batch.getRecords());
+    }
+    
+    /**
+     * Applies a batch that is already durable in the commit journal, appending
+     * it to the log of the data file if the engine is still not opened
+     * @param batch Mutations to apply
+     * @param commitId ID of the unit of work the batch belongs to
+     */
+    void applyCommitted(WriteBatch<V> batch, String commitId) {
+        synchronized (this) {
+            if (isAppendable()) {
+                fileHandler.appendCommitted(filename, batch.getRecords(), codec, commitId);
+                return;
+            }
+        }
+        StorageEngine<V> engine = delegate();
+        if (engine instanceof FileStorageEngine) {
+            ((FileStorageEngine<V>) engine).applyCommitted(batch, commitId);
+        } else {
+            engine.batch(batch);
+        }
+    }
+    
+    
+    @Override
+    public int size() {
+        return delegate().size();
+    }
+    
+    /**
+     * Estimates the number of stored entities, without opening the engine if
+     * it keeps them in a data file
+     * @return Exact size once opened, otherwise an estimate from the data file
+     */
+    public int estimateSize() {
+        if (isAppendable()) {
+            return fileHandler.estimateRecords(filename);
+        }
+        return delegate().size();
+    }
+    
+    @Override
+    public void flush() {
+        StorageEngine<V> engine = delegate;
+        if (engine != null) {
+            engine.flush();
+        }
+    }
+    
+    @Override
+    public void close() {
+        StorageEngine<V> engine = delegate;
+        if (engine != null) {
+            engine.close();
+        }
+    }
+}
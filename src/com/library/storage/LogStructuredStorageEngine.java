@@ -0,0 +1,107 @@
+package com.library.storage;
+
+import com.library.util.FileHandler;
+import com.library.util.LogRecord;
+import com.library.util.RecordCodec;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Storage engine that appends every mutation to a write-ahead log and only
+ * rewrites its data file once the log reaches a checkpoint threshold
+ * @param <V> Type of entity stored
+ */
+public class LogStructuredStorageEngine<V> extends FileStorageEngine<V> {
+    private static final int DEFAULT_CHECKPOINT_THRESHOLD = 1000;
+    
+    private final int checkpointThreshold;
+    private final AtomicInteger logRecordCount = new AtomicInteger();
+    
+    public LogStructuredStorageEngine(FileHandler fileHandler, String filename, RecordCodec<V> codec) {
+        this(fileHandler, filename, codec, DEFAULT_CHECKPOINT_THRESHOLD);
+    }
+    
+    /**
+     * Opens a data file and replays its log
+     * @param fileHandler File handler for the data directory
+     * @param filename Data file holding the entities
+     * @param codec Codec for the entities
+     * @param checkpointThreshold Number of log records that triggers a checkpoint
+     */
+    public LogStructuredStorageEngine(FileHandler fileHandler, String filename, RecordCodec<V> codec,
+                                      int checkpointThreshold) {
+        super(fileHandler, filename, codec);
+        if (checkpointThreshold < 1) {
+            throw new IllegalArgumentException("Checkpoint threshold must be positive");
+        }
+        this.checkpointThreshold = checkpointThreshold;
+        logRecordCount.set(fileHandler.replayLog(filename, replayTarget(), codec));
+        // A log recovered along with the previous snapshot is folded in and deleted
+        changes.save();
+    }
+    
+    @Override
+    public void put(String key, V value) {
+        super.put(key, value);
+        append(Collections.singletonList(LogRecord.put(key, value)));
+    }
+    
+    @Override
+    public boolean delete(String key) {
+        if (!super.delete(key)) {
+            return false;
+        }
+        append(Collections.singletonList(LogRecord.delete(key)));
+        return true;
+    }
+    
+    @Override
+    public void batch(WriteBatch<V> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        super.batch(batch);
+        append(batch.getRecords());
+    }
+    
+    /**
+     * Applies a journaled batch and appends it to the log without waiting for
+     * the disk; the checkpoint it may trigger is left to the next append
+     */
+    @Override
+    void applyCommitted(WriteBatch<V> batch, String commitId) {
+        super.batch(batch);
+        if (fileHandler.appendCommitted(filename, batch.getRecords(), codec, commitId)) {
+            logRecordCount.addAndGet(batch.size());
+        }
+    }
+    
+    @Override
+    public void flush() {
+        fileHandler.flush();
+    }
+    
+    /**
+     * Writes all entities to the data file and starts a new log
+     */
+    public void checkpoint() {
+        changes.save();
+        if (fileHandler.checkpoint(filename, records, codec)) {
+            logRecordCount.set(0);
+        }
+    }
+    
+    /**
+     * Appends mutations to the log, checkpointing once the log is long enough
+     */
+    private void append(List<LogRecord<V>> mutations) {
+        if (fileHandler.appendToLog(filename, mutations, codec)) {
+            logRecordCount.addAndGet(mutations.size());
+        }
+        if (logRecordCount.get() >= checkpointThreshold) {
+            checkpoint();
+        }
+    }
+}
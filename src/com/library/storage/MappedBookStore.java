@@ -0,0 +1,383 @@
+package com.library.storage;
+
+import com.library.exception.StorageException;
+import com.library.model.Book;
+import com.library.util.LogRecord;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Book store backed by memory-mapped files instead of heap objects.
+ * Every book occupies a fixed-width slot in books.slots holding its status and
+ * category ordinals, publication year, version and offsets of its strings, which are
+ * appended to books.strings (authors and publishers are interned). Books are
+ * decoded on every read, so callers get detached copies, and the OS page cache
+ * rather than the heap holds the catalog. Only slot fields that changed are
+ * written, so a status change rewrites one byte. Replaced strings are not reclaimed.
+ */
+public class MappedBookStore implements StorageEngine<Book> {
+    private static final String SLOTS_FILE = "books.slots";
+    private static final String STRINGS_FILE = "books.strings";
+    private static final int MAGIC = 0x4C4D534D; // "LMSM"
+    private static final int VERSION = 1;
+    
+    // Slots file header: magic, version, slot high-water mark, used length of the strings file
+    private static final int HEADER_SIZE = 16;
+    private static final int HEADER_SLOT_COUNT = 8;
+    private static final int HEADER_STRINGS_LENGTH = 12;
+    
+    // Slot layout
+    private static final int SLOT_SIZE = 32;
+    private static final int SLOT_STATE = 0;
+    private static final int SLOT_STATUS = 1;
+    private static final int SLOT_CATEGORY = 2;
+    private static final int SLOT_YEAR = 4;
+    private static final int SLOT_ID = 8;
+    private static final int SLOT_TITLE = 12;
+    private static final int SLOT_AUTHOR = 16;
+    private static final int SLOT_ISBN = 20;
+    private static final int SLOT_PUBLISHER = 24;
+    private static final int SLOT_VERSION = 28; // Zero in slots written before books had versions
+    
+    private static final byte FREE = 0;
+    private static final byte USED = 1;
+    private static final int NO_STRING = -1;
+    private static final int INITIAL_SLOT_CAPACITY = 1024;
+    private static final int INITIAL_STRINGS_CAPACITY = 64 * 1024;
+    
+    private final FileChannel slotsChannel;
+    private final FileChannel stringsChannel;
+    private MappedByteBuffer slots;
+    private MappedByteBuffer strings;
+    private int slotCount;
+    private int stringsLength;
+    private final Map<String, Integer> slotsById = new HashMap<>();
+    private final Deque<Integer> freeSlots = new ArrayDeque<>();
+    private final Map<String, Integer> internedStrings = new HashMap<>();
+    
+    /**
+     * Opens or creates the mapped catalog in a data directory
+     * @param dataDirectory Directory holding the data files
+     * @throws StorageException if the files cannot be opened or are not a mapped catalog
+     */
+    public MappedBookStore(String dataDirectory) {
+        try {
+            Path directory = Paths.get(dataDirectory);
+            Files.createDirectories(directory);
+            slotsChannel = FileChannel.open(directory.resolve(SLOTS_FILE), StandardOpenOption.CREATE,
+                                            StandardOpenOption.READ, StandardOpenOption.WRITE);
+            stringsChannel = FileChannel.open(directory.resolve(STRINGS_FILE), StandardOpenOption.CREATE,
+                                              StandardOpenOption.READ, StandardOpenOption.WRITE);
+            boolean created = slotsChannel.size() == 0;
+            slots = slotsChannel.map(FileChannel.MapMode.READ_WRITE, 0,
+                    Math.max(slotsChannel.size(), HEADER_SIZE + (long) INITIAL_SLOT_CAPACITY * SLOT_SIZE));
+            strings = stringsChannel.map(FileChannel.MapMode.READ_WRITE, 0,
+                    Math.max(stringsChannel.size(), INITIAL_STRINGS_CAPACITY));
+            if (created) {
+                slots.putInt(0, MAGIC);
+                slots.putInt(4, VERSION);
+                writeHeader();
+            } else {
+                load();
+            }
+        } catch (IOException e) {
+            throw new StorageException("Could not open mapped book store in " + dataDirectory, e);
+        }
+    }
+    
+    /**
+     * Rebuilds the in-heap slot and string indexes from the mapped files
+     */
+    private void load() throws IOException {
+        if (slots.getInt(0) != MAGIC || slots.getInt(4) != VERSION) {
+            throw new IOException("Not a mapped book store: " + SLOTS_FILE);
+        }
+        slotCount = slots.getInt(HEADER_SLOT_COUNT);
+        stringsLength = slots.getInt(HEADER_STRINGS_LENGTH);
+        for (int slot = 0; slot < slotCount; slot++) {
+            int base = slotOffset(slot);
+            if (slots.get(base + SLOT_STATE) == USED) {
+                slotsById.put(readString(slots.getInt(base + SLOT_ID)), slot);
+                intern(slots.getInt(base + SLOT_AUTHOR));
+                intern(slots.getInt(base + SLOT_PUBLISHER));
+            } else {
+                freeSlots.push(slot);
+            }
+        }
+    }
+    
+    private void intern(int offset) {
+        if (offset != NO_STRING) {
+            internedStrings.putIfAbsent(readString(offset), offset);
+        }
+    }
+    
+    @Override
+    public synchronized Book get(String bookId) {
+        Integer slot = slotsById.get(bookId);
+        return slot == null ? null : decode(slotOffset(slot));
+    }
+    
+    @Override
+    public synchronized boolean containsKey(String bookId) {
+        return slotsById.containsKey(bookId);
+    }
+    
+    @Override
+    public synchronized void put(String bookId, Book book) {
+        Integer slot = slotsById.get(bookId);
+        boolean existing = slot != null;
+        if (!existing) {
+            slot = freeSlots.isEmpty() ? slotCount++ : freeSlots.pop();
+            ensureSlotCapacity(slotCount);
+        }
+        int base = slotOffset(slot);
+        int stringsStart = stringsLength;
+        
+        // Strings go to disk before the slot that points at them
+        int id = existing ? slots.getInt(base + SLOT_ID) : appendString(bookId);
+        int title = storeString(existing, base + SLOT_TITLE, book.getTitle(), false);
+        int author = storeString(existing, base + SLOT_AUTHOR, book.getAuthor(), true);
+        int isbn = storeString(existing, base + SLOT_ISBN, book.getIsbn(), false);
+        int publisher = storeString(existing, base + SLOT_PUBLISHER, book.getPublisher(), true);
+        if (stringsLength > stringsStart) {
+            strings.force(stringsStart, stringsLength - stringsStart);
+        }
+        
+        SlotWrite write = new SlotWrite(base);
+        write.putByte(SLOT_STATUS, ordinal(book.getStatus()));
+        write.putByte(SLOT_CATEGORY, ordinal(book.getCategory()));
+        write.putInt(SLOT_YEAR, book.getPublicationYear());
+        write.putInt(SLOT_ID, id);
+        write.putInt(SLOT_TITLE, title);
+        write.putInt(SLOT_AUTHOR, author);
+        write.putInt(SLOT_ISBN, isbn);
+        write.putInt(SLOT_PUBLISHER, publisher);
+        write.putInt(SLOT_VERSION, book.getVersion());
+        write.putByte(SLOT_STATE, USED);
+        slotsById.put(bookId, slot);
+        if (!existing || stringsLength > stringsStart) {
+            writeHeader();
+        }
+        write.force();
+    }
+    
+    @Override
+    public synchronized void batch(WriteBatch<Book> batch) {
+        for (LogRecord<Book> record : batch.getRecords()) {
+            if (record.getOperation() == LogRecord.Operation.PUT) {
+                put(record.getKey(), record.getValue());
+            } else {
+                delete(record.getKey());
+            }
+        }
+    }
+    
+    @Override
+    public synchronized boolean delete(String bookId) {
+        Integer slot = slotsById.remove(bookId);
+        if (slot == null) {
+            return false;
+        }
+        int base = slotOffset(slot);
+        slots.put(base + SLOT_STATE, FREE);
+        slots.force(base + SLOT_STATE, 1);
+        freeSlots.push(slot);
+        return true;
+    }
+    
+    @Override
+    public synchronized Collection<Book> scan() {
+        List<Book> books = new ArrayList<>(slotsById.size());
+        for (int slot : slotsById.values()) {
+            books.add(decode(slotOffset(slot)));
+        }
+        return books;
+    }
+    
+    @Override
+    public synchronized int size() {
+        return slotsById.size();
+    }
+    
+    /**
+     * Syncs the mapped files and closes them
+     */
+    @Override
+    public synchronized void close() {
+        try {
+            slots.force();
+            strings.force();
+            slotsChannel.close();
+            stringsChannel.close();
+        } catch (IOException e) {
+            throw new StorageException("Could not close mapped book store", e);
+        }
+    }
+    
+    /**
+     * Decodes the book held in a slot
+     */
+    private Book decode(int base) {
+        Book book = new Book(readString(slots.getInt(base + SLOT_ID)),
+                             readString(slots.getInt(base + SLOT_TITLE)),
+                             readString(slots.getInt(base + SLOT_AUTHOR)),
+                             readString(slots.getInt(base + SLOT_ISBN)),
+                             readString(slots.getInt(base + SLOT_PUBLISHER)),
+                             slots.getInt(base + SLOT_YEAR),
+                             fromOrdinal(slots.get(base + SLOT_STATUS), Book.BookStatus.values()),
+                             fromOrdinal(slots.get(base + SLOT_CATEGORY), Book.BookCategory.values()));
+        book.setVersion(slots.getInt(base + SLOT_VERSION));
+        return book;
+    }
+    
+    /**
+     * Gets the string offset to store in a slot field, reusing the current
+     * string if unchanged and an interned copy if one exists
+     */
+    private int storeString(boolean existing, int field, String value, boolean interned) {
+        if (value == null) {
+            return NO_STRING;
+        }
+        if (existing) {
+            int current = slots.getInt(field);
+            if (current != NO_STRING && value.equals(readString(current))) {
+                return current;
+            }
+        }
+        if (interned) {
+            Integer offset = internedStrings.get(value);
+            if (offset != null) {
+                return offset;
+            }
+        }
+        int offset = appendString(value);
+        if (interned) {
+            internedStrings.put(value, offset);
+        }
+        return offset;
+    }
+    
+    /**
+     * Appends a length-prefixed UTF-8 string to the strings file
+     * @return Offset of the string
+     */
+    private int appendString(String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        int offset = stringsLength;
+        ensureStringsCapacity((long) offset + 4 + bytes.length);
+        strings.putInt(offset, bytes.length);
+        strings.put(offset + 4, bytes);
+        stringsLength = offset + 4 + bytes.length;
+        return offset;
+    }
+    
+    private String readString(int offset) {
+        if (offset == NO_STRING) {
+            return null;
+        }
+        byte[] bytes = new byte[strings.getInt(offset)];
+        strings.get(offset + 4, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+    
+    private void writeHeader() {
+        slots.putInt(HEADER_SLOT_COUNT, slotCount);
+        slots.putInt(HEADER_STRINGS_LENGTH, stringsLength);
+        slots.force(0, HEADER_SIZE);
+    }
+    
+    private void ensureSlotCapacity(int slotsNeeded) {
+        long required = HEADER_SIZE + (long) slotsNeeded * SLOT_SIZE;
+        if (required > slots.capacity()) {
+            slots = remap(slotsChannel, slots, required);
+        }
+    }
+    
+    private void ensureStringsCapacity(long required) {
+        if (required > strings.capacity()) {
+            strings = remap(stringsChannel, strings, required);
+        }
+    }
+    
+    /**
+     * Maps a larger region of a file, at least doubling the current mapping
+     */
+    private MappedByteBuffer remap(FileChannel channel, MappedByteBuffer current, long required) {
+        long size = Math.max(required, (long) current.capacity() * 2);
+        if (size > Integer.MAX_VALUE) {
+            throw new StorageException("Mapped book store cannot grow beyond 2 GB per file");
+        }
+        try {
+            current.force();
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } catch (IOException e) {
+            throw new StorageException("Could not grow mapped book store", e);
+        }
+    }
+    
+    /**
+     * Writes the fields of one slot, skipping values that are already stored,
+     * and syncs only the range that changed
+     */
+    private class SlotWrite {
+        private final int base;
+        private int dirtyStart = SLOT_SIZE;
+        private int dirtyEnd;
+        
+        SlotWrite(int base) {
+            this.base = base;
+        }
+        
+        void putByte(int field, byte value) {
+            if (slots.get(base + field) != value) {
+                slots.put(base + field, value);
+                markDirty(field, 1);
+            }
+        }
+        
+        void putInt(int field, int value) {
+            if (slots.getInt(base + field) != value) {
+                slots.putInt(base + field, value);
+                markDirty(field, 4);
+            }
+        }
+        
+        private void markDirty(int field, int length) {
+            dirtyStart = Math.min(dirtyStart, field);
+            dirtyEnd = Math.max(dirtyEnd, field + length);
+        }
+        
+        void force() {
+            if (dirtyEnd > dirtyStart) {
+                slots.force(base + dirtyStart, dirtyEnd - dirtyStart);
+            }
+        }
+    }
+    
+    private static int slotOffset(int slot) {
+        return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+    
+    private static byte ordinal(Enum<?> value) {
+        return (byte) (value == null ? 0 : value.ordinal() + 1);
+    }
+    
+    private static <E extends Enum<E>> E fromOrdinal(byte ordinal, E[] values) {
+        return ordinal == 0 ? null : values[ordinal - 1];
+    }
+}
@@ -0,0 +1,632 @@
+package com.library.storage;
+
+import com.library.exception.StorageException;
+import com.library.util.RecordCodec;
+import com.library.util.RecordReader;
+import com.library.util.RecordWriter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.zip.CRC32C;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Cold tier for entities that no longer change: immutable segment files
+ * partitioned by month. Each archiving run writes a new segment per month,
+ * named &lt;name&gt;-&lt;yyyy-MM&gt;-&lt;sequence&gt;.seg, holding the entities sorted
+ * by key in Deflater-compressed blocks. A sparse index (first key, offset and
+ * length of every block) at the end of the segment lets a lookup by key
+ * inflate a single block. Alongside it, each indexed attribute (e.g. the
+ * member of a transaction) maps its values to the blocks holding them, so a
+ * lookup by attribute only inflates those blocks; everything else reads
+ * whole segments. Segments are only opened the first time the archive is read.
+ * @param <V> Type of entity archived
+ */
+public class SegmentArchive<V> {
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final int MAGIC = 0x4C4D5341; // "LMSA"
+    private static final int VERSION = 2;
+    // Segments written before attribute indexes were added; they are searched block by block
+    private static final int UNINDEXED_VERSION = 1;
+    private static final int BLOCK_RECORDS = 256;
+    
+    // Segment header: magic, version, codec version, record count, first and last epoch day
+    private static final int HEADER_SIZE = 24;
+    // Segment trailer: index offset, index checksum, magic
+    private static final int TRAILER_SIZE = 16;
+    
+    private final Path directory;
+    private final String name;
+    private final RecordCodec<V> codec;
+    private final Function<V, LocalDate> partitionDate;
+    private final Map<String, Function<V, String>> attributes;
+    private List<Segment> segments;
+    // Record count read from the segment headers alone, while the segments aren't opened
+    private int headerRecordCount = -1;
+    
+    /**
+     * Creates an archive without attribute indexes; nothing is read until it is first used
+     * @param directory Directory holding the segment files
+     * @param name Prefix of the segment files
+     * @param codec Codec for the entities
+     * @param partitionDate Date that decides which month an entity is archived under
+     */
+    public SegmentArchive(String directory, String name, RecordCodec<V> codec,
+                          Function<V, LocalDate> partitionDate) {
+        this(directory, name, codec, partitionDate, Map.of());
+    }
+    
+    /**
+     * Creates an archive; nothing is read until it is first used
+     * @param directory Directory holding the segment files
+     * @param name Prefix of the segment files
+     * @param codec Codec for the entities
+     * @param partitionDate Date that decides which month an entity is archived under
+     * @param attributes Attributes to index in every new segment, by name
+     */
+    public SegmentArchive(String directory, String name, RecordCodec<V> codec,
+                          Function<V, LocalDate> partitionDate, Map<String, Function<V, String>> attributes) {
+        this.directory = Paths.get(directory);
+        this.name = name;
+        this.codec = codec;
+        this.partitionDate = partitionDate;
+        this.attributes = new LinkedHashMap<>(attributes);
+    }
+    
+    /**
+     * Archives entities, writing one new segment for every month they fall in
+     * @param entities Entities to archive
+     * @throws StorageException if a segment cannot be written; segments already
+     *         written stay in the archive
+     */
+    public synchronized void append(Collection<V> entities) {
+        List<Segment> opened = segments();
+        Map<String, List<V>> partitions = new TreeMap<>();
+        for (V entity : entities) {
+            LocalDate date = partitionDate.apply(entity);
+            String partition = String.format("%04d-%02d", date.getYear(), date.getMonthValue());
+            partitions.computeIfAbsent(partition, p -> new ArrayList<>()).add(entity);
+        }
+        
+        for (Map.Entry<String, List<V>> partition : partitions.entrySet()) {
+            List<V> sorted = partition.getValue();
+            sorted.sort(Comparator.comparing(codec::getKey));
+            try {
+                opened.add(writeSegment(partition.getKey(), sorted));
+            } catch (IOException e) {
+                throw new StorageException("Could not archive partition " + partition.getKey(), e);
+            }
+        }
+    }
+    
+    /**
+     * Gets an archived entity by key, inflating at most one block per segment
+     * @param key Key of the entity
+     * @return Entity if archived, null otherwise
+     */
+    public synchronized V get(String key) {
+        List<Segment> opened = segments();
+        for (int i = opened.size() - 1; i >= 0; i--) {
+            Segment segment = opened.get(i);
+            int block = segment.findBlock(key);
+            if (block < 0) {
+                continue;
+            }
+            List<V> holding = new ArrayList<>(BLOCK_RECORDS);
+            readBlocks(segment, new int[] {block}, holding::add);
+            for (V entity : holding) {
+                if (codec.getKey(entity).equals(key)) {
+                    return entity;
+                }
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Gets every archived entity that matches a filter
+     * @param filter Filter to apply
+     * @return Matching entities, oldest segment first
+     */
+    public synchronized List<V> find(Predicate<V> filter) {
+        List<V> matches = new ArrayList<>();
+        for (Segment segment : segments()) {
+            readBlocks(segment, segment.allBlocks(), entity -> {
+                if (filter.test(entity)) {
+                    matches.add(entity);
+                }
+            });
+        }
+        return matches;
+    }
+    
+    /**
+     * Gets every archived entity with a given value of an indexed attribute,
+     * inflating only the blocks that hold the value. Segments written without
+     * an index for the attribute are searched block by block.
+     * @param attribute Name of the attribute, as given when creating the archive
+     * @param value Wanted value
+     * @return Matching entities, oldest segment first
+     * @throws IllegalArgumentException if the attribute is not indexed
+     */
+    public synchronized List<V> find(String attribute, String value) {
+        Function<V, String> extractor = attributes.get(attribute);
+        if (extractor == null) {
+            throw new IllegalArgumentException("Attribute is not indexed: " + attribute);
+        }
+        List<V> matches = new ArrayList<>();
+        for (Segment segment : segments()) {
+            readBlocks(segment, segment.findBlocks(attribute, value), entity -> {
+                if (value.equals(extractor.apply(entity))) {
+                    matches.add(entity);
+                }
+            });
+        }
+        return matches;
+    }
+    
+    /**
+     * Gets the number of archived entities
+     * @return Number of entities across all segments
+     */
+    public synchronized int size() {
+        int size = 0;
+        for (Segment segment : segments()) {
+            size += segment.recordCount;
+        }
+        return size;
+    }
+    
+    /**
+     * Gets the number of archived entities without opening the archive,
+     * reading only the header of each segment
+     * @return Number of entities across all segments
+     */
+    public synchronized int estimateSize() {
+        if (segments != null) {
+            return size();
+        }
+        if (headerRecordCount < 0) {
+            int count = 0;
+            for (Path file : segmentFiles()) {
+                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                    ByteBuffer header = readFully(channel, 0, HEADER_SIZE);
+                    if (header.getInt(0) == MAGIC) {
+                        count += header.getInt(12);
+                    }
+                } catch (IOException e) {
+                    throw new StorageException("Could not open archive segment " + file.getFileName(), e);
+                }
+            }
+            headerRecordCount = count;
+        }
+        return headerRecordCount;
+    }
+    
+    public String getDirectory() {
+        return directory.toString();
+    }
+    
+    public synchronized int getSegmentCount() {
+        return segments().size();
+    }
+    
+    /**
+     * Opens the segments on first use, reading only their headers and indexes
+     */
+    private List<Segment> segments() {
+        if (segments != null) {
+            return segments;
+        }
+        List<Segment> opened = new ArrayList<>();
+        for (Path file : segmentFiles()) {
+            try {
+                opened.add(readIndex(file));
+            } catch (IOException e) {
+                throw new StorageException("Could not open archive segment " + file.getFileName(), e);
+            }
+        }
+        segments = opened;
+        return segments;
+    }
+    
+    /**
+     * Lists the segment files, oldest first
+     */
+    private List<Path> segmentFiles() {
+        List<Path> files = new ArrayList<>();
+        if (Files.isDirectory(directory)) {
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, name + "-*" + SEGMENT_SUFFIX)) {
+                stream.forEach(files::add);
+            } catch (IOException e) {
+                throw new StorageException("Could not list archive " + directory, e);
+            }
+        }
+        Collections.sort(files);
+        return files;
+    }
+    
+    /**
+     * Writes a segment to a synced temporary file and moves it into place
+     */
+    private Segment writeSegment(String partition, List<V> sorted) throws IOException {
+        Files.createDirectories(directory);
+        int sequence = 0;
+        Path file;
+        do {
+            file = directory.resolve(String.format("%s-%s-%04d%s", name, partition, ++sequence, SEGMENT_SUFFIX));
+        } while (Files.exists(file));
+        
+        int blockCount = (sorted.size() + BLOCK_RECORDS - 1) / BLOCK_RECORDS;
+        String[] firstKeys = new String[blockCount];
+        long[] offsets = new long[blockCount];
+        int[] lengths = new int[blockCount];
+        int[] checksums = new int[blockCount];
+        Map<String, Map<String, int[]>> blocksByAttribute = new LinkedHashMap<>();
+        for (Map.Entry<String, Function<V, String>> attribute : attributes.entrySet()) {
+            blocksByAttribute.put(attribute.getKey(), indexAttribute(sorted, attribute.getValue()));
+        }
+        int firstDay = Integer.MAX_VALUE;
+        int lastDay = Integer.MIN_VALUE;
+        for (V entity : sorted) {
+            int day = (int) partitionDate.apply(entity).toEpochDay();
+            firstDay = Math.min(firstDay, day);
+            lastDay = Math.max(lastDay, day);
+        }
+        
+        Path temp = directory.resolve(file.getFileName() + TEMP_SUFFIX);
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putInt(codec.getVersion()).putInt(sorted.size())
+                  .putInt(firstDay).putInt(lastDay).flip();
+            writeFully(channel, header);
+            
+            Deflater deflater = new Deflater();
+            ByteArrayOutputStream raw = new ByteArrayOutputStream();
+            RecordWriter writer = new RecordWriter(raw);
+            CRC32C crc = new CRC32C();
+            try {
+                for (int block = 0; block < blockCount; block++) {
+                    int from = block * BLOCK_RECORDS;
+                    int to = Math.min(from + BLOCK_RECORDS, sorted.size());
+                    raw.reset();
+                    writer.writeVarInt(to - from);
+                    for (V entity : sorted.subList(from, to)) {
+                        codec.write(writer, entity);
+                    }
+                    writer.flush();
+                    byte[] compressed = deflate(deflater, raw.toByteArray());
+                    crc.reset();
+                    crc.update(compressed, 0, compressed.length);
+                    firstKeys[block] = codec.getKey(sorted.get(from));
+                    offsets[block] = channel.position();
+                    lengths[block] = compressed.length;
+                    checksums[block] = (int) crc.getValue();
+                    writeFully(channel, ByteBuffer.wrap(compressed));
+                }
+            } finally {
+                deflater.end();
+            }
+            
+            long indexOffset = channel.position();
+            ByteArrayOutputStream index = new ByteArrayOutputStream();
+            DataOutputStream dos = new DataOutputStream(index);
+            dos.writeInt(blockCount);
+            for (int block = 0; block < blockCount; block++) {
+                dos.writeUTF(firstKeys[block]);
+                dos.writeLong(offsets[block]);
+                dos.writeInt(lengths[block]);
+                dos.writeInt(checksums[block]);
+            }
+            dos.writeInt(blocksByAttribute.size());
+            for (Map.Entry<String, Map<String, int[]>> attribute : blocksByAttribute.entrySet()) {
+                dos.writeUTF(attribute.getKey());
+                dos.writeInt(attribute.getValue().size());
+                for (Map.Entry<String, int[]> entry : attribute.getValue().entrySet()) {
+                    dos.writeUTF(entry.getKey());
+                    dos.writeInt(entry.getValue().length);
+                    for (int block : entry.getValue()) {
+                        dos.writeInt(block);
+                    }
+                }
+            }
+            dos.flush();
+            byte[] indexBytes = index.toByteArray();
+            crc.reset();
+            crc.update(indexBytes, 0, indexBytes.length);
+            writeFully(channel, ByteBuffer.wrap(indexBytes));
+            ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE);
+            trailer.putLong(indexOffset).putInt((int) crc.getValue()).putInt(MAGIC).flip();
+            writeFully(channel, trailer);
+            channel.force(true);
+        }
+        Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE);
+        syncDirectory();
+        return new Segment(file, codec.getVersion(), sorted.size(), firstKeys, offsets, lengths, checksums,
+                           blocksByAttribute);
+    }
+    
+    /**
+     * Maps every value of an attribute in a sorted partition to the blocks holding it
+     */
+    private Map<String, int[]> indexAttribute(List<V> sorted, Function<V, String> extractor) {
+        Map<String, List<Integer>> blocks = new HashMap<>();
+        for (int i = 0; i < sorted.size(); i++) {
+            int block = i / BLOCK_RECORDS;
+            List<Integer> holding = blocks.computeIfAbsent(extractor.apply(sorted.get(i)), v -> new ArrayList<>());
+            if (holding.isEmpty() || holding.get(holding.size() - 1) != block) {
+                holding.add(block);
+            }
+        }
+        Map<String, int[]> index = new HashMap<>();
+        for (Map.Entry<String, List<Integer>> entry : blocks.entrySet()) {
+            index.put(entry.getKey(), entry.getValue().stream().mapToInt(Integer::intValue).toArray());
+        }
+        return index;
+    }
+    
+    /**
+     * Reads the header and sparse index of a segment
+     */
+    private Segment readIndex(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_SIZE + TRAILER_SIZE) {
+                throw new IOException("Segment is truncated");
+            }
+            ByteBuffer header = readFully(channel, 0, HEADER_SIZE);
+            if (header.getInt() != MAGIC) {
+                throw new IOException("Not an archive segment");
+            }
+            int version = header.getInt();
+            if (version != VERSION && version != UNINDEXED_VERSION) {
+                throw new IOException("Unsupported archive segment version " + version);
+            }
+            int codecVersion = header.getInt();
+            int recordCount = header.getInt();
+            
+            ByteBuffer trailer = readFully(channel, size - TRAILER_SIZE, TRAILER_SIZE);
+            long indexOffset = trailer.getLong();
+            int indexChecksum = trailer.getInt();
+            if (trailer.getInt() != MAGIC || indexOffset < HEADER_SIZE || indexOffset > size - TRAILER_SIZE) {
+                throw new IOException("Segment trailer is corrupt");
+            }
+            ByteBuffer indexBuffer = readFully(channel, indexOffset, (int) (size - TRAILER_SIZE - indexOffset));
+            byte[] indexBytes = new byte[indexBuffer.remaining()];
+            indexBuffer.get(indexBytes);
+            CRC32C crc = new CRC32C();
+            crc.update(indexBytes, 0, indexBytes.length);
+            if ((int) crc.getValue() != indexChecksum) {
+                throw new IOException("Segment index checksum mismatch");
+            }
+            
+            DataInputStream dis = new DataInputStream(new ByteArrayInputStream(indexBytes));
+            int blockCount = dis.readInt();
+            String[] firstKeys = new String[blockCount];
+            long[] offsets = new long[blockCount];
+            int[] lengths = new int[blockCount];
+            int[] checksums = new int[blockCount];
+            for (int block = 0; block < blockCount; block++) {
+                firstKeys[block] = dis.readUTF();
+                offsets[block] = dis.readLong();
+                lengths[block] = dis.readInt();
+                checksums[block] = dis.readInt();
+            }
+            Map<String, Map<String, int[]>> blocksByAttribute = new HashMap<>();
+            int attributeCount = version == UNINDEXED_VERSION ? 0 : dis.readInt();
+            for (int a = 0; a < attributeCount; a++) {
+                String attribute = dis.readUTF();
+                int valueCount = dis.readInt();
+                Map<String, int[]> index = new HashMap<>(valueCount * 4 / 3 + 1);
+                for (int v = 0; v < valueCount; v++) {
+                    String value = dis.readUTF();
+                    int[] blocks = new int[dis.readInt()];
+                    for (int i = 0; i < blocks.length; i++) {
+                        blocks[i] = dis.readInt();
+                        if (blocks[i] < 0 || blocks[i] >= blockCount) {
+                            throw new IOException("Segment attribute index is corrupt");
+                        }
+                    }
+                    index.put(value, blocks);
+                }
+                blocksByAttribute.put(attribute, index);
+            }
+            return new Segment(file, codecVersion, recordCount, firstKeys, offsets, lengths, checksums,
+                               blocksByAttribute);
+        }
+    }
+    
+    /**
+     * Reads, verifies and inflates blocks of a segment, opening it once
+     * @param blocks Indexes of the blocks to read, in file order
+     * @param action Called with every entity of the blocks
+     */
+    private void readBlocks(Segment segment, int[] blocks, Consumer<V> action) {
+        if (blocks.length == 0) {
+            return;
+        }
+        int block = blocks[0];
+        try (FileChannel channel = FileChannel.open(segment.file, StandardOpenOption.READ)) {
+            for (int next : blocks) {
+                block = next;
+                readBlock(channel, segment, block, action);
+            }
+        } catch (IOException | DataFormatException e) {
+            throw new StorageException("Could not read block " + block + " of " + segment.file.getFileName(), e);
+        }
+    }
+    
+    private void readBlock(FileChannel channel, Segment segment, int block, Consumer<V> action)
+            throws IOException, DataFormatException {
+        ByteBuffer buffer = readFully(channel, segment.offsets[block], segment.lengths[block]);
+        byte[] compressed = new byte[buffer.remaining()];
+        buffer.get(compressed);
+        CRC32C crc = new CRC32C();
+        crc.update(compressed, 0, compressed.length);
+        if ((int) crc.getValue() != segment.checksums[block]) {
+            throw new IOException("Block checksum mismatch");
+        }
+        
+        RecordReader reader = new RecordReader(new ByteArrayInputStream(inflate(compressed)));
+        int count = reader.readVarInt();
+        for (int i = 0; i < count; i++) {
+            action.accept(codec.read(reader, segment.codecVersion));
+        }
+    }
+    
+    private static byte[] deflate(Deflater deflater, byte[] input) {
+        deflater.reset();
+        deflater.setInput(input);
+        deflater.finish();
+        ByteArrayOutputStream output = new ByteArrayOutputStream(input.length / 2 + 64);
+        byte[] chunk = new byte[8192];
+        while (!deflater.finished()) {
+            int n = deflater.deflate(chunk);
+            output.write(chunk, 0, n);
+        }
+        return output.toByteArray();
+    }
+    
+    private static byte[] inflate(byte[] input) throws DataFormatException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(input);
+            ByteArrayOutputStream output = new ByteArrayOutputStream(input.length * 4);
+            byte[] chunk = new byte[8192];
+            while (!inflater.finished()) {
+                int n = inflater.inflate(chunk);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new DataFormatException("Block is truncated");
+                }
+                output.write(chunk, 0, n);
+            }
+            return output.toByteArray();
+        } finally {
+            inflater.end();
+        }
+    }
+    
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+    
+    private static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of segment");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+    
+    /**
+     * Syncs the archive directory so that new segments survive a crash.
+     * Not every platform allows this, in which case it is skipped.
+     */
+    private void syncDirectory() {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Directory sync is not supported on this platform
+        }
+    }
+    
+    /**
+     * Opened segment: its file, sparse block index and attribute indexes
+     */
+    private static class Segment {
+        private final Path file;
+        private final int codecVersion;
+        private final int recordCount;
+        private final String[] firstKeys;
+        private final long[] offsets;
+        private final int[] lengths;
+        private final int[] checksums;
+        // Attribute name to the blocks holding each of its values
+        private final Map<String, Map<String, int[]>> blocksByAttribute;
+        
+        Segment(Path file, int codecVersion, int recordCount, String[] firstKeys, long[] offsets,
+                int[] lengths, int[] checksums, Map<String, Map<String, int[]>> blocksByAttribute) {
+            this.file = file;
+            this.codecVersion = codecVersion;
+            this.recordCount = recordCount;
+            this.firstKeys = firstKeys;
+            this.offsets = offsets;
+            this.lengths = lengths;
+            this.checksums = checksums;
+            this.blocksByAttribute = blocksByAttribute;
+        }
+        
+        /**
+         * Finds the blocks that may hold a value of an attribute
+         * @return Block indexes in order; every block if the attribute is not indexed here
+         */
+        int[] findBlocks(String attribute, String value) {
+            Map<String, int[]> index = blocksByAttribute.get(attribute);
+            if (index == null) {
+                return allBlocks();
+            }
+            return index.getOrDefault(value, new int[0]);
+        }
+        
+        int[] allBlocks() {
+            int[] all = new int[firstKeys.length];
+            for (int block = 0; block < all.length; block++) {
+                all[block] = block;
+            }
+            return all;
+        }
+        
+        /**
+         * Finds the only block that may hold a key
+         * @return Block index, or -1 if the key sorts before the first block
+         */
+        int findBlock(String key) {
+            int low = 0;
+            int high = firstKeys.length - 1;
+            int found = -1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (firstKeys[mid].compareTo(key) <= 0) {
+                    found = mid;
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return found;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.library.storage;
+
+import com.library.util.FileHandler;
+import com.library.util.RecordCodec;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Storage engine that rewrites its whole data file after every mutation.
+ * Batches of a journaled unit of work are the exception: they are appended
+ * to a log like the log-structured engine does, and folded into the data
+ * file by the next rewrite.
+ * @param <V> Type of entity stored
+ */
+public class SnapshotStorageEngine<V> extends FileStorageEngine<V> {
+    // Number of logged records that triggers a rewrite of the data file
+    private static final int LOG_CHECKPOINT_THRESHOLD = 1000;
+    
+    private final AtomicInteger logRecordCount = new AtomicInteger();
+    
+    /**
+     * Opens a data file, folding in any log left by a log-structured engine
+     * @param fileHandler File handler for the data directory
+     * @param filename Data file holding the entities
+     * @param codec Codec for the entities
+     */
+    public SnapshotStorageEngine(FileHandler fileHandler, String filename, RecordCodec<V> codec) {
+        super(fileHandler, filename, codec);
+        int replayed = fileHandler.replayLog(filename, replayTarget(), codec);
+        changes.save();
+        if (replayed > 0) {
+            fileHandler.checkpoint(filename, records, codec);
+        }
+    }
+    
+    @Override
+    public void put(String key, V value) {
+        super.put(key, value);
+        save();
+    }
+    
+    @Override
+    public boolean delete(String key) {
+        if (!super.delete(key)) {
+            return false;
+        }
+        save();
+        return true;
+    }
+    
+    @Override
+    public void batch(WriteBatch<V> batch) {
+        super.batch(batch);
+        save();
+    }
+    
+    /**
+     * Applies a journaled batch and appends it to the log instead of
+     * rewriting the data file, unless the log has grown long enough
+     */
+    @Override
+    void applyCommitted(WriteBatch<V> batch, String commitId) {
+        super.batch(batch);
+        boolean logged = fileHandler.appendCommitted(filename, batch.getRecords(), codec, commitId);
+        // A failed append may still have left part of the batch in the log, so it is retired too
+        if (logRecordCount.addAndGet(batch.size()) >= LOG_CHECKPOINT_THRESHOLD || !logged) {
+            save();
+        }
+    }
+    
+    /**
+     * Saves all entities to the data file, starting a new log if any
+     * batches were logged since the last save
+     */
+    private void save() {
+        changes.save();
+        if (logRecordCount.getAndSet(0) == 0) {
+            fileHandler.writeRecords(filename, records, codec);
+        } else if (!fileHandler.checkpoint(filename, records, codec)) {
+            logRecordCount.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.library.storage;
+
+import java.util.Collection;
+
+/**
+ * Keyed storage for one entity type, beneath the services.
+ * Implementations decide how (and whether) entities are persisted.
+ * @param <V> Type of entity stored
+ */
+public interface StorageEngine<V> {
+    
+    /**
+     * Gets an entity by key
+     * @param key Key of the entity
+     * @return Entity if found, null otherwise
+     */
+    V get(String key);
+    
+    /**
+     * Checks whether a key is stored
+     * @param key Key to check
+     * @return true if the key exists, false otherwise
+     */
+    boolean containsKey(String key);
+    
+    /**
+     * Stores an entity under a key, replacing any previous entity
+     * @param key Key of the entity
+     * @param value Entity to store
+     */
+    void put(String key, V value);
+    
+    /**
+     * Removes an entity
+     * @param key Key of the entity
+     * @return true if the entity was removed, false if it didn't exist
+     */
+    boolean delete(String key);
+    
+    /**
+     * Gets all stored entities
+     * @return Collection of all entities
+     */
+    Collection<V> scan();
+    
+    /**
+     * Applies several mutations, in order, persisting them together
+     * @param batch Mutations to apply
+     */
+    void batch(WriteBatch<V> batch);
+    
+    /**
+     * Gets the number of stored entities
+     * @return Number of entities
+     */
+    int size();
+    
+    /**
+     * Makes every mutation applied so far durable
+     */
+    default void flush() {
+    }
+    
+    /**
+     * Flushes and releases any resources held by the engine
+     */
+    default void close() {
+        flush();
+    }
+}
@@ -0,0 +1,63 @@
+package com.library.storage;
+
+import com.library.util.FileHandler;
+import com.library.util.RecordCodec;
+
+/**
+ * Factory for the generic storage engines, selected by name
+ */
+public class StorageEngines {
+    public static final String MEMORY = "memory";
+    public static final String SNAPSHOT = "snapshot";
+    public static final String LOG = "log";
+    
+    private StorageEngines() {
+    }
+    
+    /**
+     * Opens a storage engine of the given type
+     * @param type One of {@link #MEMORY}, {@link #SNAPSHOT} or {@link #LOG}
+     * @param fileHandler File handler for the data directory
+     * @param filename Data file holding the entities
+     * @param codec Codec for the entities
+     * @return Opened storage engine
+     * @throws IllegalArgumentException if the type is unknown
+     */
+    public static <V> StorageEngine<V> open(String type, FileHandler fileHandler, String filename,
+                                            RecordCodec<V> codec) {
+        switch (type.toLowerCase()) {
+            case MEMORY:
+                return new InMemoryStorageEngine<>();
+            case SNAPSHOT:
+                return new SnapshotStorageEngine<>(fileHandler, filename, codec);
+            case LOG:
+                return new LogStructuredStorageEngine<>(fileHandler, filename, codec);
+            default:
+                throw new IllegalArgumentException("Unknown storage engine: " + type);
+        }
+    }
+    
+    /**
+     * Creates a storage engine of the given type that is only opened when it
+     * is first read; file-backed engines take writes before that in their log
+     * @param type One of {@link #MEMORY}, {@link #SNAPSHOT} or {@link #LOG}
+     * @param fileHandler File handler for the data directory
+     * @param filename Data file holding the entities
+     * @param codec Codec for the entities
+     * @return Lazy storage engine
+     * @throws IllegalArgumentException if the type is unknown
+     */
+    public static <V> LazyStorageEngine<V> openLazy(String type, FileHandler fileHandler, String filename,
+                                                    RecordCodec<V> codec) {
+        switch (type.toLowerCase()) {
+            case MEMORY:
+                return new LazyStorageEngine<>(() -> open(type, fileHandler, filename, codec));
+            case SNAPSHOT:
+            case LOG:
+                return new LazyStorageEngine<>(fileHandler, filename, codec,
+                                               () -> open(type, fileHandler, filename, codec));
+            default:
+                throw new IllegalArgumentException("Unknown storage engine: " + type);
+        }
+    }
+}
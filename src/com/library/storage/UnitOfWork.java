@@ -0,0 +1,158 @@
+package com.library.storage;
+
+import com.library.util.FileHandler;
+import com.library.util.LogBatch;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Mutations across several storage engines that are committed together.
+ * When every engine is file-backed on the same {@link FileHandler}, the unit
+ * is written to the commit journal with one write and one sync before any
+ * engine sees it, so after a crash either all of it or none of it is applied.
+ * Lazy engines over a data file that aren't opened yet take part without
+ * being opened. Other engines (in-memory, memory-mapped) are simply updated
+ * one after another.
+ */
+public class UnitOfWork {
+    private final Map<StorageEngine<?>, WriteBatch<?>> batches = new LinkedHashMap<>();
+    private final List<Runnable> afterCommit = new ArrayList<>();
+    
+    /**
+     * Adds a mutation that stores an entity
+     * @param engine Engine to store the entity in
+     * @param key Key of the entity
+     * @param value Entity to store
+     * @return This unit of work
+     */
+    public <V> UnitOfWork put(StorageEngine<V> engine, String key, V value) {
+        batchFor(engine).put(key, value);
+        return this;
+    }
+    
+    /**
+     * Adds a mutation that removes an entity
+     * @param engine Engine to remove the entity from
+     * @param key Key of the entity
+     * @return This unit of work
+     */
+    public <V> UnitOfWork delete(StorageEngine<V> engine, String key) {
+        batchFor(engine).delete(key);
+        return this;
+    }
+    
+    /**
+     * Adds an action to run once the unit has been committed, such as bringing
+     * an in-memory index up to date. It doesn't run if the commit fails.
+     * @param action Action to run
+     * @return This unit of work
+     */
+    public UnitOfWork afterCommit(Runnable action) {
+        afterCommit.add(action);
+        return this;
+    }
+    
+    public boolean isEmpty() {
+        return batches.isEmpty();
+    }
+    
+    /**
+     * Applies every mutation to its engine
+     * @throws com.library.exception.StorageException if the unit couldn't be
+     *         journaled, in which case no engine was changed
+     */
+    public void commit() {
+        FileHandler fileHandler = sharedFileHandler(batches);
+        if (fileHandler == null) {
+            for (Map.Entry<StorageEngine<?>, WriteBatch<?>> entry : batches.entrySet()) {
+                applyBatch(entry.getKey(), entry.getValue());
+            }
+        } else {
+            commitJournaled(fileHandler);
+        }
+        for (Runnable action : afterCommit) {
+            action.run();
+        }
+    }
+    
+    /**
+     * Journals the unit, then applies it to the file-backed engines
+     */
+    private void commitJournaled(FileHandler fileHandler) {
+        List<LogBatch<?>> logBatches = new ArrayList<>();
+        for (Map.Entry<StorageEngine<?>, WriteBatch<?>> entry : batches.entrySet()) {
+            logBatches.add(toLogBatch(entry.getKey(), entry.getValue()));
+        }
+        String commitId = fileHandler.beginCommit(logBatches);
+        try {
+            for (Map.Entry<StorageEngine<?>, WriteBatch<?>> entry : batches.entrySet()) {
+                applyCommitted(entry.getKey(), entry.getValue(), commitId);
+            }
+        } finally {
+            fileHandler.endCommit(commitId);
+        }
+    }
+    
+    /**
+     * Gets the batch for the engine that actually holds the entities. Lazy
+     * engines that can't take writes unopened are opened before anything is
+     * journaled, and opened ones are looked through, unless the unit already
+     * writes to them unopened: a data file must get a single batch.
+     */
+    @SuppressWarnings("unchecked")
+    private <V> WriteBatch<V> batchFor(StorageEngine<V> engine) {
+        while (engine instanceof LazyStorageEngine && !batches.containsKey(engine)
+                && !((LazyStorageEngine<V>) engine).isAppendable()) {
+            engine = ((LazyStorageEngine<V>) engine).delegate();
+        }
+        return (WriteBatch<V>) batches.computeIfAbsent(engine, e -> new WriteBatch<V>());
+    }
+    
+    /**
+     * Gets the file handler all engines persist through
+     * @return File handler, or null if some engine isn't file-backed or they don't share one
+     */
+    private static FileHandler sharedFileHandler(Map<StorageEngine<?>, WriteBatch<?>> engines) {
+        FileHandler shared = null;
+        for (StorageEngine<?> engine : engines.keySet()) {
+            FileHandler fileHandler;
+            if (engine instanceof FileStorageEngine) {
+                fileHandler = ((FileStorageEngine<?>) engine).fileHandler;
+            } else if (engine instanceof LazyStorageEngine && ((LazyStorageEngine<?>) engine).fileHandler != null) {
+                fileHandler = ((LazyStorageEngine<?>) engine).fileHandler;
+            } else {
+                return null;
+            }
+            if (shared != null && shared != fileHandler) {
+                return null;
+            }
+            shared = fileHandler;
+        }
+        return shared;
+    }
+    
+    @SuppressWarnings("unchecked")
+    private static <V> void applyBatch(StorageEngine<V> engine, WriteBatch<?> batch) {
+        engine.batch((WriteBatch<V>) batch);
+    }
+    
+    @SuppressWarnings("unchecked")
+    private static <V> LogBatch<V> toLogBatch(StorageEngine<V> engine, WriteBatch<?> batch) {
+        if (engine instanceof LazyStorageEngine) {
+            return ((LazyStorageEngine<V>) engine).toLogBatch((WriteBatch<V>) batch);
+        }
+        return ((FileStorageEngine<V>) engine).toLogBatch((WriteBatch<V>) batch);
+    }
+    
+    @SuppressWarnings("unchecked")
+    private static <V> void applyCommitted(StorageEngine<V> engine, WriteBatch<?> batch, String commitId) {
+        if (engine instanceof LazyStorageEngine) {
+            ((LazyStorageEngine<V>) engine).applyCommitted((WriteBatch<V>) batch, commitId);
+        } else {
+            ((FileStorageEngine<V>) engine).applyCommitted((WriteBatch<V>) batch, commitId);
+        }
+    }
+}
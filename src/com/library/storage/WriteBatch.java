@@ -0,0 +1,48 @@
+package com.library.storage;
+
+import com.library.util.LogRecord;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Ordered group of mutations applied to a storage engine in one step
+ * @param <V> Type of entity the mutations apply to
+ */
+public class WriteBatch<V> {
+    private final List<LogRecord<V>> records = new ArrayList<>();
+    
+    /**
+     * Adds a mutation that stores an entity
+     * @param key Key of the entity
+     * @param value Entity to store
+     * @return This batch
+     */
+    public WriteBatch<V> put(String key, V value) {
+        records.add(LogRecord.put(key, value));
+        return this;
+    }
+    
+    /**
+     * Adds a mutation that removes an entity
+     * @param key Key of the entity
+     * @return This batch
+     */
+    public WriteBatch<V> delete(String key) {
+        records.add(LogRecord.delete(key));
+        return this;
+    }
+    
+    public List<LogRecord<V>> getRecords() {
+        return Collections.unmodifiableList(records);
+    }
+    
+    public boolean isEmpty() {
+        return records.isEmpty();
+    }
+    
+    public int size() {
+        return records.size();
+    }
+}
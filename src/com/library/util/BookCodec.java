@@ -0,0 +1,51 @@
+package com.library.util;
+
+import com.library.model.Book;
+
+import java.io.IOException;
+
+/**
+ * Binary codec for {@link Book} records
+ */
+public class BookCodec implements RecordCodec<Book> {
+    private static final int VERSION = 2;
+    
+    @Override
+    public int getVersion() {
+        return VERSION;
+    }
+    
+    @Override
+    public String getKey(Book book) {
+        return book.getId();
+    }
+    
+    @Override
+    public void write(RecordWriter writer, Book book) throws IOException {
+        writer.writeString(book.getId());
+        writer.writeString(book.getTitle());
+        writer.writeString(book.getAuthor());
+        writer.writeString(book.getIsbn());
+        writer.writeString(book.getPublisher());
+        writer.writeInt(book.getPublicationYear());
+        writer.writeEnum(book.getStatus());
+        writer.writeEnum(book.getCategory());
+        writer.writeVarInt(book.getVersion());
+    }
+    
+    @Override
+    public Book read(RecordReader reader, int version) throws IOException {
+        if (version < 1 || version > VERSION) {
+            throw new IOException("Unsupported book record version " + version);
+        }
+        Book book = new Book(reader.readString(), reader.readString(), reader.readString(),
+                             reader.readString(), reader.readString(), reader.readInt(),
+                             reader.readEnum(Book.BookStatus.values()),
+                             reader.readEnum(Book.BookCategory.values()));
+        // Records written before versions were stored start at 0
+        if (version >= 2) {
+            book.setVersion(reader.readVarInt());
+        }
+        return book;
+    }
+}
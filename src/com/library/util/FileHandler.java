@@ -1,17 +1,93 @@
 package com.library.util;
 
+import com.library.exception.StorageException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedOutputStream;
 
 /**
  * Utility class for handling file operations
  */
 public class FileHandler {
+    private static final String LOG_SUFFIX = ".log";
+    private static final String PREVIOUS_LOG_SUFFIX = ".log.prev";
+    private static final String PREVIOUS_SUFFIX = ".prev";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String LEGACY_SUFFIX = ".legacy";
+    private static final String JOURNAL_FILE = "commit.journal";
+    private static final String LOCK_FILE = "library.lock";
+    private static final int SERIALIZATION_MAGIC = 0xACED;
+    private static final int RECORDS_MAGIC = 0x4C4D5342; // "LMSB"
+    private static final int RECORDS_FORMAT_VERSION = 1;
+    private static final int SNAPSHOT_HEADER_SIZE = 13;
+    private static final int CHECKSUM_SIZE = 4;
+    private static final int FRAME_HEADER_SIZE = 8;
+    // Assumed size of a log frame when there is no snapshot to average over
+    private static final int ESTIMATED_FRAME_SIZE = 128;
+    // Number of finished units of work the journal holds before they are released without group commit
+    private static final int JOURNAL_RELEASE_UNITS = 256;
+    
     private String dataDirectory;
+    private Set<String> restoredFromPrevious = ConcurrentHashMap.newKeySet();
+    // Lock on the data directory, if taken; its channel is closed to release it
+    private FileChannel directoryLock;
+    
+    // Group commit state, guarded by commitLock; file writes are serialized by ioLock
+    private final Object commitLock = new Object();
+    private final Object ioLock = new Object();
+    private Map<String, ByteArrayOutputStream> pendingFrames = new LinkedHashMap<>();
+    private ByteArrayOutputStream pendingJournal = new ByteArrayOutputStream();
+    private int pendingRecords;
+    private long appendedSequence;
+    private long durableSequence;
+    private long failedSequence;
+    private long groupCommitIntervalMillis;
+    private int groupCommitBatchSize;
+    private volatile boolean durableAcks;
+    private boolean flushRequested;
+    private boolean closed;
+    private volatile Thread flusher;
+    
+    // Unit-of-work journal, loaded on first use under ioLock; its entries are guarded by commitLock
+    private volatile List<JournalEntry> journal;
+    // Replay state of the journaled data files, changed under ioLock
+    private final Set<String> unreplayedJournalFiles = ConcurrentHashMap.newKeySet();
+    private final Set<String> openedFiles = ConcurrentHashMap.newKeySet();
+    // Data files no engine opened whose logs have been made ready for appends
+    private final Set<String> preparedLogs = ConcurrentHashMap.newKeySet();
+    // Data files whose logs hold journaled frames not yet synced, guarded by ioLock
+    private final Set<String> unsyncedLogs = new HashSet<>();
     
     public FileHandler(String dataDirectory) {
         this.dataDirectory = dataDirectory;
@@ -28,6 +104,43 @@ public class FileHandler {
         }
     }
     
+    /**
+     * Takes an exclusive lock on the data directory, held until {@link #close},
+     * so that no other process opens the same data while this one uses it:
+     * opening replays and truncates logs and redoes or clears the commit journal
+     * @throws StorageException if another process holds the lock
+     */
+    public synchronized void lockDirectory() {
+        if (directoryLock != null) {
+            return;
+        }
+        FileChannel channel = null;
+        try {
+            channel = FileChannel.open(resolve(LOCK_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            if (channel.tryLock() != null) {
+                directoryLock = channel;
+                return;
+            }
+        } catch (OverlappingFileLockException e) {
+            // Held by another file handler in this process
+        } catch (IOException e) {
+            closeQuietly(channel);
+            throw new StorageException("Could not lock data directory " + dataDirectory, e);
+        }
+        closeQuietly(channel);
+        throw new StorageException("Data directory " + dataDirectory + " is in use by another process");
+    }
+    
+    private static void closeQuietly(FileChannel channel) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Nothing left to release
+            }
+        }
+    }
+    
     /**
      * Writes object to file
      * @param filename Filename to write to
@@ -67,6 +180,1164 @@ public class FileHandler {
         }
     }
     
+    /**
+     * Reads a keyed data file written by {@link #writeRecords}.
+     * Every snapshot is verified against its checksum; if the current generation
+     * is missing or corrupt the previous generation is used instead, and
+     * {@link #replayLog} then also replays the log that belongs to it.
+     * Files still in the legacy serialized-map format are read as such and
+     * migrated to the binary format in place, keeping a copy of the original.
+     * @param filename Filename to read from
+     * @param codec Codec for the records in the file
+     * @return Map of records by key, or null if no generation of the file exists
+     * @throws StorageException if the file exists but no generation of it is valid
+     */
+    @SuppressWarnings("unchecked")
+    public <T> Map<String, T> readRecords(String filename, RecordCodec<T> codec) {
+        Path current = resolve(filename);
+        Path previous = resolve(filename + PREVIOUS_SUFFIX);
+        restoredFromPrevious.remove(filename);
+        if (!Files.exists(current) && !Files.exists(previous)) {
+            return null;
+        }
+        
+        if (Files.exists(current) && isLegacyFile(current.toFile())) {
+            Map<String, T> legacy = (Map<String, T>) readFromFile(filename);
+            if (legacy == null) {
+                throw new StorageException("Unreadable legacy data file " + filename);
+            }
+            return migrateLegacyFile(filename, codec, legacy);
+        }
+        
+        Map<String, T> records = readSnapshot(current, codec);
+        if (records != null) {
+            return records;
+        }
+        records = readSnapshot(previous, codec);
+        if (records != null) {
+            System.err.println("Recovered " + filename + " from its previous generation");
+            restoredFromPrevious.add(filename);
+            return records;
+        }
+        throw new StorageException("No valid generation of " + filename + " could be read");
+    }
+    
+    /**
+     * Reads and verifies a single snapshot file
+     * @return Records in the snapshot, or null if it is missing or fails verification
+     */
+    private <T> Map<String, T> readSnapshot(Path path, RecordCodec<T> codec) {
+        if (!Files.exists(path)) {
+            return null;
+        }
+        try {
+            byte[] data = Files.readAllBytes(path);
+            if (data.length < SNAPSHOT_HEADER_SIZE + CHECKSUM_SIZE) {
+                throw new StreamCorruptedException("Truncated snapshot");
+            }
+            int payloadLength = data.length - CHECKSUM_SIZE;
+            CRC32C crc = new CRC32C();
+            crc.update(data, 0, payloadLength);
+            DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+            if (dis.readInt() != RECORDS_MAGIC || dis.readUnsignedByte() != RECORDS_FORMAT_VERSION) {
+                throw new StreamCorruptedException("Not a library data file");
+            }
+            dis.skipBytes(payloadLength - 5);
+            if ((int) crc.getValue() != dis.readInt()) {
+                throw new StreamCorruptedException("Checksum mismatch");
+            }
+            
+            dis = new DataInputStream(new ByteArrayInputStream(data, 5, payloadLength - 5));
+            int version = dis.readInt();
+            int count = dis.readInt();
+            RecordReader reader = new RecordReader(dis);
+            Map<String, T> records = new HashMap<>(Math.max(16, (int) (count / 0.75f) + 1));
+            for (int i = 0; i < count; i++) {
+                T record = codec.read(reader, version);
+                records.put(codec.getKey(record), record);
+            }
+            return records;
+        } catch (IOException e) {
+            System.err.println("Error reading " + path.getFileName() + ": " + e.getMessage());
+            return null;
+        }
+    }
+    
+    /**
+     * Estimates the number of records in a data file without loading it: the
+     * count in its snapshot header, plus the length of its log divided by the
+     * average size of a snapshot record. Deletes and overwrites in the log are
+     * counted as new records, so this tends to overestimate.
+     * @param filename Data file to estimate
+     * @return Estimated number of records, 0 if the file doesn't exist
+     */
+    public int estimateRecords(String filename) {
+        Path current = resolve(filename);
+        Path log = resolve(filename + LOG_SUFFIX);
+        long count = 0;
+        long averageSize = ESTIMATED_FRAME_SIZE;
+        try {
+            if (Files.exists(current) && Files.size(current) >= SNAPSHOT_HEADER_SIZE + CHECKSUM_SIZE) {
+                try (DataInputStream dis = new DataInputStream(new FileInputStream(current.toFile()))) {
+                    if (dis.readInt() == RECORDS_MAGIC && dis.readUnsignedByte() == RECORDS_FORMAT_VERSION) {
+                        dis.readInt();
+                        count = Math.max(0, dis.readInt());
+                    }
+                }
+                if (count > 0) {
+                    averageSize = Math.max(1, Files.size(current) / count);
+                }
+            }
+            if (Files.exists(log)) {
+                count += Files.size(log) / (averageSize + FRAME_HEADER_SIZE);
+            }
+        } catch (IOException e) {
+            System.err.println("Error estimating " + filename + ": " + e.getMessage());
+        }
+        return (int) Math.min(Integer.MAX_VALUE, count);
+    }
+    
+    /**
+     * Checks whether a file starts with the Java serialization stream header
+     */
+    private boolean isLegacyFile(File file) {
+        try (DataInputStream dis = new DataInputStream(new FileInputStream(file))) {
+            return dis.readUnsignedShort() == SERIALIZATION_MAGIC;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+    
+    /**
+     * Rewrites a legacy serialized-map file in the binary format
+     * @param filename Legacy file
+     * @param codec Codec for the records in the file
+     * @param records Records read from the legacy file
+     * @return The records passed in
+     */
+    private <T> Map<String, T> migrateLegacyFile(String filename, RecordCodec<T> codec, Map<String, T> records) {
+        try {
+            Files.copy(resolve(filename), resolve(filename + LEGACY_SUFFIX),
+                       StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            System.err.println("Error backing up legacy file: " + e.getMessage());
+            return records;
+        }
+        if (writeRecords(filename, records, codec)) {
+            // The generation rotated out is the legacy file, which is already kept above
+            try {
+                Files.deleteIfExists(resolve(filename + PREVIOUS_SUFFIX));
+            } catch (IOException e) {
+                System.err.println("Error removing legacy generation: " + e.getMessage());
+            }
+        }
+        return records;
+    }
+    
+    /**
+     * Writes all records of a keyed data file in the binary format.
+     * The snapshot is written to a temporary file, checksummed and synced to disk,
+     * then atomically renamed over the current generation, which is kept as the
+     * previous generation. A crash at any point leaves at least one valid generation.
+     * @param filename Filename to write to
+     * @param records Records to write
+     * @param codec Codec for the records
+     * @return true if successful, false otherwise
+     */
+    public <T> boolean writeRecords(String filename, Map<String, T> records, RecordCodec<T> codec) {
+        return writeGeneration(filename, records, codec, false);
+    }
+    
+    /**
+     * Writes a new snapshot generation, optionally moving the finished log
+     * next to the previous one. Finished units of work still held in the
+     * journal are already part of the new snapshot, so their commit markers
+     * are carried into the log that goes with it: otherwise a later recovery
+     * would redo them on top of it, undoing anything written since.
+     */
+    private <T> boolean writeGeneration(String filename, Map<String, T> records, RecordCodec<T> codec,
+                                        boolean rotateLog) {
+        Path current = resolve(filename);
+        // Concurrent writers of the same file would share its temporary file
+        synchronized (ioLock) {
+            // Taken before settling, as these units' frames are all queued by now
+            List<String> finished = finishedUnits(filename);
+            settleJournal();
+            try {
+                if (rotateLog) {
+                    // The log is about to be retired along with the previous snapshot
+                    syncLogs();
+                }
+                Path temp = writeSnapshot(filename, records, codec);
+                if (Files.exists(current)) {
+                    Files.move(current, resolve(filename + PREVIOUS_SUFFIX),
+                               StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                }
+                Files.move(temp, current, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                System.err.println("Error writing to file: " + e.getMessage());
+                return false;
+            }
+            try {
+                if (rotateLog) {
+                    Path log = resolve(filename + LOG_SUFFIX);
+                    Path previousLog = resolve(filename + PREVIOUS_LOG_SUFFIX);
+                    if (Files.exists(log)) {
+                        Files.move(log, previousLog, StandardCopyOption.REPLACE_EXISTING,
+                                   StandardCopyOption.ATOMIC_MOVE);
+                    } else {
+                        Files.deleteIfExists(previousLog);
+                    }
+                }
+                syncDirectory();
+                finished.retainAll(finishedUnits(filename));
+                if (!finished.isEmpty()) {
+                    List<LogRecord<Object>> markers = new ArrayList<>();
+                    for (String commitId : finished) {
+                        markers.add(LogRecord.commit(commitId));
+                    }
+                    writeLog(filename, encodeFrames(markers, null));
+                }
+                return true;
+            } catch (IOException e) {
+                System.err.println("Error starting log of " + filename + ": " + e.getMessage());
+                return false;
+            }
+        }
+    }
+    
+    /**
+     * Lists the units of work in the journal that touch a data file and have
+     * been applied to every data file
+     */
+    private List<String> finishedUnits(String filename) {
+        List<String> finished = new ArrayList<>();
+        for (JournalEntry entry : journalEntries()) {
+            if (entry.applied && entry.files.containsKey(filename)) {
+                finished.add(entry.commitId);
+            }
+        }
+        return finished;
+    }
+    
+    /**
+     * Writes a checksummed snapshot to a synced temporary file
+     * @return Path of the temporary file
+     */
+    private <T> Path writeSnapshot(String filename, Map<String, T> records, RecordCodec<T> codec)
+            throws IOException {
+        Path temp = resolve(filename + TEMP_SUFFIX);
+        CRC32C crc = new CRC32C();
+        try (FileOutputStream fos = new FileOutputStream(temp.toFile())) {
+            DataOutputStream dos = new DataOutputStream(
+                    new BufferedOutputStream(new CheckedOutputStream(fos, crc)));
+            dos.writeInt(RECORDS_MAGIC);
+            dos.writeByte(RECORDS_FORMAT_VERSION);
+            dos.writeInt(codec.getVersion());
+            // Copied first, as the map may be concurrent and change while being written
+            List<T> values = new ArrayList<>(records.values());
+            dos.writeInt(values.size());
+            RecordWriter writer = new RecordWriter(dos);
+            for (T record : values) {
+                codec.write(writer, record);
+            }
+            dos.flush();
+            new DataOutputStream(fos).writeInt((int) crc.getValue());
+            fos.getChannel().force(true);
+        }
+        return temp;
+    }
+    
+    /**
+     * Syncs the data directory so that renames within it survive a crash.
+     * Not every platform allows this, in which case it is skipped.
+     */
+    private void syncDirectory() {
+        try (FileChannel channel = FileChannel.open(Paths.get(dataDirectory), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Directory sync is not supported on this platform
+        }
+    }
+    
+    /**
+     * Appends records to the log of a data file.
+     * Each record is stored as a length-prefixed, checksummed frame holding the
+     * operation, the key and, for PUT records, the codec version and encoded entity.
+     * Without group commit the frames are written and synced to disk immediately;
+     * with group commit they are queued for the background flusher, and the call
+     * only waits for them to reach disk when durable acknowledgements are enabled.
+     * @param filename Data file the log belongs to
+     * @param records Records to append, in order
+     * @param codec Codec for the records of the data file
+     * @return true if successful, false otherwise
+     */
+    public <T> boolean appendToLog(String filename, List<LogRecord<T>> records, RecordCodec<T> codec) {
+        byte[] frames;
+        try {
+            frames = encodeFrames(records, codec);
+        } catch (IOException e) {
+            System.err.println("Error appending to log: " + e.getMessage());
+            return false;
+        }
+        return appendFrames(filename, frames, records.size(), durableAcks, false);
+    }
+    
+    /**
+     * Appends the records a unit of work committed for one data file to its log,
+     * followed by a marker telling recovery that the unit reached this log.
+     * Unlike {@link #appendToLog}, this never needs to wait for the disk: the
+     * unit is already durable in the commit journal. Without group commit the
+     * frames are not synced either; the log is synced before the unit is
+     * released from the journal.
+     * @param filename Data file the log belongs to
+     * @param records Records committed for the data file, in order
+     * @param codec Codec for the records of the data file
+     * @param commitId ID returned by {@link #beginCommit}
+     * @return true if successful, false otherwise
+     */
+    public <T> boolean appendCommitted(String filename, List<LogRecord<T>> records, RecordCodec<T> codec,
+                                       String commitId) {
+        List<LogRecord<T>> marked = new ArrayList<>(records);
+        marked.add(LogRecord.commit(commitId));
+        byte[] frames;
+        try {
+            frames = encodeFrames(marked, codec);
+        } catch (IOException e) {
+            System.err.println("Error appending to log: " + e.getMessage());
+            return false;
+        }
+        return appendFrames(filename, frames, marked.size(), false, true);
+    }
+    
+    /**
+     * Writes encoded frames to a log, or queues them when group commit is enabled
+     * @param journaled Whether the frames are held in the commit journal, in
+     *        which case they are written without a sync
+     */
+    private boolean appendFrames(String filename, byte[] frames, int recordCount, boolean waitForDisk,
+                                 boolean journaled) {
+        prepareUnopenedLog(filename);
+        if (flusher == null) {
+            synchronized (ioLock) {
+                try {
+                    if (journaled) {
+                        Path log = resolve(filename + LOG_SUFFIX);
+                        try (FileOutputStream fos = new FileOutputStream(log.toFile(), true)) {
+                            fos.write(frames);
+                        }
+                        unsyncedLogs.add(filename);
+                    } else {
+                        writeLog(filename, frames);
+                    }
+                    return true;
+                } catch (IOException e) {
+                    System.err.println("Error appending to log: " + e.getMessage());
+                    return false;
+                }
+            }
+        }
+        
+        long sequence;
+        synchronized (commitLock) {
+            pendingFrames.computeIfAbsent(filename, f -> new ByteArrayOutputStream()).write(frames, 0, frames.length);
+            pendingRecords += recordCount;
+            sequence = ++appendedSequence;
+            if (pendingRecords >= groupCommitBatchSize) {
+                commitLock.notifyAll();
+            }
+        }
+        return !waitForDisk || awaitDurable(sequence);
+    }
+    
+    /**
+     * Encodes records as checksummed log frames
+     */
+    private <T> byte[] encodeFrames(List<LogRecord<T>> records, RecordCodec<T> codec) throws IOException {
+        ByteArrayOutputStream frames = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(frames);
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        RecordWriter writer = new RecordWriter(buffer);
+        CRC32C crc = new CRC32C();
+        for (LogRecord<T> record : records) {
+            buffer.reset();
+            writer.writeEnum(record.getOperation());
+            writer.writeString(record.getKey());
+            if (record.getOperation() == LogRecord.Operation.PUT) {
+                writer.writeVarInt(codec.getVersion());
+                codec.write(writer, record.getValue());
+            }
+            writer.flush();
+            byte[] payload = buffer.toByteArray();
+            crc.reset();
+            crc.update(payload, 0, payload.length);
+            dos.writeInt(payload.length);
+            dos.writeInt((int) crc.getValue());
+            dos.write(payload);
+        }
+        return frames.toByteArray();
+    }
+    
+    /**
+     * Appends encoded frames to a log file and syncs it to disk
+     */
+    private void writeLog(String filename, byte[] frames) throws IOException {
+        appendToFile(resolve(filename + LOG_SUFFIX), frames);
+    }
+    
+    /**
+     * Appends bytes to a file and syncs it, also syncing the data directory
+     * when the file is new so that the file itself survives a crash
+     */
+    private void appendToFile(Path path, byte[] bytes) throws IOException {
+        boolean created = !Files.exists(path);
+        try (FileOutputStream fos = new FileOutputStream(path.toFile(), true)) {
+            fos.write(bytes);
+            fos.getChannel().force(false);
+        }
+        if (created) {
+            syncDirectory();
+        }
+    }
+    
+    /**
+     * Syncs the logs written without a sync, along with the data directory in
+     * case any of them was created. Must hold ioLock.
+     */
+    private void syncLogs() throws IOException {
+        if (unsyncedLogs.isEmpty()) {
+            return;
+        }
+        for (String filename : unsyncedLogs) {
+            Path log = resolve(filename + LOG_SUFFIX);
+            if (Files.exists(log)) {
+                try (FileChannel channel = FileChannel.open(log, StandardOpenOption.WRITE)) {
+                    channel.force(false);
+                }
+            }
+        }
+        syncDirectory();
+        unsyncedLogs.clear();
+    }
+    
+    /**
+     * Turns on group commit: log appends and commit journal frames are queued
+     * and a background thread writes everything queued with one write and one
+     * sync per file, once the interval elapses or the batch size is reached,
+     * whichever comes first. Snapshot writes stay synchronous.
+     * @param intervalMillis Maximum time a queued record waits before being flushed
+     * @param batchSize Number of queued records that triggers an early flush
+     */
+    public void enableGroupCommit(long intervalMillis, int batchSize) {
+        if (intervalMillis < 1 || batchSize < 1) {
+            throw new IllegalArgumentException("Group commit interval and batch size must be positive");
+        }
+        synchronized (commitLock) {
+            if (flusher != null) {
+                throw new IllegalStateException("Group commit is already enabled");
+            }
+            closed = false;
+            groupCommitIntervalMillis = intervalMillis;
+            groupCommitBatchSize = batchSize;
+            flusher = new Thread(this::runFlusher, "library-group-commit");
+            flusher.setDaemon(true);
+            flusher.start();
+        }
+    }
+    
+    public boolean isGroupCommitEnabled() {
+        return flusher != null;
+    }
+    
+    public boolean isDurableAcks() {
+        return durableAcks;
+    }
+    
+    /**
+     * Sets whether log appends under group commit wait until their batch is on disk
+     * @param durableAcks true to block callers until their mutations are durable
+     */
+    public void setDurableAcks(boolean durableAcks) {
+        this.durableAcks = durableAcks;
+    }
+    
+    /**
+     * Background loop that flushes queued log frames
+     */
+    private void runFlusher() {
+        while (true) {
+            synchronized (commitLock) {
+                long deadline = System.currentTimeMillis() + groupCommitIntervalMillis;
+                long now;
+                while (!closed && !flushRequested && pendingRecords < groupCommitBatchSize
+                        && (now = System.currentTimeMillis()) < deadline) {
+                    try {
+                        commitLock.wait(deadline - now);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+                if (closed) {
+                    break;
+                }
+            }
+            flushPending();
+        }
+    }
+    
+    /**
+     * Writes all queued log frames and wakes callers waiting for them
+     * @return true if everything queued was written, false otherwise
+     */
+    private boolean flushPending() {
+        synchronized (ioLock) {
+            Map<String, ByteArrayOutputStream> batch;
+            ByteArrayOutputStream journalBatch;
+            long batchSequence;
+            synchronized (commitLock) {
+                batch = pendingFrames;
+                journalBatch = pendingJournal;
+                batchSequence = appendedSequence;
+                if (!batch.isEmpty() || journalBatch.size() > 0) {
+                    flushRequested = false;
+                    pendingFrames = new LinkedHashMap<>();
+                    pendingJournal = new ByteArrayOutputStream();
+                    pendingRecords = 0;
+                }
+            }
+            if (batch.isEmpty() && journalBatch.size() == 0) {
+                releaseJournal();
+                return true;
+            }
+            
+            Iterator<Map.Entry<String, ByteArrayOutputStream>> files = batch.entrySet().iterator();
+            try {
+                // Units must be in the journal before any of their frames reach a log
+                if (journalBatch.size() > 0) {
+                    appendToFile(resolve(JOURNAL_FILE), journalBatch.toByteArray());
+                    journalBatch.reset();
+                }
+                while (files.hasNext()) {
+                    Map.Entry<String, ByteArrayOutputStream> file = files.next();
+                    writeLog(file.getKey(), file.getValue().toByteArray());
+                    files.remove();
+                }
+            } catch (IOException e) {
+                System.err.println("Error flushing log: " + e.getMessage());
+                synchronized (commitLock) {
+                    // Put unwritten frames back in front of anything queued since
+                    for (Map.Entry<String, ByteArrayOutputStream> file : pendingFrames.entrySet()) {
+                        batch.computeIfAbsent(file.getKey(), f -> new ByteArrayOutputStream())
+                             .write(file.getValue().toByteArray(), 0, file.getValue().size());
+                    }
+                    pendingFrames = new LinkedHashMap<>(batch);
+                    journalBatch.write(pendingJournal.toByteArray(), 0, pendingJournal.size());
+                    pendingJournal = journalBatch;
+                    failedSequence = batchSequence;
+                    commitLock.notifyAll();
+                }
+                return false;
+            }
+            synchronized (commitLock) {
+                durableSequence = batchSequence;
+                commitLock.notifyAll();
+            }
+            releaseJournal();
+            return true;
+        }
+    }
+    
+    /**
+     * Waits until the batch holding an append has been flushed.
+     * The flusher is woken straight away; appends queued by other callers
+     * while it is writing are committed together in its next batch.
+     * @param sequence Sequence number of the append
+     * @return true once it is durable, false if flushing it failed
+     */
+    private boolean awaitDurable(long sequence) {
+        synchronized (commitLock) {
+            flushRequested = true;
+            commitLock.notifyAll();
+            while (durableSequence < sequence) {
+                if (failedSequence >= sequence) {
+                    return false;
+                }
+                try {
+                    commitLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+    
+    /**
+     * Writes everything queued by group commit to disk before returning
+     * @return true if all queued mutations are durable, false otherwise
+     */
+    public boolean flush() {
+        if (flusher != null) {
+            return flushPending();
+        }
+        synchronized (ioLock) {
+            releaseJournal();
+        }
+        return true;
+    }
+    
+    /**
+     * Flushes queued mutations, stops the group commit flusher and releases
+     * the lock on the data directory
+     */
+    public void close() {
+        Thread thread;
+        synchronized (commitLock) {
+            closed = true;
+            thread = flusher;
+            commitLock.notifyAll();
+        }
+        if (thread != null) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        flushPending();
+        flusher = null;
+        synchronized (this) {
+            closeQuietly(directoryLock);
+            directoryLock = null;
+        }
+    }
+    
+    /**
+     * Replays the log of a data file on top of a snapshot loaded from it.
+     * If the snapshot was recovered from its previous generation, the log that
+     * belongs to that generation is replayed first and the recovered state is
+     * written back as a fresh pair of generations.
+     * Replay stops at the first truncated or corrupt frame (e.g. from a crash
+     * mid-append), and the log is cut back to the last valid frame.
+     * Units of work from the commit journal whose marker never reached the log
+     * are then applied and written to the log as well.
+     * @param filename Data file the log belongs to
+     * @param target Map to apply the logged mutations to
+     * @param codec Codec for the records of the data file
+     * @return Number of records replayed, i.e. still held in the log
+     */
+    public <T> int replayLog(String filename, Map<String, T> target, RecordCodec<T> codec) {
+        synchronized (ioLock) {
+            openedFiles.add(filename);
+        }
+        int replayed = 0;
+        Set<String> commits = new HashSet<>();
+        boolean recovering = restoredFromPrevious.remove(filename);
+        if (recovering) {
+            replayed += replayLogFile(resolve(filename + PREVIOUS_LOG_SUFFIX), target, codec, commits);
+        } else {
+            // Its records are in the snapshot already, but its markers still count
+            replayLogFile(resolve(filename + PREVIOUS_LOG_SUFFIX), null, codec, commits);
+        }
+        replayed += replayLogFile(resolve(filename + LOG_SUFFIX), target, codec, commits);
+        replayed += redoJournal(filename, target, codec, commits, !recovering);
+        
+        if (recovering) {
+            try {
+                Files.move(writeSnapshot(filename, target, codec), resolve(filename + PREVIOUS_SUFFIX),
+                           StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                Files.move(writeSnapshot(filename, target, codec), resolve(filename),
+                           StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                Files.deleteIfExists(resolve(filename + PREVIOUS_LOG_SUFFIX));
+                Files.deleteIfExists(resolve(filename + LOG_SUFFIX));
+                syncDirectory();
+                replayed = 0;
+            } catch (IOException e) {
+                throw new StorageException("Could not rewrite recovered " + filename, e);
+            }
+        }
+        return replayed;
+    }
+    
+    /**
+     * Replays a single log file, truncating any invalid tail
+     * @param target Map to apply the logged mutations to, or null to only collect commit markers
+     * @return Number of records replayed
+     */
+    private <T> int replayLogFile(Path logPath, Map<String, T> target, RecordCodec<T> codec,
+                                  Set<String> commits) {
+        if (!Files.exists(logPath)) {
+            return 0;
+        }
+        int replayed = 0;
+        long validLength = 0;
+        CRC32C crc = new CRC32C();
+        try (DataInputStream dis = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(logPath.toFile())))) {
+            long remaining = Files.size(logPath);
+            while (remaining >= FRAME_HEADER_SIZE) {
+                int length = dis.readInt();
+                int checksum = dis.readInt();
+                if (length < 0 || length > remaining - FRAME_HEADER_SIZE) {
+                    break;
+                }
+                byte[] payload = new byte[length];
+                dis.readFully(payload);
+                crc.reset();
+                crc.update(payload, 0, length);
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                if (applyLogFrame(payload, target, codec, commits)) {
+                    replayed++;
+                }
+                validLength += FRAME_HEADER_SIZE + length;
+                remaining -= FRAME_HEADER_SIZE + length;
+            }
+        } catch (IOException e) {
+            System.err.println("Error replaying log: " + e.getMessage());
+        }
+        
+        try (FileChannel channel = FileChannel.open(logPath, StandardOpenOption.WRITE)) {
+            if (channel.size() > validLength) {
+                System.err.println("Discarding invalid tail of " + logPath.getFileName());
+                channel.truncate(validLength);
+                channel.force(true);
+            }
+        } catch (IOException e) {
+            System.err.println("Error truncating log: " + e.getMessage());
+        }
+        return replayed;
+    }
+    
+    /**
+     * Applies one log frame to a map, collecting commit markers
+     * @return true if the frame held a mutation, false if it was a commit marker
+     */
+    private <T> boolean applyLogFrame(byte[] frame, Map<String, T> target, RecordCodec<T> codec,
+                                      Set<String> commits) throws IOException {
+        RecordReader reader = new RecordReader(new ByteArrayInputStream(frame));
+        LogRecord.Operation operation = reader.readEnum(LogRecord.Operation.values());
+        String key = reader.readString();
+        if (operation == LogRecord.Operation.COMMIT) {
+            commits.add(key);
+            return false;
+        }
+        if (target == null) {
+            return true;
+        }
+        if (operation == LogRecord.Operation.PUT) {
+            int version = reader.readVarInt();
+            target.put(key, codec.read(reader, version));
+        } else {
+            target.remove(key);
+        }
+        return true;
+    }
+    
+    /**
+     * Begins a unit of work spanning several data files by writing all of its
+     * records as a single checksummed frame to the commit journal, with one
+     * write and one sync. Once this returns the unit is durable: the caller
+     * applies it to each data file with {@link #appendCommitted}, and recovery
+     * redoes it for any data file whose log it didn't reach. The caller must
+     * call {@link #endCommit} afterwards, whatever happens.
+     * With group commit the frame is queued instead, and written by the
+     * flusher ahead of the log frames queued with it; like any log append,
+     * the unit is then only waited for when durable acknowledgements are on.
+     * @param batches Records of the unit, per data file
+     * @return ID of the unit of work
+     * @throws StorageException if the journal couldn't be written, in which case nothing was committed
+     */
+    public String beginCommit(List<LogBatch<?>> batches) {
+        String commitId = Long.toHexString(ThreadLocalRandom.current().nextLong());
+        Map<String, byte[]> files = new LinkedHashMap<>();
+        byte[] frame;
+        try {
+            for (LogBatch<?> batch : batches) {
+                files.put(batch.getFilename(), encodeBatch(batch));
+            }
+            frame = encodeJournalFrame(commitId, files);
+        } catch (IOException e) {
+            throw new StorageException("Could not encode unit of work", e);
+        }
+        
+        if (journal == null) {
+            synchronized (ioLock) {
+                loadJournal();
+            }
+        }
+        JournalEntry entry = new JournalEntry(commitId, files);
+        if (flusher == null) {
+            synchronized (ioLock) {
+                try {
+                    appendToFile(resolve(JOURNAL_FILE), frame);
+                } catch (IOException e) {
+                    throw new StorageException("Could not write commit journal", e);
+                }
+                synchronized (commitLock) {
+                    journal.add(entry);
+                }
+            }
+            return commitId;
+        }
+        
+        long sequence;
+        synchronized (commitLock) {
+            pendingJournal.write(frame, 0, frame.length);
+            journal.add(entry);
+            pendingRecords++;
+            sequence = ++appendedSequence;
+            if (pendingRecords >= groupCommitBatchSize) {
+                commitLock.notifyAll();
+            }
+        }
+        if (durableAcks && !awaitDurable(sequence)) {
+            // Still queued: the flusher retries it with the log frames that follow
+            System.err.println("Commit journal not yet on disk for unit of work " + commitId);
+        }
+        return commitId;
+    }
+    
+    /**
+     * Ends a unit of work started with {@link #beginCommit}, once it has been
+     * applied to every data file (or has failed to be). Its journal entry is
+     * dropped once the log frames it produced are on disk: with group commit
+     * after the flush that writes them, otherwise in batches, on a flush or
+     * checkpoint or once enough finished units have piled up.
+     * @param commitId ID of the unit of work
+     */
+    public void endCommit(String commitId) {
+        int entries;
+        synchronized (commitLock) {
+            for (JournalEntry entry : journal) {
+                if (entry.commitId.equals(commitId)) {
+                    entry.applied = true;
+                }
+            }
+            entries = journal.size();
+        }
+        if (flusher == null && entries >= JOURNAL_RELEASE_UNITS) {
+            synchronized (ioLock) {
+                releaseJournal();
+            }
+        }
+    }
+    
+    /**
+     * Encodes a unit of work as a checksummed journal frame holding its ID and
+     * the log frames of each data file
+     */
+    private byte[] encodeJournalFrame(String commitId, Map<String, byte[]> files) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(payload);
+        dos.writeUTF(commitId);
+        dos.writeInt(files.size());
+        for (Map.Entry<String, byte[]> file : files.entrySet()) {
+            dos.writeUTF(file.getKey());
+            dos.writeInt(file.getValue().length);
+            dos.write(file.getValue());
+        }
+        dos.flush();
+        
+        byte[] bytes = payload.toByteArray();
+        CRC32C crc = new CRC32C();
+        crc.update(bytes, 0, bytes.length);
+        ByteArrayOutputStream frame = new ByteArrayOutputStream(FRAME_HEADER_SIZE + bytes.length);
+        DataOutputStream out = new DataOutputStream(frame);
+        out.writeInt(bytes.length);
+        out.writeInt((int) crc.getValue());
+        out.write(bytes);
+        return frame.toByteArray();
+    }
+    
+    /**
+     * Encodes the records of one data file as log frames
+     */
+    private <T> byte[] encodeBatch(LogBatch<T> batch) throws IOException {
+        return encodeFrames(batch.getRecords(), batch.getCodec());
+    }
+    
+    /**
+     * Applies the journaled units of work that never reached a data file's log
+     * @param commits Units whose marker was found in the log
+     * @param writeToLog Whether to also append the redone records to the log
+     * @return Number of records redone
+     */
+    private <T> int redoJournal(String filename, Map<String, T> target, RecordCodec<T> codec,
+                                Set<String> commits, boolean writeToLog) {
+        synchronized (ioLock) {
+            loadJournal();
+            unreplayedJournalFiles.remove(filename);
+            int redone = 0;
+            for (JournalEntry entry : journalEntries()) {
+                byte[] frames = entry.files.get(filename);
+                if (frames == null || commits.contains(entry.commitId)) {
+                    continue;
+                }
+                try {
+                    DataInputStream dis = new DataInputStream(new ByteArrayInputStream(frames));
+                    while (dis.available() > 0) {
+                        byte[] payload = new byte[dis.readInt()];
+                        dis.readInt();
+                        dis.readFully(payload);
+                        if (applyLogFrame(payload, target, codec, commits)) {
+                            redone++;
+                        }
+                    }
+                    if (writeToLog) {
+                        writeLog(filename, markedFrames(entry.commitId, frames));
+                    }
+                } catch (IOException e) {
+                    throw new StorageException("Could not redo unit of work for " + filename, e);
+                }
+                System.err.println("Redid unit of work " + entry.commitId + " for " + filename);
+            }
+            return redone;
+        }
+    }
+    
+    /**
+     * Redoes the journaled units of work in the logs of data files that no
+     * storage engine has opened since startup, such as lazily opened ones, so
+     * that the journal can be released without waiting for them to be opened.
+     * Units whose marker is already in either log generation are skipped.
+     * Must hold ioLock.
+     */
+    private void redoUnopenedFiles() {
+        Iterator<String> files = unreplayedJournalFiles.iterator();
+        while (files.hasNext()) {
+            String filename = files.next();
+            if (openedFiles.contains(filename)) {
+                continue;
+            }
+            Set<String> commits = new HashSet<>();
+            replayLogFile(resolve(filename + PREVIOUS_LOG_SUFFIX), null, null, commits);
+            replayLogFile(resolve(filename + LOG_SUFFIX), null, null, commits);
+            try {
+                for (JournalEntry entry : journalEntries()) {
+                    byte[] frames = entry.files.get(filename);
+                    if (frames != null && !commits.contains(entry.commitId)) {
+                        writeLog(filename, markedFrames(entry.commitId, frames));
+                        System.err.println("Redid unit of work " + entry.commitId + " for " + filename);
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("Error redoing unit of work for " + filename + ": " + e.getMessage());
+                continue;
+            }
+            files.remove();
+        }
+    }
+    
+    /**
+     * Readies the log of a data file no engine has opened (written to by a
+     * lazy engine, say) for its first append: cuts off a frame torn by a crash,
+     * which would otherwise hide everything appended after it from replay, and
+     * redoes its journaled units of work, so that the log stays in commit order
+     */
+    private void prepareUnopenedLog(String filename) {
+        if (openedFiles.contains(filename) || preparedLogs.contains(filename)) {
+            return;
+        }
+        synchronized (ioLock) {
+            if (openedFiles.contains(filename) || preparedLogs.contains(filename)) {
+                return;
+            }
+            replayLogFile(resolve(filename + LOG_SUFFIX), null, null, new HashSet<>());
+            loadJournal();
+            if (unreplayedJournalFiles.contains(filename)) {
+                redoUnopenedFiles();
+            }
+            preparedLogs.add(filename);
+        }
+    }
+    
+    /**
+     * Appends the commit marker of a unit of work to its log frames for a data file
+     */
+    private byte[] markedFrames(String commitId, byte[] frames) throws IOException {
+        ByteArrayOutputStream marked = new ByteArrayOutputStream();
+        marked.write(frames);
+        marked.write(encodeFrames(Collections.singletonList(LogRecord.commit(commitId)), null));
+        return marked.toByteArray();
+    }
+    
+    /**
+     * Reads the commit journal the first time it is needed, cutting off any invalid tail
+     */
+    private void loadJournal() {
+        if (journal != null) {
+            return;
+        }
+        List<JournalEntry> loadedEntries = new ArrayList<>();
+        Path journalPath = resolve(JOURNAL_FILE);
+        if (!Files.exists(journalPath)) {
+            journal = loadedEntries;
+            return;
+        }
+        long validLength = 0;
+        CRC32C crc = new CRC32C();
+        try (DataInputStream dis = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(journalPath.toFile())))) {
+            long remaining = Files.size(journalPath);
+            while (remaining >= FRAME_HEADER_SIZE) {
+                int length = dis.readInt();
+                int checksum = dis.readInt();
+                if (length < 0 || length > remaining - FRAME_HEADER_SIZE) {
+                    break;
+                }
+                byte[] payload = new byte[length];
+                dis.readFully(payload);
+                crc.reset();
+                crc.update(payload, 0, length);
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                DataInputStream entry = new DataInputStream(new ByteArrayInputStream(payload));
+                String commitId = entry.readUTF();
+                Map<String, byte[]> files = new LinkedHashMap<>();
+                for (int i = entry.readInt(); i > 0; i--) {
+                    String filename = entry.readUTF();
+                    byte[] frames = new byte[entry.readInt()];
+                    entry.readFully(frames);
+                    files.put(filename, frames);
+                }
+                JournalEntry loaded = new JournalEntry(commitId, files);
+                loaded.applied = true;
+                loadedEntries.add(loaded);
+                unreplayedJournalFiles.addAll(files.keySet());
+                validLength += FRAME_HEADER_SIZE + length;
+                remaining -= FRAME_HEADER_SIZE + length;
+            }
+        } catch (IOException e) {
+            System.err.println("Error reading commit journal: " + e.getMessage());
+        }
+        
+        try (FileChannel channel = FileChannel.open(journalPath, StandardOpenOption.WRITE)) {
+            if (channel.size() > validLength) {
+                System.err.println("Discarding invalid tail of " + JOURNAL_FILE);
+                channel.truncate(validLength);
+                channel.force(true);
+            }
+        } catch (IOException e) {
+            System.err.println("Error truncating commit journal: " + e.getMessage());
+        }
+        journal = loadedEntries;
+    }
+    
+    /**
+     * Copies the entries of the journal, which may be empty if it isn't loaded yet
+     */
+    private List<JournalEntry> journalEntries() {
+        List<JournalEntry> entries = journal;
+        if (entries == null) {
+            return Collections.emptyList();
+        }
+        synchronized (commitLock) {
+            return new ArrayList<>(entries);
+        }
+    }
+    
+    /**
+     * Flushes queued log frames before a snapshot is written, so that the
+     * journal can be cleared first: a snapshot newer than a journaled unit
+     * must never have that unit redone on top of it.
+     */
+    private void settleJournal() {
+        synchronized (ioLock) {
+            if (!journalEntries().isEmpty()) {
+                flush();
+            }
+        }
+    }
+    
+    /**
+     * Drops the units of work that are durable in the logs from the commit
+     * journal: those applied to every data file while no log frames are left
+     * queued, provided every data file named in the journal has been replayed
+     * since startup. Logs written without a sync are synced first.
+     * Must hold ioLock.
+     */
+    private void releaseJournal() {
+        if (journalEntries().isEmpty()) {
+            return;
+        }
+        redoUnopenedFiles();
+        if (!unreplayedJournalFiles.isEmpty()) {
+            return;
+        }
+        // Units begun from here on are queued or written after the rewrite below
+        List<JournalEntry> released = new ArrayList<>();
+        List<JournalEntry> remaining = new ArrayList<>();
+        synchronized (commitLock) {
+            if (!pendingFrames.isEmpty() || pendingJournal.size() > 0) {
+                return;
+            }
+            for (JournalEntry entry : journal) {
+                if (entry.applied) {
+                    released.add(entry);
+                } else {
+                    remaining.add(entry);
+                }
+            }
+        }
+        if (released.isEmpty()) {
+            return;
+        }
+        
+        Path journalPath = resolve(JOURNAL_FILE);
+        try {
+            syncLogs();
+            if (remaining.isEmpty()) {
+                Files.deleteIfExists(journalPath);
+            } else {
+                Path temp = resolve(JOURNAL_FILE + TEMP_SUFFIX);
+                try (FileOutputStream fos = new FileOutputStream(temp.toFile())) {
+                    for (JournalEntry entry : remaining) {
+                        fos.write(encodeJournalFrame(entry.commitId, entry.files));
+                    }
+                    fos.getChannel().force(false);
+                }
+                Files.move(temp, journalPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            syncDirectory();
+            synchronized (commitLock) {
+                journal.removeAll(released);
+            }
+        } catch (IOException e) {
+            System.err.println("Error clearing commit journal: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Writes a full snapshot of a data file and starts a new log.
+     * The finished log is kept alongside the previous snapshot generation so
+     * that the two together can still rebuild the current state.
+     * @param filename Data file to checkpoint
+     * @param snapshot Current state of the data file
+     * @param codec Codec for the records of the data file
+     * @return true if successful, false otherwise
+     */
+    public <T> boolean checkpoint(String filename, Map<String, T> snapshot, RecordCodec<T> codec) {
+        synchronized (ioLock) {
+            return flush() && writeGeneration(filename, snapshot, codec, true);
+        }
+    }
+    
+    /**
+     * Resolves a filename within the data directory
+     */
+    private Path resolve(String filename) {
+        return Paths.get(dataDirectory, filename);
+    }
+    
+    public String getDataDirectory() {
+        return dataDirectory;
+    }
+    
     /**
      * Checks if a file exists
      * @param filename Filename to check
@@ -88,4 +1359,18 @@ public class FileHandler {
         File file = new File(filePath);
         return file.delete();
     }
+    
+    /**
+     * Unit of work held in the commit journal
+     */
+    private static class JournalEntry {
+        private final String commitId;
+        private final Map<String, byte[]> files;
+        private volatile boolean applied;
+        
+        JournalEntry(String commitId, Map<String, byte[]> files) {
+            this.commitId = commitId;
+            this.files = files;
+        }
+    }
 }
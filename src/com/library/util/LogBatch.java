@@ -0,0 +1,40 @@
+package com.library.util;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Records for one data file that are committed together with the records of
+ * other data files as a single unit of work
+ * @param <T> Type of entity in the data file
+ */
+public class LogBatch<T> {
+    private final String filename;
+    private final RecordCodec<T> codec;
+    private final List<LogRecord<T>> records;
+    
+    /**
+     * Creates a batch of records for a data file
+     * @param filename Data file the records belong to
+     * @param codec Codec for the records of the data file
+     * @param records Records, in order
+     */
+    public LogBatch(String filename, RecordCodec<T> codec, List<LogRecord<T>> records) {
+        this.filename = filename;
+        this.codec = codec;
+        this.records = Collections.unmodifiableList(records);
+    }
+    
+    // Getters
+    public String getFilename() {
+        return filename;
+    }
+    
+    public RecordCodec<T> getCodec() {
+        return codec;
+    }
+    
+    public List<LogRecord<T>> getRecords() {
+        return records;
+    }
+}
@@ -0,0 +1,70 @@
+package com.library.util;
+
+/**
+ * Represents a single mutation appended to a write-ahead log
+ * @param <T> Type of entity the mutation applies to
+ */
+public class LogRecord<T> {
+    private final Operation operation;
+    private final String key;
+    private final T value;
+    
+    private LogRecord(Operation operation, String key, T value) {
+        this.operation = operation;
+        this.key = key;
+        this.value = value;
+    }
+    
+    /**
+     * Creates a record that stores a value under a key
+     * @param key Key of the entity
+     * @param value Entity to store
+     * @return PUT record
+     */
+    public static <T> LogRecord<T> put(String key, T value) {
+        return new LogRecord<>(Operation.PUT, key, value);
+    }
+    
+    /**
+     * Creates a record that removes a key
+     * @param key Key of the entity
+     * @return DELETE record
+     */
+    public static <T> LogRecord<T> delete(String key) {
+        return new LogRecord<>(Operation.DELETE, key, null);
+    }
+    
+    /**
+     * Creates a marker recording that a unit of work reached a data file's log
+     * @param commitId ID of the unit of work
+     * @return COMMIT record
+     */
+    public static <T> LogRecord<T> commit(String commitId) {
+        return new LogRecord<>(Operation.COMMIT, commitId, null);
+    }
+    
+    // Getters
+    public Operation getOperation() {
+        return operation;
+    }
+    
+    public String getKey() {
+        return key;
+    }
+    
+    public T getValue() {
+        return value;
+    }
+    
+    @Override
+    public String toString() {
+        return String.format("LogRecord [Operation: %s, Key: %s]", operation, key);
+    }
+    
+    // Log operation enum
+    public enum Operation {
+        PUT,
+        DELETE,
+        COMMIT
+    }
+}
@@ -0,0 +1,50 @@
+package com.library.util;
+
+import com.library.model.Member;
+
+import java.io.IOException;
+
+/**
+ * Binary codec for {@link Member} records
+ */
+public class MemberCodec implements RecordCodec<Member> {
+    private static final int VERSION = 2;
+    
+    @Override
+    public int getVersion() {
+        return VERSION;
+    }
+    
+    @Override
+    public String getKey(Member member) {
+        return member.getId();
+    }
+    
+    @Override
+    public void write(RecordWriter writer, Member member) throws IOException {
+        writer.writeString(member.getId());
+        writer.writeString(member.getName());
+        writer.writeString(member.getEmail());
+        writer.writeString(member.getPhone());
+        writer.writeString(member.getAddress());
+        writer.writeDate(member.getMemberSince());
+        writer.writeEnum(member.getMembershipType());
+        writer.writeBoolean(member.isActive());
+        writer.writeVarInt(member.getVersion());
+    }
+    
+    @Override
+    public Member read(RecordReader reader, int version) throws IOException {
+        if (version < 1 || version > VERSION) {
+            throw new IOException("Unsupported member record version " + version);
+        }
+        Member member = new Member(reader.readString(), reader.readString(), reader.readString(),
+                                   reader.readString(), reader.readString(), reader.readDate(),
+                                   reader.readEnum(Member.MembershipType.values()),
+                                   reader.readBoolean());
+        if (version >= 2) {
+            member.setVersion(reader.readVarInt());
+        }
+        return member;
+    }
+}
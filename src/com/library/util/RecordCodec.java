@@ -0,0 +1,42 @@
+package com.library.util;
+
+import java.io.IOException;
+
+/**
+ * Converts an entity to and from its binary record representation.
+ * Implementations bump their version whenever the record layout changes
+ * and keep reading every older version.
+ * @param <T> Type of entity handled by the codec
+ */
+public interface RecordCodec<T> {
+    
+    /**
+     * Gets the schema version written by this codec
+     * @return Current schema version
+     */
+    int getVersion();
+    
+    /**
+     * Gets the key an entity is stored under
+     * @param value Entity
+     * @return Key of the entity
+     */
+    String getKey(T value);
+    
+    /**
+     * Writes an entity using the current schema version
+     * @param writer Writer to write to
+     * @param value Entity to write
+     * @throws IOException if writing fails
+     */
+    void write(RecordWriter writer, T value) throws IOException;
+    
+    /**
+     * Reads an entity written with the given schema version
+     * @param reader Reader to read from
+     * @param version Schema version the entity was written with
+     * @return Entity read
+     * @throws IOException if reading fails or the version is unknown
+     */
+    T read(RecordReader reader, int version) throws IOException;
+}
@@ -0,0 +1,98 @@
+package com.library.util;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StreamCorruptedException;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+
+/**
+ * Reads primitive record fields written by {@link RecordWriter}
+ */
+public class RecordReader {
+    private final DataInputStream in;
+    
+    public RecordReader(InputStream in) {
+        this.in = in instanceof DataInputStream ? (DataInputStream) in : new DataInputStream(in);
+    }
+    
+    /**
+     * Reads a length-prefixed UTF-8 string
+     * @return String read, or null if a null string was written
+     * @throws IOException if the underlying stream fails or ends early
+     */
+    public String readString() throws IOException {
+        int size = readVarInt();
+        if (size == 0) {
+            return null;
+        }
+        byte[] bytes = new byte[size - 1];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+    
+    /**
+     * Reads an enum constant from its ordinal
+     * @param values All constants of the enum, in declaration order
+     * @return Enum constant read, or null if a null constant was written
+     * @throws IOException if the ordinal is out of range or the stream fails
+     */
+    public <E extends Enum<E>> E readEnum(E[] values) throws IOException {
+        int ordinal = readVarInt();
+        if (ordinal == 0) {
+            return null;
+        }
+        if (ordinal > values.length) {
+            throw new StreamCorruptedException("Unknown enum ordinal " + (ordinal - 1));
+        }
+        return values[ordinal - 1];
+    }
+    
+    /**
+     * Reads a date from its epoch day
+     * @return Date read, or null if a null date was written
+     * @throws IOException if the underlying stream fails or ends early
+     */
+    public LocalDate readDate() throws IOException {
+        int epochDay = in.readInt();
+        return epochDay == RecordWriter.NULL_DATE ? null : LocalDate.ofEpochDay(epochDay);
+    }
+    
+    public int readInt() throws IOException {
+        return in.readInt();
+    }
+    
+    public long readLong() throws IOException {
+        return in.readLong();
+    }
+    
+    public double readDouble() throws IOException {
+        return in.readDouble();
+    }
+    
+    public boolean readBoolean() throws IOException {
+        return in.readBoolean();
+    }
+    
+    public int readByte() throws IOException {
+        return in.readUnsignedByte();
+    }
+    
+    /**
+     * Reads a non-negative int written with 7 bits per byte
+     * @return Value read
+     * @throws IOException if the value is malformed or the stream fails
+     */
+    public int readVarInt() throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new StreamCorruptedException("Malformed variable-length int");
+    }
+}
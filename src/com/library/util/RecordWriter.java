@@ -0,0 +1,91 @@
+package com.library.util;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+
+/**
+ * Writes primitive record fields in the compact binary format read by {@link RecordReader}.
+ * Strings are length-prefixed UTF-8, enums are ordinals and dates are epoch days.
+ */
+public class RecordWriter {
+    static final int NULL_DATE = Integer.MIN_VALUE;
+    
+    private final DataOutputStream out;
+    
+    public RecordWriter(OutputStream out) {
+        this.out = out instanceof DataOutputStream ? (DataOutputStream) out : new DataOutputStream(out);
+    }
+    
+    /**
+     * Writes a string as a variable-length size followed by its UTF-8 bytes
+     * @param value String to write, may be null
+     * @throws IOException if the underlying stream fails
+     */
+    public void writeString(String value) throws IOException {
+        if (value == null) {
+            writeVarInt(0);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(bytes.length + 1);
+        out.write(bytes);
+    }
+    
+    /**
+     * Writes an enum constant as its ordinal
+     * @param value Enum constant to write, may be null
+     * @throws IOException if the underlying stream fails
+     */
+    public void writeEnum(Enum<?> value) throws IOException {
+        writeVarInt(value == null ? 0 : value.ordinal() + 1);
+    }
+    
+    /**
+     * Writes a date as its epoch day
+     * @param value Date to write, may be null
+     * @throws IOException if the underlying stream fails
+     */
+    public void writeDate(LocalDate value) throws IOException {
+        out.writeInt(value == null ? NULL_DATE : Math.toIntExact(value.toEpochDay()));
+    }
+    
+    public void writeInt(int value) throws IOException {
+        out.writeInt(value);
+    }
+    
+    public void writeLong(long value) throws IOException {
+        out.writeLong(value);
+    }
+    
+    public void writeDouble(double value) throws IOException {
+        out.writeDouble(value);
+    }
+    
+    public void writeBoolean(boolean value) throws IOException {
+        out.writeBoolean(value);
+    }
+    
+    public void writeByte(int value) throws IOException {
+        out.writeByte(value);
+    }
+    
+    /**
+     * Writes a non-negative int using 7 bits per byte
+     * @param value Value to write
+     * @throws IOException if the underlying stream fails
+     */
+    public void writeVarInt(int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+    
+    public void flush() throws IOException {
+        out.flush();
+    }
+}
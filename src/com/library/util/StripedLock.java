@@ -0,0 +1,99 @@
+package com.library.util;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Fixed set of locks shared by keys (entity IDs, normalized ISBNs, ...) by
+ * hash, so that operations on different keys usually run in parallel while
+ * those on the same key are serialized, without a lock per key. Several keys
+ * are always locked in stripe order, so callers can't deadlock each other.
+ * Locks are reentrant.
+ */
+public class StripedLock {
+    private static final int DEFAULT_STRIPES = 64;
+    
+    private final ReentrantLock[] stripes;
+    
+    public StripedLock() {
+        this(DEFAULT_STRIPES);
+    }
+    
+    /**
+     * Creates the locks
+     * @param stripes Number of locks; more means fewer unrelated keys share one
+     */
+    public StripedLock(int stripes) {
+        if (stripes < 1) {
+            throw new IllegalArgumentException("Number of stripes must be positive");
+        }
+        this.stripes = new ReentrantLock[stripes];
+        for (int i = 0; i < stripes; i++) {
+            this.stripes[i] = new ReentrantLock();
+        }
+    }
+    
+    /**
+     * Locks the stripes of some keys, to be unlocked in a finally block
+     * @param keys Keys to lock; null keys are ignored
+     * @return Held locks
+     */
+    public Held lock(String... keys) {
+        int[] indexes = new int[keys.length];
+        int count = 0;
+        for (String key : keys) {
+            if (key != null) {
+                indexes[count++] = stripeOf(key);
+            }
+        }
+        Arrays.sort(indexes, 0, count);
+        
+        int distinct = 0;
+        for (int i = 0; i < count; i++) {
+            if (distinct == 0 || indexes[distinct - 1] != indexes[i]) {
+                indexes[distinct++] = indexes[i];
+            }
+        }
+        return acquire(Arrays.copyOf(indexes, distinct));
+    }
+    
+    /**
+     * Locks every stripe, for operations touching keys not known in advance
+     * @return Held locks
+     */
+    public Held lockAll() {
+        int[] indexes = new int[stripes.length];
+        for (int i = 0; i < indexes.length; i++) {
+            indexes[i] = i;
+        }
+        return acquire(indexes);
+    }
+    
+    private Held acquire(int[] indexes) {
+        for (int index : indexes) {
+            stripes[index].lock();
+        }
+        return () -> release(indexes);
+    }
+    
+    private void release(int[] indexes) {
+        for (int i = indexes.length - 1; i >= 0; i--) {
+            stripes[indexes[i]].unlock();
+        }
+    }
+    
+    private int stripeOf(String key) {
+        int hash = key.hashCode();
+        return Math.floorMod(hash ^ (hash >>> 16), stripes.length);
+    }
+    
+    /**
+     * Locks taken by {@link StripedLock#lock(String...)}
+     */
+    public interface Held {
+        /**
+         * Releases the locks
+         */
+        void unlock();
+    }
+}
@@ -0,0 +1,50 @@
+package com.library.util;
+
+import com.library.model.Transaction;
+
+import java.io.IOException;
+
+/**
+ * Binary codec for {@link Transaction} records
+ */
+public class TransactionCodec implements RecordCodec<Transaction> {
+    private static final int VERSION = 2;
+    
+    @Override
+    public int getVersion() {
+        return VERSION;
+    }
+    
+    @Override
+    public String getKey(Transaction transaction) {
+        return transaction.getId();
+    }
+    
+    @Override
+    public void write(RecordWriter writer, Transaction transaction) throws IOException {
+        writer.writeString(transaction.getId());
+        writer.writeString(transaction.getBookId());
+        writer.writeString(transaction.getMemberId());
+        writer.writeDate(transaction.getBorrowDate());
+        writer.writeDate(transaction.getDueDate());
+        writer.writeDate(transaction.getReturnDate());
+        writer.writeDouble(transaction.getFine());
+        writer.writeEnum(transaction.getStatus());
+        writer.writeVarInt(transaction.getVersion());
+    }
+    
+    @Override
+    public Transaction read(RecordReader reader, int version) throws IOException {
+        if (version < 1 || version > VERSION) {
+            throw new IOException("Unsupported transaction record version " + version);
+        }
+        Transaction transaction = new Transaction(reader.readString(), reader.readString(), reader.readString(),
+                                                  reader.readDate(), reader.readDate(), reader.readDate(),
+                                                  reader.readDouble(),
+                                                  reader.readEnum(Transaction.TransactionStatus.values()));
+        if (version >= 2) {  // version 1 predates entity versions
+            transaction.setVersion(reader.readVarInt());
+        }
+        return transaction;
+    }
+}
@@ -0,0 +1,142 @@
+package com.library.api;
+
+import com.library.model.Book;
+import com.library.model.Member;
+import com.library.service.BookService;
+import com.library.service.MemberService;
+import com.library.service.TransactionService;
+import com.library.storage.StorageEngines;
+import com.library.util.BookCodec;
+import com.library.util.FileHandler;
+import com.library.util.MemberCodec;
+import com.library.util.TransactionCodec;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * Check for the HTTP API: starts the server on a free loopback port and
+ * runs a search, a borrow, renewals and a return through it, along with
+ * requests that must be answered with 400, 404, 405 or 409.
+ * Run with the compiled sources on the classpath; exits with status 1 on failure.
+ */
+public class LibraryHttpServerCheck {
+    private static final HttpClient CLIENT = HttpClient.newHttpClient();
+    // A request the server fails to answer fails the check instead of hanging it
+    private static final Duration TIMEOUT = Duration.ofSeconds(10);
+    
+    private static int failures;
+    private static String base;
+    
+    public static void main(String[] args) throws Exception {
+        Path directory = Files.createTempDirectory("http-check");
+        try {
+            run(directory.toString());
+        } finally {
+            try (Stream<Path> files = Files.walk(directory)) {
+                files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+        if (failures > 0) {
+            System.out.println(failures + " check(s) failed");
+            System.exit(1);
+        }
+        System.out.println("All checks passed");
+    }
+    
+    private static void run(String directory) throws Exception {
+        FileHandler fileHandler = new FileHandler(directory);
+        BookService books = new BookService(StorageEngines.open(StorageEngines.LOG, fileHandler,
+                                                                BookService.BOOKS_FILE, new BookCodec()));
+        MemberService members = new MemberService(StorageEngines.open(StorageEngines.LOG, fileHandler,
+                                                                      MemberService.MEMBERS_FILE, new MemberCodec()));
+        TransactionService transactions = new TransactionService(books, members,
+                StorageEngines.open(StorageEngines.LOG, fileHandler, TransactionService.TRANSACTIONS_FILE,
+                                    new TransactionCodec()),
+                StorageEngines.openLazy(StorageEngines.LOG, fileHandler, TransactionService.HISTORY_FILE,
+                                        new TransactionCodec()),
+                TransactionService.openArchive(directory));
+        String bookId = books.addBook(new Book("The Left Hand of Darkness", "Ursula K. Le Guin", "isbn-1",
+                                               "Ace", 1969, Book.BookCategory.FICTION)).getId();
+        String memberId = members.registerMember(new Member("Reader", "reader@example.com", "555-0100",
+                                                            "1 Road", Member.MembershipType.STANDARD)).getId();
+        
+        LibraryHttpServer server = new LibraryHttpServer(books, members, transactions, 0);
+        server.start();
+        try {
+            check(server.getAddress().getAddress().isLoopbackAddress(), "listens on loopback by default");
+            base = "http://127.0.0.1:" + server.getPort();
+            exercise(bookId, memberId);
+        } finally {
+            server.stop(0);
+            fileHandler.close();
+        }
+    }
+    
+    private static void exercise(String bookId, String memberId) throws Exception {
+        HttpResponse<String> search = get("/books?q=left%20hand");
+        check(search.statusCode() == 200 && search.body().contains("\"id\":\"" + bookId + "\""),
+              "search finds the book");
+        check(get("/books").statusCode() == 400, "search without a query is 400");
+        check(get("/books/no-such-book").statusCode() == 404, "unknown book is 404");
+        check(get("/members/no-such-member").statusCode() == 404, "unknown member is 404");
+        
+        check(post("/loans", "{\"bookId\": \"" + bookId + "\"").statusCode() == 400, "malformed body is 400");
+        check(post("/loans", "{\"bookId\": \"" + bookId + "\", \"memberId\": \"nobody\"}").statusCode() == 404,
+              "borrowing for an unknown member is 404");
+        String nested = "{\"a\":" + "[".repeat(30_000) + "]".repeat(30_000) + "}";
+        check(post("/loans", nested).statusCode() == 400, "deeply nested body is 400");
+        
+        String borrowBody = "{\"bookId\": \"" + bookId + "\", \"memberId\": \"" + memberId + "\"}";
+        HttpResponse<String> borrow = post("/loans", borrowBody);
+        check(borrow.statusCode() == 201, "borrowing is 201");
+        if (borrow.statusCode() != 201) {
+            return;
+        }
+        Map<String, Object> loan = Json.parseObject(borrow.body());
+        String loanId = (String) loan.get("id");
+        int version = ((Double) loan.get("version")).intValue();
+        check(post("/loans", borrowBody).statusCode() == 409, "borrowing a lent book is 409");
+        check(get("/loans/" + loanId).statusCode() == 200, "loan lookup is 200");
+        check(post("/loans/" + loanId, "").statusCode() == 405, "posting to a loan is 405");
+        
+        String renew = "/loans/" + loanId + "/renew";
+        check(post(renew, "{\"days\": 0}").statusCode() == 400, "renewing by 0 days is 400");
+        check(post(renew, "{\"days\": 1000000}").statusCode() == 400, "renewing by a million days is 400");
+        check(post(renew, "{\"days\": 1.5}").statusCode() == 400, "renewing by a fraction of a day is 400");
+        check(post(renew, "{\"days\": 7, \"version\": " + version + "}").statusCode() == 200, "renewing is 200");
+        check(post(renew, "{\"days\": 7, \"version\": " + version + "}").statusCode() == 409,
+              "renewing an outdated version is 409");
+        
+        check(post("/loans/" + loanId + "/return", "").statusCode() == 200, "returning is 200");
+        check(post("/loans/" + loanId + "/return", "").statusCode() == 404, "returning twice is 404");
+        check(post(renew, "{\"days\": 7}").statusCode() == 404, "renewing a returned loan is 404");
+        check(get("/loans/no-such-loan").statusCode() == 404, "unknown loan is 404");
+    }
+    
+    private static HttpResponse<String> get(String path) throws Exception {
+        return CLIENT.send(HttpRequest.newBuilder(URI.create(base + path)).timeout(TIMEOUT).GET().build(),
+                           HttpResponse.BodyHandlers.ofString());
+    }
+    
+    private static HttpResponse<String> post(String path, String body) throws Exception {
+        return CLIENT.send(HttpRequest.newBuilder(URI.create(base + path)).timeout(TIMEOUT)
+                                      .POST(HttpRequest.BodyPublishers.ofString(body)).build(),
+                           HttpResponse.BodyHandlers.ofString());
+    }
+    
+    private static void check(boolean condition, String description) {
+        System.out.println((condition ? "ok      " : "FAILED  ") + description);
+        if (!condition) {
+            failures++;
+        }
+    }
+}
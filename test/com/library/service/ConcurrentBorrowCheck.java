@@ -0,0 +1,182 @@
+package com.library.service;
+
+import com.library.exception.BookNotFoundException;
+import com.library.exception.MemberNotEligibleException;
+import com.library.model.Book;
+import com.library.model.Member;
+import com.library.model.Transaction;
+import com.library.storage.StorageEngines;
+import com.library.util.BookCodec;
+import com.library.util.FileHandler;
+import com.library.util.MemberCodec;
+import com.library.util.TransactionCodec;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+/**
+ * Stress check for concurrent lending: many threads race to borrow the same
+ * book, to return the same loan, and to borrow past one member's limit. Each
+ * race must have exactly the allowed number of winners, and the loan counts
+ * must agree with the transactions, before and after a restart.
+ * Run with the compiled sources on the classpath; exits with status 1 on failure.
+ */
+public class ConcurrentBorrowCheck {
+    private static final int THREADS = 16;
+    private static final int ROUNDS = 200;
+    
+    private static int failures;
+    
+    public static void main(String[] args) throws Exception {
+        Path directory = Files.createTempDirectory("borrow-check");
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            run(directory.toString(), executor);
+        } finally {
+            executor.shutdownNow();
+            try (Stream<Path> files = Files.walk(directory)) {
+                files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+        if (failures > 0) {
+            System.out.println(failures + " check(s) failed");
+            System.exit(1);
+        }
+        System.out.println("All checks passed");
+    }
+    
+    private static void run(String directory, ExecutorService executor) throws Exception {
+        FileHandler fileHandler = new FileHandler(directory);
+        fileHandler.enableGroupCommit(2, 64);
+        Library library = new Library(directory, fileHandler);
+        List<String> members = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            members.add(library.members.registerMember(new Member("Reader " + i, "reader" + i + "@example.com",
+                    "555-01" + i, i + " Road", Member.MembershipType.PREMIUM)).getId());
+        }
+        
+        List<String> books = new ArrayList<>();
+        for (int round = 0; round < ROUNDS; round++) {
+            String bookId = library.books.addBook(new Book("Copy " + round, "Author", "isbn-" + round, "Press",
+                                                           2000, Book.BookCategory.FICTION)).getId();
+            books.add(bookId);
+            
+            List<Transaction> loans = race(executor, thread -> library.transactions.borrowBook(
+                    bookId, members.get(thread)));
+            boolean lentOnce = loans.size() == 1
+                    && library.books.getBookById(bookId).getStatus() == Book.BookStatus.BORROWED
+                    && library.transactions.getBookTransactionHistory(bookId).size() == 1
+                    && totalActiveLoans(library, members) == 1;
+            check(lentOnce, "round " + round + ": " + THREADS + " borrowers of one book, one loan");
+            if (loans.isEmpty()) {
+                continue;
+            }
+            
+            String loanId = loans.get(0).getId();
+            List<Transaction> returns = race(executor, thread -> library.transactions.returnBook(loanId));
+            boolean returnedOnce = returns.size() == 1
+                    && library.books.getBookById(bookId).getStatus() == Book.BookStatus.AVAILABLE
+                    && totalActiveLoans(library, members) == 0;
+            check(returnedOnce, "round " + round + ": " + THREADS + " returns of one loan, one return");
+        }
+        
+        Member student = library.members.registerMember(new Member("Student", "student@example.com",
+                "555-0199", "9 Road", Member.MembershipType.STUDENT));
+        int limit = Member.MembershipType.STUDENT.getMaxBorrowItems();
+        List<Transaction> studentLoans = race(executor, thread -> library.transactions.borrowBook(
+                books.get(thread % books.size()), student.getId()));
+        check(studentLoans.size() == limit
+                && library.transactions.countMemberActiveTransactions(student.getId()) == limit
+                && library.transactions.getMemberActiveTransactions(student.getId()).size() == limit,
+              THREADS + " borrowers on one student's card, " + limit + " loans");
+        fileHandler.close();
+        
+        FileHandler reopened = new FileHandler(directory);
+        Library restarted = new Library(directory, reopened);
+        members.add(student.getId());
+        int borrowed = restarted.books.countBooksByStatus(Book.BookStatus.BORROWED);
+        check(totalActiveLoans(restarted, members) == limit && borrowed == limit
+                && restarted.transactions.getAllTransactions().size() == ROUNDS + limit,
+              "after a restart the loans, books and transactions still agree");
+        reopened.close();
+    }
+    
+    /**
+     * Runs the same call on every thread at once
+     * @return Results of the calls that succeeded
+     */
+    private static List<Transaction> race(ExecutorService executor, Attempt attempt) throws Exception {
+        CyclicBarrier start = new CyclicBarrier(THREADS);
+        List<Future<Transaction>> results = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            int thread = i;
+            Callable<Transaction> task = () -> {
+                start.await();
+                try {
+                    return attempt.run(thread);
+                } catch (BookNotFoundException | MemberNotEligibleException e) {
+                    return null;
+                }
+            };
+            results.add(executor.submit(task));
+        }
+        List<Transaction> succeeded = new ArrayList<>();
+        for (Future<Transaction> result : results) {
+            Transaction transaction = result.get();
+            if (transaction != null) {
+                succeeded.add(transaction);
+            }
+        }
+        return succeeded;
+    }
+    
+    private static int totalActiveLoans(Library library, List<String> members) {
+        int total = 0;
+        for (String memberId : members) {
+            total += library.transactions.countMemberActiveTransactions(memberId);
+        }
+        return total;
+    }
+    
+    private static void check(boolean condition, String description) {
+        if (!condition) {
+            System.out.println("FAILED  " + description);
+            failures++;
+        }
+    }
+    
+    private interface Attempt {
+        Transaction run(int thread) throws Exception;
+    }
+    
+    /**
+     * Services on log-structured stores, as the library runs them
+     */
+    private static class Library {
+        final BookService books;
+        final MemberService members;
+        final TransactionService transactions;
+        
+        Library(String directory, FileHandler fileHandler) {
+            books = new BookService(StorageEngines.open(StorageEngines.LOG, fileHandler,
+                                                        BookService.BOOKS_FILE, new BookCodec()));
+            members = new MemberService(StorageEngines.open(StorageEngines.LOG, fileHandler,
+                                                            MemberService.MEMBERS_FILE, new MemberCodec()));
+            transactions = new TransactionService(books, members,
+                    StorageEngines.open(StorageEngines.LOG, fileHandler, TransactionService.TRANSACTIONS_FILE,
+                                        new TransactionCodec()),
+                    StorageEngines.open(StorageEngines.LOG, fileHandler, TransactionService.HISTORY_FILE,
+                                        new TransactionCodec()),
+                    TransactionService.openArchive(directory));
+        }
+    }
+}
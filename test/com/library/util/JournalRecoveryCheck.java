@@ -0,0 +1,216 @@
+package com.library.util;
+
+import com.library.model.Book;
+import com.library.model.Member;
+import com.library.model.Transaction;
+import com.library.service.BookService;
+import com.library.service.MemberService;
+import com.library.service.TransactionService;
+import com.library.storage.LazyStorageEngine;
+import com.library.storage.LogStructuredStorageEngine;
+import com.library.storage.StorageEngines;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * Checks recovery of units of work from the commit journal after a crash.
+ * A unit left in the journal must not be redone on top of a newer checkpoint:
+ * crash with the journal still holding a return, restart without ever opening
+ * the lazily loaded history, mark the book lost and checkpoint it, then
+ * restart again. Without group commit, a unit must be redone from the journal
+ * when the unsynced log frames it wrote are lost. Returns written to history
+ * without opening it must survive a frame torn off its log by an earlier
+ * crash. With group commit, a unit
+ * must survive a crash once flushed and vanish entirely if it was still queued.
+ * Run with the compiled sources on the classpath; exits with status 1 on failure.
+ */
+public class JournalRecoveryCheck {
+    private static int failures;
+    
+    public static void main(String[] args) throws Exception {
+        Path directory = Files.createTempDirectory("journal-check");
+        try {
+            checkpointAfterCrash(directory.resolve("checkpoint").toString());
+            unsyncedLogsLost(directory.resolve("unsynced").toString());
+            tornHistoryLog(directory.resolve("torn-history").toString());
+            groupCommitCrash(directory.resolve("group-commit").toString());
+        } finally {
+            try (Stream<Path> files = Files.walk(directory)) {
+                files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+        if (failures > 0) {
+            System.out.println(failures + " check(s) failed");
+            System.exit(1);
+        }
+        System.out.println("All checks passed");
+    }
+    
+    private static void checkpointAfterCrash(String directory) throws Exception {
+        // Session 1: the units reach every log, then the process dies before the journal is cleared
+        FileHandler crashing = crashingHandler(directory);
+        Library first = new Library(directory, crashing);
+        Book book = first.books.addBook(new Book("Dune", "Frank Herbert", "9780441013593", "Ace", 1965,
+                                                 Book.BookCategory.FICTION));
+        Member member = first.members.registerMember(new Member("Ann", "ann@example.com", "555-0100", "1 Road",
+                                                                Member.MembershipType.STANDARD));
+        Transaction loan = first.transactions.borrowBook(book.getId(), member.getId());
+        first.transactions.returnBook(loan.getId());
+        check(!first.history.isOpen(), "returning a loan leaves history unopened");
+        check(Files.exists(Path.of(directory, "commit.journal")), "the crash leaves the journal behind");
+        
+        // Session 2: history is never opened; the book is lost and its store checkpointed
+        FileHandler second = new FileHandler(directory);
+        Library restarted = new Library(directory, second);
+        restarted.books.updateBookStatus(book.getId(), Book.BookStatus.LOST);
+        restarted.bookStore.checkpoint();
+        second.close();
+        check(!Files.exists(Path.of(directory, "commit.journal")), "the journal is released once replayed");
+        
+        // Session 3: nothing may be redone over the checkpoint
+        for (int start = 3; start <= 4; start++) {
+            FileHandler handler = new FileHandler(directory);
+            Library library = new Library(directory, handler);
+            check(library.books.getBookById(book.getId()).getStatus() == Book.BookStatus.LOST,
+                  "start " + start + ": the lost book stays lost");
+            check(library.transactions.getMemberTransactionHistory(member.getId()).size() == 1,
+                  "start " + start + ": the returned loan is in history");
+            check(library.transactions.getMemberActiveTransactions(member.getId()).isEmpty(),
+                  "start " + start + ": no loan is left open");
+            handler.close();
+        }
+    }
+    
+    private static void unsyncedLogsLost(String directory) throws Exception {
+        FileHandler first = new FileHandler(directory);
+        Library library = new Library(directory, first);
+        Book book = library.books.addBook(new Book("Kim", "Rudyard Kipling", "9780141442372", "Penguin", 1901,
+                                                   Book.BookCategory.FICTION));
+        Member member = library.members.registerMember(new Member("Cy", "cy@example.com", "555-0102", "3 Road",
+                                                                  Member.MembershipType.STANDARD));
+        Path[] logs = {Path.of(directory, BookService.BOOKS_FILE + ".log"),
+                       Path.of(directory, TransactionService.TRANSACTIONS_FILE + ".log")};
+        long[] sizes = new long[logs.length];
+        for (int i = 0; i < logs.length; i++) {
+            sizes[i] = Files.exists(logs[i]) ? Files.size(logs[i]) : 0;
+        }
+        library.transactions.borrowBook(book.getId(), member.getId());
+        check(Files.exists(Path.of(directory, "commit.journal")), "unsynced: the journal outlives the unit");
+        
+        // The crash takes the log frames written since the last sync with it
+        for (int i = 0; i < logs.length; i++) {
+            try (FileChannel channel = FileChannel.open(logs[i], StandardOpenOption.WRITE)) {
+                channel.truncate(sizes[i]);
+            }
+        }
+        FileHandler handler = new FileHandler(directory);
+        Library restarted = new Library(directory, handler);
+        check(restarted.books.getBookById(book.getId()).getStatus() == Book.BookStatus.BORROWED
+                && restarted.transactions.countMemberActiveTransactions(member.getId()) == 1,
+              "unsynced: the loan is redone from the journal");
+        handler.close();
+        check(!Files.exists(Path.of(directory, "commit.journal")), "unsynced: the journal is released on close");
+    }
+    
+    private static void tornHistoryLog(String directory) throws Exception {
+        FileHandler first = new FileHandler(directory);
+        Library library = new Library(directory, first);
+        Book book = library.books.addBook(new Book("Nana", "Emile Zola", "9780140444568", "Penguin", 1880,
+                                                   Book.BookCategory.FICTION));
+        Member member = library.members.registerMember(new Member("Di", "di@example.com", "555-0103", "4 Road",
+                                                                  Member.MembershipType.STANDARD));
+        for (int session = 0; session < 2; session++) {
+            Transaction loan = library.transactions.borrowBook(book.getId(), member.getId());
+            library.transactions.returnBook(loan.getId());
+            library.handler.close();
+            // A crash mid-append left half a frame behind
+            Files.write(Path.of(directory, TransactionService.HISTORY_FILE + ".log"), new byte[] {0, 0, 0, 64, 1},
+                        StandardOpenOption.APPEND);
+            library = new Library(directory, new FileHandler(directory));
+        }
+        check(library.transactions.getMemberTransactionHistory(member.getId()).size() == 2,
+              "torn history log: both returns are in history");
+        library.handler.close();
+    }
+    
+    private static void groupCommitCrash(String directory) throws Exception {
+        FileHandler crashing = crashingHandler(directory);
+        crashing.enableGroupCommit(60_000, Integer.MAX_VALUE);
+        Library first = new Library(directory, crashing);
+        Book flushed = first.books.addBook(new Book("Emma", "Jane Austen", "9780141439587", "Penguin", 1815,
+                                                    Book.BookCategory.FICTION));
+        Book queued = first.books.addBook(new Book("Persuasion", "Jane Austen", "9780141439686", "Penguin", 1817,
+                                                   Book.BookCategory.FICTION));
+        Member member = first.members.registerMember(new Member("Bo", "bo@example.com", "555-0101", "2 Road",
+                                                                Member.MembershipType.STANDARD));
+        crashing.flush();
+        first.transactions.borrowBook(flushed.getId(), member.getId());
+        check(!Files.exists(Path.of(directory, "commit.journal")), "group commit queues the journal frame");
+        crashing.flush();
+        check(Files.exists(Path.of(directory, "commit.journal")), "the flusher writes the journal frame");
+        first.transactions.borrowBook(queued.getId(), member.getId());
+        
+        // The second loan was never flushed, so none of it may survive
+        FileHandler handler = new FileHandler(directory);
+        Library library = new Library(directory, handler);
+        check(library.books.getBookById(flushed.getId()).getStatus() == Book.BookStatus.BORROWED
+                && library.transactions.countMemberActiveTransactions(member.getId()) == 1,
+              "group commit: the flushed loan survives the crash");
+        check(library.books.getBookById(queued.getId()).getStatus() == Book.BookStatus.AVAILABLE
+                && library.transactions.getBookTransactionHistory(queued.getId()).isEmpty(),
+              "group commit: nothing of the queued loan survives the crash");
+        handler.close();
+        check(!Files.exists(Path.of(directory, "commit.journal")), "group commit: the journal is released");
+    }
+    
+    /**
+     * Creates a file handler whose units of work are never ended, as if the
+     * process died after applying each of them but before clearing the journal
+     */
+    private static FileHandler crashingHandler(String directory) {
+        return new FileHandler(directory) {
+            @Override
+            public void endCommit(String commitId) {
+            }
+        };
+    }
+    
+    private static void check(boolean condition, String description) {
+        System.out.println((condition ? "ok      " : "FAILED  ") + description);
+        if (!condition) {
+            failures++;
+        }
+    }
+    
+    /**
+     * Services wired the way the library wires them, with history opened lazily
+     */
+    private static class Library {
+        final FileHandler handler;
+        final LogStructuredStorageEngine<Book> bookStore;
+        final BookService books;
+        final MemberService members;
+        final LazyStorageEngine<Transaction> history;
+        final TransactionService transactions;
+        
+        Library(String directory, FileHandler fileHandler) throws IOException {
+            handler = fileHandler;
+            bookStore = new LogStructuredStorageEngine<>(fileHandler, BookService.BOOKS_FILE, new BookCodec());
+            books = new BookService(bookStore);
+            members = new MemberService(StorageEngines.open(StorageEngines.LOG, fileHandler,
+                                                            MemberService.MEMBERS_FILE, new MemberCodec()));
+            history = StorageEngines.openLazy(StorageEngines.LOG, fileHandler, TransactionService.HISTORY_FILE,
+                                              new TransactionCodec());
+            transactions = new TransactionService(books, members,
+                    StorageEngines.open(StorageEngines.LOG, fileHandler, TransactionService.TRANSACTIONS_FILE,
+                                        new TransactionCodec()),
+                    history, TransactionService.openArchive(directory));
+        }
+    }
+}